@@ -5,16 +5,23 @@ import org.samcrow.frameviewer.ui.CanvasPane;
 import org.samcrow.frameviewer.ui.FrameCanvas;
 import org.samcrow.frameviewer.ui.PlaybackControlPane;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.text.ParseException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Scene;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
@@ -22,9 +29,12 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javafx.util.Duration;
 import jfxtras.labs.dialogs.MonologFX;
 import jfxtras.labs.dialogs.MonologFXButton;
 import org.samcrow.frameviewer.io3.Marker;
+import org.samcrow.frameviewer.io3.MarkerJournal;
+import org.samcrow.frameviewer.io3.PagedMarkerStore;
 import org.samcrow.frameviewer.io3.PersistentFrameDataStore;
 import org.samcrow.frameviewer.ui.SaveDialog;
 
@@ -35,9 +45,10 @@ import org.samcrow.frameviewer.ui.SaveDialog;
 public class App extends Application {
 
     /**
-     * The data model
+     * The data model. This is a {@link PagedMarkerStore} if the data set
+     * was opened from an uncompressed binary file.
      */
-    private PersistentFrameDataStore<Marker> dataStore;
+    private FrameDataStore<Marker> dataStore;
 
     private SaveStatusController saveController;
 
@@ -50,6 +61,37 @@ public class App extends Application {
 
     private DataStoringPlaybackControlModel model;
 
+    /**
+     * Records changes to the open data set so that they can be recovered
+     * after a crash, or null if no data set file is open
+     */
+    private MarkerJournal journal;
+
+    /**
+     * The most recently started save, or null if nothing has been saved
+     */
+    private Task<Void> saveTask;
+
+    /**
+     * The file to save to when the current save finishes, or null
+     */
+    private File pendingSave;
+
+    /**
+     * True if the window should close when the save in progress finishes
+     */
+    private boolean closeRequested;
+
+    /**
+     * Shows the progress of a save
+     */
+    private ProgressBar saveProgress;
+
+    /**
+     * The interval between checks for a journal that needs compaction
+     */
+    private static final Duration COMPACTION_CHECK_INTERVAL = Duration.seconds(30);
+
     @Override
     public void start(final Stage stage) {
         this.stage = stage;
@@ -57,6 +99,12 @@ public class App extends Application {
         stage.setOnCloseRequest(new EventHandler<WindowEvent>() {
             @Override
             public void handle(WindowEvent event) {
+                if (saveTask != null && saveTask.isRunning()) {
+                    // Close when the save finishes, or stay open if it fails
+                    event.consume();
+                    closeRequested = true;
+                    return;
+                }
                 if (saveController.hasUnsavedData()) {
                     //Ask to save
                     SaveDialog dialog = new SaveDialog();
@@ -70,10 +118,12 @@ public class App extends Application {
                     }
                     else if (returnType == MonologFXButton.Type.NO) {
                         //Don't save; allow close
+                        discardJournal();
                     }
                     else {
-                        saveFile();
-
+                        // Close when the save finishes
+                        event.consume();
+                        closeRequested = saveFile();
                     }
                 }
             }
@@ -120,6 +170,12 @@ public class App extends Application {
             PlaybackControlPane controls = new PlaybackControlPane(model);
             box.getChildren().add(controls);
 
+            saveProgress = new ProgressBar();
+            saveProgress.setMaxWidth(Double.MAX_VALUE);
+            saveProgress.setVisible(false);
+            saveProgress.managedProperty().bind(saveProgress.visibleProperty());
+            box.getChildren().add(saveProgress);
+
             //Assemble the root StackPane
             StackPane root = new StackPane();
             root.getChildren().add(box);
@@ -136,10 +192,21 @@ public class App extends Application {
             if(getParameters().getNamed().containsKey("open-file")) {
                 lastOpenedFile = new File(getParameters().getNamed().get("open-file"));
 
-                dataStore = PersistentFrameDataStore.readFromFile(lastOpenedFile);
+                dataStore = readDataSet(lastOpenedFile);
+                openJournal(lastOpenedFile);
                 model.setDataStore(dataStore);
             }
 
+            // Periodically fold large journals into the data set file
+            final Timeline compactionTimeline = new Timeline(new KeyFrame(COMPACTION_CHECK_INTERVAL, new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent t) {
+                    compactJournal();
+                }
+            }));
+            compactionTimeline.setCycleCount(Timeline.INDEFINITE);
+            compactionTimeline.play();
+
         }
         catch (Exception ex) {
             MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
@@ -188,38 +255,271 @@ public class App extends Application {
             }
         });
 
-        editMenu.getItems().add(undoItem);
+        final MenuItem redoItem = new MenuItem("Redo");
+        redoItem.setAccelerator(KeyCombination.keyCombination("Shortcut+Shift+Z"));
+        redoItem.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                model.redo();
+            }
+        });
+
+        editMenu.getItems().addAll(undoItem, redoItem);
         bar.getMenus().add(editMenu);
 
         return bar;
     }
 
-    private void saveFile() {
+    /**
+     * Asks for a file and starts saving to it
+     * @return true if a file was chosen
+     */
+    private boolean saveFile() {
         model.syncCurrentFrameData();
 
         FileChooser chooser = new FileChooser();
-        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV files", "*.csv"));
+        if (dataStore instanceof PagedMarkerStore) {
+            // Other formats would need every marker in memory
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Binary marker files", "*.fvm"));
+        }
+        else {
+            chooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("CSV files", "*.csv"), new FileChooser.ExtensionFilter("Compressed CSV files", "*.csv.gz"));
+        }
         if (lastOpenedFile != null) {
             chooser.setInitialDirectory(lastOpenedFile.getParentFile());
         }
         File saveFile = chooser.showSaveDialog(stage);
+        if (saveFile != null) {
+            saveInBackground(saveFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Saves a snapshot of the data store to a file on a background thread.
+     * Editing can continue while the file is written.
+     * <p/>
+     * When the save finishes, the data is marked as saved only if no
+     * changes were made after the snapshot was taken. The journal keeps
+     * the changes that were made during the save. When saving again to the
+     * same file, the lines for ants that have not changed are copied from
+     * the file.
+     * <p/>
+     * If a save is already in progress, this save starts when it finishes,
+     * with the data at that time.
+     * <p/>
+     * A {@link PagedMarkerStore} is saved in the binary format with
+     * {@link #savePaged(PagedMarkerStore, File)} instead.
+     * @param saveFile The file to save to
+     */
+    private void saveInBackground(final File saveFile) {
+        if (saveTask != null && saveTask.isRunning()) {
+            pendingSave = saveFile;
+            return;
+        }
+        if (dataStore instanceof PagedMarkerStore) {
+            savePaged((PagedMarkerStore) dataStore, saveFile);
+            return;
+        }
+        final PersistentFrameDataStore<Marker> store = (PersistentFrameDataStore<Marker>) dataStore;
+        final PersistentFrameDataStore.SnapshotSave save = store.prepareSnapshotSave(saveFile);
+        final long journalMark;
         try {
-            dataStore.writeTo(saveFile);
-            saveController.markSaved();
+            journalMark = journal != null ? journal.mark() : 0;
         }
-        catch (Exception ex) {
+        catch (IOException ex) {
             showExceptionDialog(ex, "Could not save file");
+            return;
+        }
+
+        final Task<Void> task = new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                save.write(new PersistentFrameDataStore.ProgressListener() {
+                    @Override
+                    public void progressChanged(long done, long total) {
+                        updateProgress(done, total);
+                    }
+                });
+                return null;
+            }
+        };
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent t) {
+                // Another file may have been opened during the save
+                if (store == dataStore) {
+                    if (store.markSnapshotSaved(save)) {
+                        saveController.markSaved();
+                    }
+                    updateJournal(saveFile, journalMark);
+                }
+                startPendingSave();
+                closeIfRequested();
+            }
+        });
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent t) {
+                saveFailed(task);
+            }
+        });
+        startSaveTask(task);
+    }
+
+    /**
+     * Saves a paged data store to a file in the binary format on a
+     * background thread. The loaded frames are saved from a snapshot, and
+     * markers that are not loaded are copied from the file that the store
+     * reads from, so saving does not load the whole data set.
+     * @param store The store to save
+     * @param saveFile The file to save to
+     */
+    private void savePaged(final PagedMarkerStore store, final File saveFile) {
+        final PagedMarkerStore.BinarySave save;
+        final long journalMark;
+        try {
+            journalMark = journal != null ? journal.mark() : 0;
+            save = store.prepareBinarySave(saveFile);
+        }
+        catch (IOException ex) {
+            showExceptionDialog(ex, "Could not save file");
+            return;
+        }
+
+        final Task<Void> task = new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                save.write(new PersistentFrameDataStore.ProgressListener() {
+                    @Override
+                    public void progressChanged(long done, long total) {
+                        updateProgress(done, total);
+                    }
+                });
+                return null;
+            }
+        };
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent t) {
+                // The store was closed if another file was opened
+                if (store == dataStore) {
+                    try {
+                        if (store.finishBinarySave(save)) {
+                            saveController.markSaved();
+                        }
+                    }
+                    catch (IOException ex) {
+                        showExceptionDialog(ex, "Could not read saved file");
+                    }
+                    updateJournal(saveFile, journalMark);
+                }
+                startPendingSave();
+                closeIfRequested();
+            }
+        });
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent t) {
+                if (store == dataStore) {
+                    try {
+                        // Keeps the changes as unsaved
+                        store.finishBinarySave(save);
+                    }
+                    catch (IOException ex) {
+                        Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not finish save", ex);
+                    }
+                }
+                saveFailed(task);
+            }
+        });
+        startSaveTask(task);
+    }
+
+    /**
+     * Shows the progress of a save task and starts it on a background thread
+     * @param task The task to start
+     */
+    private void startSaveTask(Task<Void> task) {
+        saveProgress.visibleProperty().bind(task.runningProperty());
+        saveProgress.progressProperty().bind(task.progressProperty());
+        saveTask = task;
+        final Thread thread = new Thread(task, "Save");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reports a save that failed and starts the next save, if any
+     * @param task The task that failed
+     */
+    private void saveFailed(Task<Void> task) {
+        // Stay open so that the user can save again
+        closeRequested = false;
+        final Throwable ex = task.getException();
+        showExceptionDialog(ex instanceof Exception ? (Exception) ex : new Exception(ex), "Could not save file");
+        startPendingSave();
+    }
+
+    /**
+     * Closes the window if that was requested during a save and no save is
+     * in progress. The user is asked to save again if the data changed
+     * during the save.
+     */
+    private void closeIfRequested() {
+        if (closeRequested && (saveTask == null || !saveTask.isRunning())) {
+            closeRequested = false;
+            stage.fireEvent(new WindowEvent(stage, WindowEvent.WINDOW_CLOSE_REQUEST));
+        }
+    }
+
+    /**
+     * Starts a journal for a file that the data store was just saved to,
+     * keeping only the changes made after a journal mark
+     * @param saveFile The file that was saved
+     * @param journalMark The journal mark taken when the save was prepared
+     */
+    private void updateJournal(File saveFile, long journalMark) {
+        try {
+            if (journal != null) {
+                journal = journal.rebase(saveFile, journalMark);
+            }
+            else {
+                journal = MarkerJournal.create(saveFile, dataStore);
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not update journal", ex);
+        }
+    }
+
+    /**
+     * Starts the save that was requested while another save was in
+     * progress, if any
+     */
+    private void startPendingSave() {
+        if (pendingSave != null) {
+            final File file = pendingSave;
+            pendingSave = null;
+            saveInBackground(file);
         }
     }
 
     private void openFile() {
         try {
             FileChooser chooser = new FileChooser();
-            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV files", "*.csv"));
+            chooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("CSV files", "*.csv"), new FileChooser.ExtensionFilter("Compressed CSV files", "*.csv.gz"),
+                    new FileChooser.ExtensionFilter("Binary marker files", "*.fvm"));
 
             lastOpenedFile = chooser.showOpenDialog(stage);
 
-            dataStore = PersistentFrameDataStore.readFromFile(lastOpenedFile);
+            final FrameDataStore<Marker> opened = readDataSet(lastOpenedFile);
+            closeDataStore();
+            dataStore = opened;
+            // A save requested for the previous data set does not apply
+            pendingSave = null;
+            openJournal(lastOpenedFile);
             model.setDataStore(dataStore);
         }
         catch (Exception ex) {
@@ -227,6 +527,101 @@ public class App extends Application {
         }
     }
 
+    /**
+     * Reads a data set file. An uncompressed binary file is opened with a
+     * {@link PagedMarkerStore}, which reads markers from the file as they
+     * are needed. Any other file is read completely.
+     * @param file The file to read
+     * @return A data store with the markers in the file
+     * @throws IOException if the file could not be read
+     * @throws ParseException if the file is not valid
+     */
+    private static FrameDataStore<Marker> readDataSet(File file) throws IOException, ParseException {
+        if (PagedMarkerStore.canOpen(file)) {
+            return PagedMarkerStore.open(file);
+        }
+        return PersistentFrameDataStore.readFromFile(file);
+    }
+
+    /**
+     * Closes the file that the data store reads from, if it is a
+     * {@link PagedMarkerStore}
+     */
+    private void closeDataStore() {
+        if (dataStore instanceof PagedMarkerStore) {
+            try {
+                ((PagedMarkerStore) dataStore).close();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not close data set file", ex);
+            }
+        }
+    }
+
+    /**
+     * Closes the current journal and opens the journal for a data set file,
+     * recovering any changes that were not saved
+     * @param dataSet The data set file that the data store was read from
+     * @throws IOException
+     */
+    private void openJournal(File dataSet) throws IOException {
+        closeJournal();
+        journal = MarkerJournal.open(dataSet, dataStore);
+        if (journal.getRecoveredCount() != 0) {
+            MonologFX dialog = new MonologFX(MonologFX.Type.INFO);
+            dialog.initOwner(stage);
+            dialog.setTitleText("Recovered changes");
+            dialog.setMessage("Recovered " + journal.getRecoveredCount() + " changes that were not saved.");
+            dialog.showDialog();
+        }
+    }
+
+    /**
+     * Closes the current journal, keeping its file
+     */
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not close journal", ex);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Closes the current journal and deletes its file
+     */
+    private void discardJournal() {
+        if (journal != null) {
+            try {
+                journal.discard();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not delete journal", ex);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * If the journal has grown large, saves the data store to the journal's
+     * data set file and empties the journal
+     */
+    private void compactJournal() {
+        try {
+            // A save in progress will empty the journal
+            if (journal != null && (saveTask == null || !saveTask.isRunning()) && journal.needsCompaction()) {
+                saveInBackground(journal.getDataSet());
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not compact journal", ex);
+        }
+    }
+
     private void showExceptionDialog(Exception ex) {
         Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
         MonologFX errDialog = new MonologFX(MonologFX.Type.ERROR);
@@ -257,6 +652,8 @@ public class App extends Application {
 
     @Override
     public void stop() {
+        closeJournal();
+        closeDataStore();
         System.exit(0);
     }
 
@@ -0,0 +1,375 @@
+package org.samcrow.frameviewer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.application.Platform;
+import javafx.beans.value.ObservableValueBase;
+
+/**
+ * Stores data associated with frames, and can be read and modified from
+ * any thread.
+ * <p/>
+ * Each frame's values are held in a copy-on-write list, so reads never
+ * block and iteration always sees a consistent list for each frame.
+ * Changes to a frame are serialized by a lock on that frame's list,
+ * so threads that work on different frames do not contend.
+ * <p/>
+ * Listeners are not called on the thread that makes a change. Changes are
+ * queued and delivered in batches by a notification executor, which by
+ * default runs them on the JavaFX application thread. Listeners therefore
+ * see every change in the order it was made to each frame, and may safely
+ * update the user interface.
+ * <p/>
+ * When work on other threads is done, {@link #toFrameDataStore()} copies
+ * the data into a {@link FrameDataStore} for use by the user interface.
+ * <p/>
+ * @param <T> The type of data to store
+ * @author Sam Crow
+ */
+public class ConcurrentFrameDataStore<T extends FrameObject> extends ObservableValueBase<ConcurrentFrameDataStore<T>> implements Iterable<List<T>> {
+
+    /**
+     * An executor that runs tasks on the JavaFX application thread
+     */
+    private static final Executor FX_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            Platform.runLater(command);
+        }
+    };
+
+    /**
+     * The data for each frame, keyed by frame number
+     */
+    private final ConcurrentNavigableMap<Integer, CopyOnWriteArrayList<T>> data = new ConcurrentSkipListMap<>();
+
+    /**
+     * The listeners that are notified of values added and removed
+     */
+    private final List<FrameDataListener<? super T>> frameDataListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Changes that have been made and not yet delivered to listeners
+     */
+    private final Queue<Change<T>> pendingChanges = new ConcurrentLinkedQueue<>();
+
+    /**
+     * True if a task to deliver the pending changes has been submitted
+     * and has not yet started
+     */
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+    /**
+     * The executor used to deliver changes to listeners
+     */
+    private final Executor notificationExecutor;
+
+    /**
+     * The number of changes that have been made to this store
+     */
+    private final AtomicLong modificationCount = new AtomicLong();
+
+    /**
+     * Creates an empty store that notifies listeners on the JavaFX
+     * application thread
+     */
+    public ConcurrentFrameDataStore() {
+        this(FX_EXECUTOR);
+    }
+
+    /**
+     * Creates an empty store that notifies listeners using the provided
+     * executor. The executor must run tasks one at a time.
+     * @param notificationExecutor The executor to use
+     */
+    public ConcurrentFrameDataStore(Executor notificationExecutor) {
+        if (notificationExecutor == null) {
+            throw new NullPointerException("notificationExecutor");
+        }
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    /**
+     * Returns the values for a frame. The returned list cannot be modified.
+     * It reflects later changes to the frame, and can be iterated safely
+     * while other threads change the frame.
+     * <p/>
+     * @param frame The frame to get data for
+     * @return The data for the frame
+     */
+    public List<T> getFrameData(int frame) {
+        final List<T> list = data.get(frame);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Adds a value to the end of a frame's list. The value's frame is set
+     * to the provided frame.
+     * @param frame The frame to add to
+     * @param value The value to add
+     */
+    public void add(int frame, T value) {
+        final CopyOnWriteArrayList<T> list = listFor(frame);
+        synchronized (list) {
+            value.setFrame(frame);
+            final int index = list.size();
+            list.add(value);
+            changed(new Change<>(true, frame, index, Collections.singletonList(value)));
+        }
+    }
+
+    /**
+     * Adds values to this store. Each value is added to the frame returned
+     * by its {@link FrameObject#getFrame()} method.
+     * @param values The values to add
+     */
+    public void addAll(Iterable<? extends T> values) {
+        for (T value : values) {
+            add(value.getFrame(), value);
+        }
+    }
+
+    /**
+     * Removes a value from a frame
+     * @param frame The frame to remove from
+     * @param value The value to remove
+     * @return true if the value was found and removed
+     */
+    public boolean remove(int frame, T value) {
+        final CopyOnWriteArrayList<T> list = data.get(frame);
+        if (list == null) {
+            return false;
+        }
+        synchronized (list) {
+            final int index = list.indexOf(value);
+            if (index == -1) {
+                return false;
+            }
+            final T removed = list.remove(index);
+            changed(new Change<>(false, frame, index, Collections.singletonList(removed)));
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the values for a frame. The values in the provided list are
+     * copied into this store.
+     * @param frame The frame to set data for
+     * @param values The new values for the frame
+     */
+    public void setFrameData(int frame, List<? extends T> values) {
+        final CopyOnWriteArrayList<T> list = listFor(frame);
+        synchronized (list) {
+            if (list.equals(values)) {
+                return;
+            }
+            final List<T> removed = new ArrayList<>(list);
+            final List<T> added = new ArrayList<>(values);
+            for (T value : added) {
+                value.setFrame(frame);
+            }
+            list.clear();
+            list.addAll(added);
+            if (!removed.isEmpty()) {
+                changed(new Change<>(false, frame, 0, removed));
+            }
+            if (!added.isEmpty()) {
+                changed(new Change<>(true, frame, 0, added));
+            }
+        }
+    }
+
+    /**
+     * Returns the list for a frame, creating it if it does not exist
+     * @param frame The frame
+     * @return The list for the frame
+     */
+    private CopyOnWriteArrayList<T> listFor(int frame) {
+        CopyOnWriteArrayList<T> list = data.get(frame);
+        if (list == null) {
+            final CopyOnWriteArrayList<T> newList = new CopyOnWriteArrayList<>();
+            list = data.putIfAbsent(frame, newList);
+            if (list == null) {
+                list = newList;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of changes that have been made to this store.
+     * This can be read from any thread.
+     * @return The modification count
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * Adds a listener to be notified when values are added to or removed
+     * from any frame. The listener is called by the notification executor.
+     * <p/>
+     * @param listener The listener to add
+     */
+    public void addFrameDataListener(FrameDataListener<? super T> listener) {
+        frameDataListeners.add(listener);
+    }
+
+    public void removeFrameDataListener(FrameDataListener<? super T> listener) {
+        frameDataListeners.remove(listener);
+    }
+
+    /**
+     * Copies the data in this store into a new {@link FrameDataStore}.
+     * This must be called on the thread that will use the returned store.
+     * Changes made by other threads during the copy may or may not
+     * be included.
+     * @return A new store with the same data
+     */
+    public FrameDataStore<T> toFrameDataStore() {
+        final FrameDataStore<T> store = new FrameDataStore<>();
+        store.beginBatch();
+        try {
+            for (Map.Entry<Integer, CopyOnWriteArrayList<T>> entry : data.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    store.setFrameData(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
+            }
+        }
+        finally {
+            store.endBatch();
+        }
+        return store;
+    }
+
+    /**
+     * Records a change and schedules delivery to listeners if it is not
+     * already scheduled
+     * @param change The change
+     */
+    private void changed(Change<T> change) {
+        modificationCount.incrementAndGet();
+        pendingChanges.add(change);
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            notificationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliveryScheduled.set(false);
+                    deliverChanges();
+                }
+            });
+        }
+    }
+
+    /**
+     * Delivers all pending changes to listeners. Changes made while this
+     * method is running are delivered by this call or by the next
+     * scheduled delivery.
+     */
+    private void deliverChanges() {
+        final BitSet frames = new BitSet();
+        Change<T> change;
+        while ((change = pendingChanges.poll()) != null) {
+            for (FrameDataListener<? super T> listener : frameDataListeners) {
+                if (change.added) {
+                    listener.valuesAdded(change.frame, change.index, change.values);
+                }
+                else {
+                    listener.valuesRemoved(change.frame, change.index, change.values);
+                }
+            }
+            frames.set(change.frame);
+        }
+        if (!frames.isEmpty()) {
+            for (FrameDataListener<? super T> listener : frameDataListeners) {
+                listener.framesChanged(frames);
+            }
+            fireValueChangedEvent();
+        }
+    }
+
+    /**
+     * Returns an iterator over the lists of data for frames that have
+     * values, in increasing frame order. The lists cannot be modified.
+     * The iterator reflects some, all, or none of the changes made
+     * by other threads while it is in use.
+     * @return An iterator
+     */
+    @Override
+    public Iterator<List<T>> iterator() {
+        final Iterator<CopyOnWriteArrayList<T>> lists = data.values().iterator();
+        return new Iterator<List<T>>() {
+
+            private List<T> next = advance();
+
+            private List<T> advance() {
+                while (lists.hasNext()) {
+                    final List<T> list = lists.next();
+                    if (!list.isEmpty()) {
+                        return Collections.unmodifiableList(list);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final List<T> value = next;
+                next = advance();
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Not supported");
+            }
+        };
+    }
+
+    @Override
+    public ConcurrentFrameDataStore<T> getValue() {
+        return this;
+    }
+
+    /**
+     * A change to the values for one frame
+     */
+    private static final class Change<T> {
+
+        final boolean added;
+        final int frame;
+        final int index;
+        final List<T> values;
+
+        Change(boolean added, int frame, int index, List<T> values) {
+            this.added = added;
+            this.frame = frame;
+            this.index = index;
+            this.values = values;
+        }
+    }
+}
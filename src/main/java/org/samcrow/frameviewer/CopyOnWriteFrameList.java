@@ -0,0 +1,166 @@
+package org.samcrow.frameviewer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A list, backed by an array, that can cheaply provide immutable snapshots
+ * of its contents.
+ * <p/>
+ * Taking a snapshot does not copy anything. It marks the array as shared
+ * with the snapshot. The next change to this list copies the array before
+ * modifying it, so the snapshot is never affected.
+ * <p/>
+ * This class is not thread-safe, but the snapshots it returns may be
+ * read from any thread.
+ * <p/>
+ * @param <T> The type of element to store
+ * @author Sam Crow
+ */
+class CopyOnWriteFrameList<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private Object[] elements = EMPTY;
+
+    private int size;
+
+    /**
+     * True if the element array is referenced by a snapshot and must be
+     * copied before it is modified
+     */
+    private boolean shared;
+
+    /**
+     * Returns an immutable snapshot of the current contents of this list
+     * @return a snapshot
+     */
+    List<T> snapshot() {
+        if (size == 0) {
+            return Snapshot.empty();
+        }
+        shared = true;
+        return new Snapshot<>(elements, size);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        checkIndex(index, size);
+        return (T) elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T set(int index, T element) {
+        checkIndex(index, size);
+        prepareForWrite(size);
+        final T old = (T) elements[index];
+        elements[index] = element;
+        return old;
+    }
+
+    @Override
+    public void add(int index, T element) {
+        checkIndex(index, size + 1);
+        prepareForWrite(size + 1);
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T remove(int index) {
+        checkIndex(index, size);
+        prepareForWrite(size);
+        final T old = (T) elements[index];
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        elements[--size] = null;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        prepareForWrite(size);
+        System.arraycopy(elements, toIndex, elements, fromIndex, size - toIndex);
+        final int newSize = size - (toIndex - fromIndex);
+        Arrays.fill(elements, newSize, size, null);
+        size = newSize;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        if (shared) {
+            elements = EMPTY;
+            shared = false;
+        }
+        else {
+            Arrays.fill(elements, 0, size, null);
+        }
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Ensures that the element array is not shared and has enough capacity
+     * @param capacity The capacity required
+     */
+    private void prepareForWrite(int capacity) {
+        if (shared || capacity > elements.length) {
+            final int newCapacity = capacity > elements.length ? Math.max(capacity, elements.length + (elements.length >> 1) + 1) : elements.length;
+            elements = Arrays.copyOf(elements, newCapacity);
+            shared = false;
+        }
+    }
+
+    private static void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index " + index + ", limit " + limit);
+        }
+    }
+
+    /**
+     * An immutable view of a prefix of an array
+     */
+    private static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+
+        private static final Snapshot<Object> EMPTY_SNAPSHOT = new Snapshot<>(EMPTY, 0);
+
+        private final Object[] elements;
+
+        private final int size;
+
+        Snapshot(Object[] elements, int size) {
+            this.elements = elements;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Snapshot<T> empty() {
+            return (Snapshot<T>) EMPTY_SNAPSHOT;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            checkIndex(index, size);
+            return (T) elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
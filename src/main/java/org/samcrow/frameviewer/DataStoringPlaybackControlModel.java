@@ -1,13 +1,12 @@
 package org.samcrow.frameviewer;
 
 import org.samcrow.frameviewer.io3.Marker;
+import org.samcrow.frameviewer.io3.MarkerSpatialIndex;
 import org.samcrow.frameviewer.ui.FrameCanvas;
 import java.util.List;
 import java.util.logging.Logger;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import jfxtras.labs.dialogs.MonologFX;
-import jfxtras.labs.dialogs.MonologFXButton;
 
 public class DataStoringPlaybackControlModel extends PlaybackControlModel {
 
@@ -18,29 +17,36 @@ public class DataStoringPlaybackControlModel extends PlaybackControlModel {
 
     private FrameCanvas canvas;
 
+    /**
+     * Records changes to the data store so that they can be undone
+     */
+    private EditJournal<Marker> journal;
+
+    /**
+     * Indexes marker positions so that clicked markers can be found quickly
+     */
+    private MarkerSpatialIndex<Marker> spatialIndex;
+
     public DataStoringPlaybackControlModel(FrameFinder frameFinder, FrameDataStore<Marker> newDataStore) {
         super(frameFinder);
         dataStore = newDataStore;
+        journal = new EditJournal<>(dataStore);
+        spatialIndex = new MarkerSpatialIndex<>(dataStore);
 
         currentFrameProperty().addListener(new ChangeListener<Number>() {
             @Override
             public void changed(ObservableValue<? extends Number> ov, Number oldValue, Number newValue) {
 
                 if (canvas != null) {
-                    int oldFrame = oldValue.intValue();
                     int newFrame = newValue.intValue();
-                    //Save the current markers from the old frame
-                    List<Marker> markers = canvas.getMarkers();
-                    //Assign each marker the correct frame
-                    for (Marker marker : markers) {
-                        marker.setFrame(oldFrame);
-                    }
-                    dataStore.setFrameData(oldFrame, markers);
-
+                    // The canvas edits the data store's list directly,
+                    // so the markers for the old frame are already stored.
 
+                    // Let the store know which frame is being edited
+                    dataStore.setCurrentFrame(newFrame);
                     //Get the markers for the new frame
                     List<Marker> newMarkers = dataStore.getFrameData(newFrame);
-                    canvas.setMarkers(newMarkers);
+                    canvas.setMarkers(newMarkers, newFrame);
                     
                     canvas.repaint();
                 }
@@ -58,14 +64,22 @@ public class DataStoringPlaybackControlModel extends PlaybackControlModel {
      */
     public final void bindMarkers(FrameCanvas canvas) {
         this.canvas = canvas;
+        canvas.setMarkerIndex(spatialIndex);
+        canvas.setMarkers(dataStore.getFrameData(getCurrentFrame()), getCurrentFrame());
     }
 
     public void setDataStore(FrameDataStore<Marker> dataStore) {
         this.dataStore = dataStore;
+        journal.detach();
+        journal = new EditJournal<>(dataStore);
+        spatialIndex.detach();
+        spatialIndex = new MarkerSpatialIndex<>(dataStore);
+        canvas.setMarkerIndex(spatialIndex);
         //Move to the first frame
         int firstFrame = getFirstFrame();
         setCurrentFrame(firstFrame);
-        canvas.setMarkers(this.dataStore.getFrameData(firstFrame));
+        dataStore.setCurrentFrame(firstFrame);
+        canvas.setMarkers(this.dataStore.getFrameData(firstFrame), firstFrame);
         canvas.repaint();
     }
 
@@ -84,43 +98,38 @@ public class DataStoringPlaybackControlModel extends PlaybackControlModel {
         dataStore.setFrameData(frame, markers);
     }
 
+    /**
+     * Undoes the most recent change to the markers. If the change was
+     * on another frame, that frame is displayed.
+     */
     public void undo() {
-        //Check for an item to undo
-        if(canvas.getMarkers().isEmpty()) {
-            //Error: No marker to delete
-            MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
-            dialog.setTitle("Nothing to delete");
-            dialog.setMessage("This video frame does not have any points to delete");
-            dialog.setModal(true);
-            dialog.showDialog();
-        }
-        else {
-            //Ask for confirmation
-            MonologFX dialog = new MonologFX(MonologFX.Type.QUESTION);
-            
-            MonologFXButton okButton = new MonologFXButton();
-            okButton.setType(MonologFXButton.Type.OK);
-            okButton.setLabel("OK");
-            okButton.setDefaultButton(true);
-            dialog.addButton(okButton);
-            
-            MonologFXButton cancelButton = new MonologFXButton();
-            cancelButton.setType(MonologFXButton.Type.CANCEL);
-            cancelButton.setLabel("Cancel");
-            cancelButton.setCancelButton(true);
-            dialog.addButton(cancelButton);
-            
-            dialog.setTitle("Confirm delete");
-            dialog.setMessage("Delete the most recently entered point from this frame?");
-            
-            MonologFXButton.Type result = dialog.showDialog();
-            
-            if(result == MonologFXButton.Type.OK) {
-                //Remove the last item in the list
-                canvas.getMarkers().remove(canvas.getMarkers().size() - 1 );
-                canvas.repaint();
-            }
-            
+        showFrame(journal.undo());
+    }
+
+    /**
+     * Redoes the most recently undone change to the markers. If the change was
+     * on another frame, that frame is displayed.
+     */
+    public void redo() {
+        showFrame(journal.redo());
+    }
+
+    /**
+     * 
+     * @return An index of the positions of the markers in the data store
+     */
+    public MarkerSpatialIndex<Marker> getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * Displays a frame that was changed by an undo or redo
+     * @param frame The frame to show, or -1 to leave the current frame
+     */
+    private void showFrame(int frame) {
+        if (frame != -1 && frame != getCurrentFrame() && frame >= getFirstFrame() && frame <= getMaximumFrame()) {
+            setCurrentFrame(frame);
         }
+        canvas.repaint();
     }
 }
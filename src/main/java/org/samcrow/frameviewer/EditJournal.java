@@ -0,0 +1,272 @@
+package org.samcrow.frameviewer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Records changes to a {@link FrameDataStore} so that they can be undone
+ * and redone.
+ * <p/>
+ * Each change that the store reports (one list operation, or one batch of
+ * operations) becomes one command. Editing a value (replacing it in its
+ * list) or moving it to another frame in a batch is therefore undone in one
+ * step. Undoing or redoing a command takes time proportional to the number
+ * of values it changed, independent of the size of the store.
+ * <p/>
+ * The journal is bounded. When it holds more than the maximum number of
+ * commands or values, the oldest commands are discarded.
+ * <p/>
+ * @param <T> The type of value stored
+ * @author Sam Crow
+ */
+public class EditJournal<T extends FrameObject> implements FrameDataListener<T> {
+
+    /**
+     * The default maximum number of commands to keep
+     */
+    public static final int DEFAULT_MAX_COMMANDS = 1000;
+
+    /**
+     * The default maximum number of values to keep references to
+     */
+    public static final int DEFAULT_MAX_VALUES = 100000;
+
+    private final FrameDataStore<T> store;
+
+    private final int maxCommands;
+
+    private final int maxValues;
+
+    /**
+     * Commands that can be undone, most recent last
+     */
+    private final Deque<Command<T>> undoStack = new ArrayDeque<>();
+
+    /**
+     * Commands that can be redone, most recently undone last
+     */
+    private final Deque<Command<T>> redoStack = new ArrayDeque<>();
+
+    /**
+     * The total number of values referenced by commands in both stacks
+     */
+    private int valueCount;
+
+    /**
+     * The operations reported since the last complete command
+     */
+    private List<Operation<T>> pending = new ArrayList<>();
+
+    /**
+     * True while this journal is changing the store, so that its own
+     * changes are not recorded
+     */
+    private boolean applying;
+
+    /**
+     * Creates a journal with the default bounds and starts recording changes
+     * to a store
+     * @param store The store to record
+     */
+    public EditJournal(FrameDataStore<T> store) {
+        this(store, DEFAULT_MAX_COMMANDS, DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * Creates a journal and starts recording changes to a store
+     * @param store The store to record
+     * @param maxCommands The maximum number of commands to keep
+     * @param maxValues The maximum number of added or removed values to
+     * keep references to
+     */
+    public EditJournal(FrameDataStore<T> store, int maxCommands, int maxValues) {
+        if (maxCommands < 1 || maxValues < 1) {
+            throw new IllegalArgumentException("Journal bounds must be positive");
+        }
+        this.store = store;
+        this.maxCommands = maxCommands;
+        this.maxValues = maxValues;
+        store.addFrameDataListener(this);
+    }
+
+    /**
+     * Stops recording changes to the store
+     */
+    public void detach() {
+        store.removeFrameDataListener(this);
+    }
+
+    @Override
+    public void valuesAdded(int frame, int index, List<? extends T> values) {
+        if (!applying) {
+            pending.add(new Operation<T>(true, frame, index, values.toArray()));
+        }
+    }
+
+    @Override
+    public void valuesRemoved(int frame, int index, List<? extends T> values) {
+        if (!applying) {
+            pending.add(new Operation<T>(false, frame, index, values.toArray()));
+        }
+    }
+
+    @Override
+    public void framesChanged(BitSet frames) {
+        if (applying || pending.isEmpty()) {
+            return;
+        }
+        final Command<T> command = new Command<>(pending);
+        pending = new ArrayList<>();
+
+        // A new change makes the undone commands invalid
+        for (Command<T> undone : redoStack) {
+            valueCount -= undone.valueCount;
+        }
+        redoStack.clear();
+
+        undoStack.addLast(command);
+        valueCount += command.valueCount;
+        trim();
+    }
+
+    /**
+     * Discards the oldest commands until this journal is within its bounds.
+     * The most recent command is always kept.
+     */
+    private void trim() {
+        while (undoStack.size() > 1 && (undoStack.size() > maxCommands || valueCount > maxValues)) {
+            valueCount -= undoStack.removeFirst().valueCount;
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Undoes the most recent command
+     * @return The first frame that the command changed, or -1 if there was
+     * nothing to undo
+     */
+    public int undo() {
+        if (undoStack.isEmpty()) {
+            return -1;
+        }
+        final Command<T> command = undoStack.removeLast();
+        apply(command, true);
+        redoStack.addLast(command);
+        return command.operations[0].frame;
+    }
+
+    /**
+     * Redoes the most recently undone command
+     * @return The first frame that the command changed, or -1 if there was
+     * nothing to redo
+     */
+    public int redo() {
+        if (redoStack.isEmpty()) {
+            return -1;
+        }
+        final Command<T> command = redoStack.removeLast();
+        apply(command, false);
+        undoStack.addLast(command);
+        return command.operations[0].frame;
+    }
+
+    /**
+     * Discards all recorded commands
+     */
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        pending.clear();
+        valueCount = 0;
+    }
+
+    /**
+     * Applies a command to the store
+     * @param command The command to apply
+     * @param reverse If true, the inverse of each operation is applied
+     * in reverse order. Otherwise, the operations are applied in order.
+     */
+    @SuppressWarnings("unchecked")
+    private void apply(Command<T> command, boolean reverse) {
+        applying = true;
+        store.beginBatch();
+        try {
+            final Operation<T>[] operations = command.operations;
+            for (int i = 0; i < operations.length; i++) {
+                final Operation<T> operation = operations[reverse ? operations.length - 1 - i : i];
+                final List<T> frameData = store.getFrameData(operation.frame);
+                if (operation.added != reverse) {
+                    frameData.addAll(operation.index, (List<T>) (List<?>) Arrays.asList(operation.values));
+                }
+                else {
+                    frameData.subList(operation.index, operation.index + operation.values.length).clear();
+                }
+            }
+        }
+        finally {
+            store.endBatch();
+            applying = false;
+        }
+    }
+
+    /**
+     * Values added to or removed from one position of one frame
+     */
+    private static final class Operation<T> {
+
+        /**
+         * True if the values were added, false if they were removed
+         */
+        final boolean added;
+
+        final int frame;
+
+        /**
+         * The index in the frame's list of the first value
+         */
+        final int index;
+
+        final Object[] values;
+
+        Operation(boolean added, int frame, int index, Object[] values) {
+            this.added = added;
+            this.frame = frame;
+            this.index = index;
+            this.values = values;
+        }
+    }
+
+    /**
+     * A group of operations that is undone and redone as a unit
+     */
+    private static final class Command<T> {
+
+        final Operation<T>[] operations;
+
+        /**
+         * The total number of values in the operations
+         */
+        final int valueCount;
+
+        @SuppressWarnings("unchecked")
+        Command(List<Operation<T>> operations) {
+            this.operations = operations.toArray((Operation<T>[]) new Operation<?>[operations.size()]);
+            int count = 0;
+            for (Operation<T> operation : operations) {
+                count += operation.values.length;
+            }
+            valueCount = count;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.samcrow.frameviewer;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An interface for something that is notified when values are added to
+ * or removed from a {@link FrameDataStore}
+ * <p/>
+ * @param <T> The type of value stored
+ * @author Sam Crow
+ */
+public interface FrameDataListener<T> {
+
+    /**
+     * Called when values have been added to a frame
+     * @param frame The frame that the values were added to
+     * @param index The index in the frame's list of the first added value
+     * @param values The values that were added, in list order. This list
+     * must not be modified or retained.
+     */
+    void valuesAdded(int frame, int index, List<? extends T> values);
+
+    /**
+     * Called when values have been removed from a frame
+     * @param frame The frame that the values were removed from
+     * @param index The index in the frame's list where the first removed
+     * value was
+     * @param values The values that were removed, in list order. This list
+     * must not be modified or retained.
+     */
+    void valuesRemoved(int frame, int index, List<? extends T> values);
+
+    /**
+     * Called after values have been added to or removed from one or more
+     * frames. When changes are made in a batch, this is called once
+     * at the end of the batch.
+     * @param frames The frames that changed. This must not be modified or
+     * retained.
+     */
+    void framesChanged(BitSet frames);
+}
@@ -0,0 +1,137 @@
+package org.samcrow.frameviewer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable copy of the contents of a {@link FrameDataStore} at one time.
+ * <p/>
+ * A snapshot is created with {@link FrameDataStore#snapshot()}. It may be
+ * read from any thread, so it can be used to save, export or analyze data
+ * in the background while the store continues to be edited.
+ * <p/>
+ * @param <T> The type of data stored
+ * @author Sam Crow
+ */
+public final class FrameDataSnapshot<T> implements Iterable<List<T>> {
+
+    /**
+     * The frames that have data, in increasing order
+     */
+    private final int[] frames;
+
+    /**
+     * The data for each frame in {@link #frames}
+     */
+    private final List<?>[] lists;
+
+    private final long modificationCount;
+
+    /**
+     * The total number of values in all frames
+     */
+    private final int size;
+
+    FrameDataSnapshot(int[] frames, List<?>[] lists, long modificationCount) {
+        this.frames = frames;
+        this.lists = lists;
+        this.modificationCount = modificationCount;
+        int count = 0;
+        for (List<?> list : lists) {
+            count += list.size();
+        }
+        size = count;
+    }
+
+    /**
+     * 
+     * @param frame A frame number
+     * @return The data for the frame. This will be an empty list if
+     * the frame had no data.
+     */
+    public List<T> getFrameData(int frame) {
+        final int index = Arrays.binarySearch(frames, frame);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        return getFrameDataAt(index);
+    }
+
+    /**
+     * 
+     * @return The number of frames that have data
+     */
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    /**
+     * 
+     * @param index An index from 0 to {@link #getFrameCount()} - 1
+     * @return The frame number at the index. Frame numbers increase with index.
+     */
+    public int getFrameAt(int index) {
+        return frames[index];
+    }
+
+    /**
+     * 
+     * @param index An index from 0 to {@link #getFrameCount()} - 1
+     * @return The data for the frame at the index
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getFrameDataAt(int index) {
+        return (List<T>) lists[index];
+    }
+
+    /**
+     * 
+     * @return The total number of values in this snapshot
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 
+     * @return The modification count of the store when this snapshot was taken
+     * @see FrameDataStore#getModificationCount()
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Returns an iterator over the lists of data for frames that have data,
+     * in increasing frame order. The iterator does not support removal.
+     * @return an iterator
+     */
+    @Override
+    public Iterator<List<T>> iterator() {
+        return new Iterator<List<T>>() {
+
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < frames.length;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getFrameDataAt(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Snapshots are immutable");
+            }
+        };
+    }
+}
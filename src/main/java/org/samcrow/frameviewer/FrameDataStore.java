@@ -1,16 +1,21 @@
 package org.samcrow.frameviewer;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
-import javafx.beans.InvalidationListener;
-import javafx.beans.Observable;
+import java.util.RandomAccess;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.value.ObservableValueBase;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
 /**
@@ -21,20 +26,80 @@ import javafx.collections.ObservableList;
  * the value's frame will be set to match the frame at which it was added.
  * <p/>
  * This class is observable, so other classes can be notified when it changes.
- * This can be used to keep track of data save status.
+ * This can be used to keep track of data save status. A
+ * {@link FrameDataListener} can also be added to be told exactly which
+ * values were added to or removed from which frames. Many changes can be
+ * grouped with {@link #beginBatch()} and {@link #endBatch()} so that
+ * listeners are notified once.
+ * <p/>
+ * Subclasses may keep only some frames in memory. Such a subclass loads
+ * frames in {@link #beforeAccess(int, int)} with
+ * {@link #loadFrameData(int, java.util.List)} and removes them with
+ * {@link #unloadFrameData(int, int)}. Loading and unloading do not change
+ * the contents of the store, so they are reported to
+ * {@link FrameLoadListener}s and not to frame data listeners.
  * <p/>
  * @param <T> The type of data to store.
  * @author Sam Crow
  */
 public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<FrameDataStore<T>> implements Iterable<List<T>> {
 
-    private final List<List<T>> data = createList();
+    /**
+     * The data for each frame, keyed by frame number. Only frames that have
+     * been accessed have entries, so memory use depends on the number
+     * of frames with data and not on the length of the video.
+     */
+    private final SparseFrameMap<Frame<T>> data = new SparseFrameMap<>();
 
     /**
      * The current frame for which data is returned
      */
     private final IntegerProperty currentFrame = new SimpleIntegerProperty();
 
+    /**
+     * The listeners that are notified of values added and removed
+     */
+    private final List<FrameDataListener<? super T>> frameDataListeners = new ArrayList<>();
+
+    /**
+     * The listeners that are notified of values loaded and unloaded
+     */
+    private final List<FrameLoadListener<? super T>> frameLoadListeners = new ArrayList<>();
+
+    /**
+     * The number of batches that have been started and not ended
+     */
+    private int batchDepth;
+
+    /**
+     * The frames that have changed during the current batch
+     */
+    private BitSet batchFrames = new BitSet();
+
+    /**
+     * Holds the frame that changed outside a batch while listeners are
+     * notified. It is reused so that a single change does not allocate a
+     * set as large as the frame number.
+     */
+    private final BitSet changedFrame = new BitSet();
+
+    /**
+     * The view that was last returned for a frame with no storage, or null.
+     * A view reads through to its frame's storage, so it stays valid after
+     * the frame is changed.
+     */
+    private FrameView lastView;
+
+    /**
+     * The frames that have changed since this store was last marked clean
+     */
+    private final BitSet dirtyFrames = new BitSet();
+
+    /**
+     * The number of changes that have been made to this store
+     */
+    private long modificationCount;
+
     /**
      * Makes a deep copy of another frame data store. Copies each
      * frame's list of markers. The markers themselves are not copied,
@@ -43,19 +108,13 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
      * @param other 
      */
     public FrameDataStore(FrameDataStore<? extends T> other) {
-        // Ensure sufficient space in the frame list
-        fillList(other.getList().size());
-        int frame = 0;
-        for(List<? extends T> frameMarkers : other.getList()) {
-            if(frameMarkers != null) {
-                setFrameData(frame, new LinkedList<>(frameMarkers));
-            }
-            else {
-                setFrameData(frame, new LinkedList<T>());
-            }
-            
-            frame++;
+        other.beforeAccess(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        beginBatch();
+        for(int i = 0; i < other.data.size(); i++) {
+            final int frame = other.data.keyAt(i);
+            setFrameData(frame, new ArrayList<>(other.data.valueAt(i).list));
         }
+        endBatch();
     }
     
     public FrameDataStore() {
@@ -75,47 +134,174 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
 
     public final void setCurrentFrameData(List<T> value) {
         final int frame = getCurrentFrame();
-        fillList(frame);
 
         setFrameData(frame, value);
     }
 
+    /**
+     * Sets the data for a frame. The values in the provided list are copied
+     * into this store's list for the frame, so later changes to the provided
+     * list will not affect this store.
+     * <p/>
+     * @param frame The frame to set data for
+     * @param value The values for the frame. Null is treated as an empty
+     * list.
+     */
     public final void setFrameData(int frame, List<T> value) {
-        fillList(frame);
+        if (value == null) {
+            value = Collections.emptyList();
+        }
+        beforeAccess(frame, frame);
+        final Frame<T> oldFrame = data.get(frame);
+        final List<T> oldValue = oldFrame != null ? oldFrame.list : null;
+        if (oldValue == value || isViewOf(frame, value)) {
+            // The list is already managed by this store
+            return;
+        }
+        if (oldValue == null && value.isEmpty()) {
+            return;
+        }
+        if (!Objects.equals(oldValue, value)) {
+            materialize(frame).list.setAll(value);
+        }
+    }
 
-        if (value instanceof FrameObject) {
-            ((FrameObject) value).setFrame(frame);
+    /**
+     * Returns the list of data for a frame. Changes to the returned list
+     * will be reflected in this store and reported to its listeners.
+     * <p/>
+     * If the frame has no data, this method does not allocate storage for
+     * it. The returned list is a view that is empty until a value is
+     * added, and storage is allocated on the first change. Repeated calls
+     * for the same frame return the same view.
+     * <p/>
+     * @param frame The frame to get data for
+     * @return The data for the frame
+     */
+    public List<T> getFrameData(int frame) {
+        beforeAccess(frame, frame);
+        final Frame<T> frameData = data.get(frame);
+        if (frameData == null) {
+            if (lastView == null || lastView.frame != frame) {
+                lastView = new FrameView(frame);
+            }
+            return lastView;
         }
+        return frameData.list;
+    }
 
+    /**
+     * Returns the storage for a frame, creating it if it does not exist
+     * @param frame The frame
+     * @return The storage for the frame
+     */
+    private Frame<T> materialize(int frame) {
+        beforeAccess(frame, frame);
+        Frame<T> frameData = data.get(frame);
+        if (frameData == null) {
+            frameData = createFrame(frame);
+            data.put(frame, frameData);
+        }
+        return frameData;
+    }
 
-        List<T> oldValue = data.get(frame);
-        if (!Objects.equals(oldValue, value)) {
-            fireValueChangedEvent();
+    /**
+     * Determines if a list is a view returned by {@link #getFrameData(int)}
+     * for a frame of this store
+     * @param frame The frame
+     * @param list The list to check
+     * @return true if the list is a view of the frame
+     */
+    private boolean isViewOf(int frame, List<?> list) {
+        if (list instanceof FrameDataStore.FrameView) {
+            final FrameDataStore<?>.FrameView view = (FrameDataStore<?>.FrameView) list;
+            return view.store() == this && view.frame == frame;
         }
+        return false;
+    }
 
-        data.set(frame, value);
+    /**
+     * Adds a listener to be notified when values are added to or removed
+     * from any frame
+     * <p/>
+     * @param listener The listener to add
+     */
+    public void addFrameDataListener(FrameDataListener<? super T> listener) {
+        frameDataListeners.add(listener);
     }
 
-    public List<T> getFrameData(int frame) {
-        fillList(frame);
+    public void removeFrameDataListener(FrameDataListener<? super T> listener) {
+        frameDataListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener to be notified when values are loaded into memory
+     * or unloaded from memory
+     * <p/>
+     * @param listener The listener to add
+     */
+    public void addFrameLoadListener(FrameLoadListener<? super T> listener) {
+        frameLoadListeners.add(listener);
+    }
+
+    public void removeFrameLoadListener(FrameLoadListener<? super T> listener) {
+        frameLoadListeners.remove(listener);
+    }
 
-        List<T> list = data.get(frame);
-        if (list == null) {
-            list = createList();
-            data.set(frame, list);
+    /**
+     * Called before the data for a range of frames is read or changed.
+     * A subclass that keeps only some frames in memory can override this
+     * method to load the frames. The default implementation does nothing.
+     * <p/>
+     * @param firstFrame The first frame that will be accessed
+     * @param lastFrame The last frame that will be accessed
+     */
+    protected void beforeAccess(int firstFrame, int lastFrame) {
+
+    }
+
+    /**
+     * Stores values for a frame that has no data in memory. Listeners are
+     * not notified of a change and the frame is not marked as changed,
+     * because the values are already part of this store.
+     * <p/>
+     * @param frame The frame to load
+     * @param values The values for the frame. These are copied.
+     * @throws IllegalStateException if the frame already has data in memory
+     */
+    protected final void loadFrameData(int frame, List<? extends T> values) {
+        final Frame<T> existing = data.get(frame);
+        if (existing != null && !existing.values.isEmpty()) {
+            throw new IllegalStateException("Frame " + frame + " is already loaded");
+        }
+        final Frame<T> frameData = createFrame(frame);
+        frameData.values.addAll(values);
+        data.put(frame, frameData);
+        if (!values.isEmpty()) {
+            for (FrameLoadListener<? super T> listener : frameLoadListeners) {
+                listener.valuesLoaded(frame, values);
+            }
         }
-        return list;
     }
 
     /**
-     * Fills the list to ensure that the list has a value for the given index.
-     * Null values will be inserted as necessary.
+     * Removes the data for a range of frames from memory. Listeners are
+     * not notified of a change. Lists previously returned for these frames
+     * are no longer connected to this store.
      * <p/>
-     * @param lastIndex The index to ensure a value for
+     * @param firstFrame The first frame to unload
+     * @param lastFrame The last frame to unload
      */
-    private void fillList(int lastIndex) {
-        while (data.size() < lastIndex + 1) {
-            data.add(null);
+    protected final void unloadFrameData(int firstFrame, int lastFrame) {
+        final int index = data.ceilingIndex(firstFrame);
+        while (index < data.size() && data.keyAt(index) <= lastFrame) {
+            final int frame = data.keyAt(index);
+            final Frame<T> removed = data.removeAt(index);
+            if (!removed.values.isEmpty()) {
+                for (FrameLoadListener<? super T> listener : frameLoadListeners) {
+                    listener.valuesUnloaded(frame, removed.list);
+                }
+            }
         }
     }
 
@@ -132,84 +318,298 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
     }
 
     /**
-     * An invalidation listener that invalidates this data store
+     * Creates a list and configures it to set the frame of values added to
+     * it, to notify frame data listeners, and to invalidate this data store
+     * when it changes
+     * <p/>
+     * @param frame The frame that the list holds data for
+     * @return
      */
-    private InvalidationListener invalidationListener;
+    private Frame<T> createFrame(final int frame) {
+        final CopyOnWriteFrameList<T> values = new CopyOnWriteFrameList<>();
+        final ObservableList<T> list = FXCollections.observableList(values);
+
+        list.addListener(new ListChangeListener<T>() {
+            @Override
+            public void onChanged(ListChangeListener.Change<? extends T> change) {
+                while (change.next()) {
+                    if (change.wasPermutated()) {
+                        continue;
+                    }
+                    if (change.wasRemoved()) {
+                        fireValuesRemoved(frame, change.getFrom(), change.getRemoved());
+                    }
+                    if (change.wasAdded()) {
+                        List<? extends T> added = change.getAddedSubList();
+                        for (T value : added) {
+                            value.setFrame(frame);
+                        }
+                        fireValuesAdded(frame, change.getFrom(), added);
+                    }
+                }
+                frameChanged(frame);
+            }
+        });
+
+        return new Frame<>(values, list);
+    }
 
     /**
-     * Creates a list and configures it to invalidate this data store when it
-     * changes
+     * Starts a batch of changes. Until the matching call to
+     * {@link #endBatch()}, this store will not fire invalidation events.
+     * When the batch ends, one invalidation event is fired and frame data
+     * listeners are told about all the frames that changed.
      * <p/>
-     * @param <T2> The type of element to store in the list
-     * @return
+     * Batches may be nested. Only the end of the outermost batch
+     * fires events.
      */
-    private <T2> List<T2> createList() {
-        ObservableList<T2> list = FXCollections.observableList(new LinkedList<T2>());
+    public void beginBatch() {
+        batchDepth++;
+    }
 
-        if (invalidationListener == null) {
-            invalidationListener = new InvalidationListener() {
-                @Override
-                public void invalidated(Observable o) {
-                    fireValueChangedEvent();
-                }
-            };
+    /**
+     * Ends a batch of changes
+     * @see #beginBatch()
+     */
+    public void endBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch is in progress");
+        }
+        batchDepth--;
+        if (batchDepth == 0 && !batchFrames.isEmpty()) {
+            final BitSet frames = batchFrames;
+            batchFrames = new BitSet();
+            fireFramesChanged(frames);
+        }
+    }
+
+    /**
+     * Adds values to this store in one batch. Each value is added to the
+     * frame returned by its {@link FrameObject#getFrame()} method.
+     * @param values The values to add
+     */
+    public void addAll(Iterable<? extends T> values) {
+        beginBatch();
+        try {
+            for (T value : values) {
+                materialize(value.getFrame()).list.add(value);
+            }
+        }
+        finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Records that the data for a frame has changed, and fires events if no
+     * batch is in progress
+     * @param frame The frame that changed
+     */
+    private void frameChanged(int frame) {
+        dirtyFrames.set(frame);
+        modificationCount++;
+        if (batchDepth > 0) {
+            batchFrames.set(frame);
         }
-        list.addListener(invalidationListener);
+        else if (changedFrame.isEmpty()) {
+            changedFrame.set(frame);
+            try {
+                fireFramesChanged(changedFrame);
+            }
+            finally {
+                changedFrame.clear();
+            }
+        }
+        else {
+            // A listener changed this store while being notified
+            final BitSet frames = new BitSet(frame + 1);
+            frames.set(frame);
+            fireFramesChanged(frames);
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the current contents of this store.
+     * <p/>
+     * Taking a snapshot takes time proportional to the number of frames with
+     * data, not the number of values. Each frame's values are shared with the
+     * snapshot until the frame is next changed, when they are copied.
+     * <p/>
+     * This method must be called on the thread that modifies this store.
+     * The returned snapshot may then be read from any thread while this store
+     * continues to be modified. The values themselves are not copied, so
+     * changes made to the value objects will be visible through the snapshot.
+     * <p/>
+     * @return a snapshot
+     */
+    public FrameDataSnapshot<T> snapshot() {
+        beforeAccess(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return snapshotLoaded();
+    }
+
+    /**
+     * Returns an immutable snapshot of the frames that are loaded, without
+     * loading any others. This is the same as {@link #snapshot()} for a
+     * store that keeps all its frames loaded.
+     * @return a snapshot
+     */
+    protected final FrameDataSnapshot<T> snapshotLoaded() {
+        final int[] frames = new int[data.size()];
+        final List<?>[] lists = new List<?>[data.size()];
+        int count = 0;
+        for (int i = 0; i < data.size(); i++) {
+            final Frame<T> frame = data.valueAt(i);
+            if (!frame.values.isEmpty()) {
+                frames[count] = data.keyAt(i);
+                lists[count] = frame.values.snapshot();
+                count++;
+            }
+        }
+        return new FrameDataSnapshot<>(Arrays.copyOf(frames, count), Arrays.copyOf(lists, count), modificationCount);
+    }
+
+    /**
+     * 
+     * @return The number of changes that have been made to this store.
+     * This can be compared with {@link FrameDataSnapshot#getModificationCount()}
+     * to check whether a snapshot is up to date.
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * 
+     * @return true if any frame has changed since this store was last
+     * marked clean
+     */
+    public boolean hasChanges() {
+        return !dirtyFrames.isEmpty();
+    }
 
-        return list;
+    /**
+     * 
+     * @return A copy of the set of frames that have changed since this store
+     * was last marked clean
+     */
+    public BitSet getDirtyFrames() {
+        return (BitSet) dirtyFrames.clone();
+    }
+
+    /**
+     * Marks all frames as unchanged. This should be called after this store
+     * has been saved.
+     */
+    public void markClean() {
+        dirtyFrames.clear();
+    }
+
+    private void fireFramesChanged(BitSet frames) {
+        for (FrameDataListener<? super T> listener : frameDataListeners) {
+            listener.framesChanged(frames);
+        }
+        fireValueChangedEvent();
+    }
+
+    private void fireValuesAdded(int frame, int index, List<? extends T> values) {
+        for (FrameDataListener<? super T> listener : frameDataListeners) {
+            listener.valuesAdded(frame, index, values);
+        }
+    }
+
+    private void fireValuesRemoved(int frame, int index, List<? extends T> values) {
+        for (FrameDataListener<? super T> listener : frameDataListeners) {
+            listener.valuesRemoved(frame, index, values);
+        }
     }
 
     /**
      * Returns an iterator over all the lists of data for which this data
-     * store has a value. This iterator supports all the optional operations.
+     * store has a value, in increasing frame order. This iterator supports
+     * all the optional operations.
      * <p/>
      * @return an iterator
      */
     @Override
     public Iterator<List<T>> iterator() {
+        return iterator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the lists of data for which this data
+     * store has a value, for frames within a range, in increasing frame order.
+     * This iterator supports all the optional operations.
+     * <p/>
+     * @param firstFrame The first frame to include
+     * @param lastFrame The last frame to include
+     * @return an iterator
+     */
+    public Iterator<List<T>> iterator(int firstFrame, int lastFrame) {
+        beforeAccess(firstFrame, lastFrame);
+        return loadedIterator(firstFrame, lastFrame);
+    }
+
+    /**
+     * Returns the lists of data that are in memory, in increasing frame
+     * order. Unlike {@link #iterator()}, this does not cause any frames to
+     * be loaded. For a store that keeps all its frames in memory, this
+     * is the same as the store itself.
+     * <p/>
+     * This is meant for indexes that are kept up to date with
+     * {@link FrameLoadListener} events.
+     * <p/>
+     * @return The frames in memory
+     */
+    public Iterable<List<T>> loadedFrames() {
+        return new Iterable<List<T>>() {
+            @Override
+            public Iterator<List<T>> iterator() {
+                return loadedIterator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    private Iterator<List<T>> loadedIterator(int firstFrame, final int lastFrame) {
+        final int startIndex = data.ceilingIndex(firstFrame);
         return new Iterator<List<T>>() {
-            private final Iterator<List<T>> dataIterator = data.iterator();
 
-            private List<T> next;
+            /**
+             * The index in the data map of the next value to return
+             */
+            private int index = startIndex;
 
             /**
-             * The index of the element last retrieved from the data iterator
+             * If a value has been returned and not removed
              */
-            private int index = -1;
+            private boolean canRemove = false;
 
             @Override
             public boolean hasNext() {
-                findNext();
-                return next != null;
+                return index < data.size() && data.keyAt(index) <= lastFrame;
             }
 
             @Override
             public List<T> next() {
-                if (next == null) {
+                if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                return next;
+                canRemove = true;
+                return data.valueAt(index++).list;
             }
 
             @Override
             public void remove() {
-                data.set(index, null);
-            }
-
-            /**
-             * Uses the list iterator to find the next non-null value
-             */
-            private void findNext() {
-                while (dataIterator.hasNext()) {
-                    List<T> value = dataIterator.next();
-                    index++;
-                    if (value != null) {
-                        next = value;
-                        return;
-                    }
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                canRemove = false;
+                index--;
+                final int frame = data.keyAt(index);
+                final List<T> removed = data.removeAt(index).list;
+                if (!removed.isEmpty()) {
+                    fireValuesRemoved(frame, 0, removed);
+                    frameChanged(frame);
                 }
-                //Next remains null if no value was found
-                next = null;
             }
         };
     }
@@ -220,12 +620,116 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
     }
 
     /**
-     * 
-     * @return The sets of data that this data store contains
+     * The data for one frame
      */
-    protected List<List<T>> getList() {
-        return data;
+    private static final class Frame<T> {
+
+        /**
+         * The list that holds the values
+         */
+        final CopyOnWriteFrameList<T> values;
+
+        /**
+         * The observable wrapper around the values that is provided to users
+         * of this store
+         */
+        final ObservableList<T> list;
+
+        Frame(CopyOnWriteFrameList<T> values, ObservableList<T> list) {
+            this.values = values;
+            this.list = list;
+        }
     }
-    
 
+    /**
+     * A view of the data for a frame that has no storage allocated.
+     * <p/>
+     * Reads go to the frame's storage if it has been created since this
+     * view was returned, and are otherwise empty. The first change through
+     * this view allocates storage for the frame.
+     */
+    private final class FrameView extends AbstractList<T> implements RandomAccess {
+
+        final int frame;
+
+        FrameView(int frame) {
+            this.frame = frame;
+        }
+
+        FrameDataStore<T> store() {
+            return FrameDataStore.this;
+        }
+
+        /**
+         * @return The list of values for the frame, or an empty list if
+         * the frame has no storage
+         */
+        private List<T> target() {
+            final Frame<T> frameData = data.get(frame);
+            if (frameData == null) {
+                return Collections.emptyList();
+            }
+            return frameData.list;
+        }
+
+        /**
+         * @return The list of values for the frame, allocating storage
+         * if necessary
+         */
+        private List<T> writeTarget() {
+            return materialize(frame).list;
+        }
+
+        @Override
+        public T get(int index) {
+            return target().get(index);
+        }
+
+        @Override
+        public int size() {
+            return target().size();
+        }
+
+        @Override
+        public T set(int index, T element) {
+            return writeTarget().set(index, element);
+        }
+
+        @Override
+        public void add(int index, T element) {
+            writeTarget().add(index, element);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends T> c) {
+            if (c.isEmpty()) {
+                return false;
+            }
+            return writeTarget().addAll(index, c);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends T> c) {
+            return addAll(size(), c);
+        }
+
+        @Override
+        public T remove(int index) {
+            return writeTarget().remove(index);
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            if (fromIndex < toIndex) {
+                writeTarget().subList(fromIndex, toIndex).clear();
+            }
+        }
+
+        @Override
+        public void clear() {
+            if (!isEmpty()) {
+                writeTarget().clear();
+            }
+        }
+    }
 }
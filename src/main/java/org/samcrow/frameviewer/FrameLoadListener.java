@@ -0,0 +1,32 @@
+package org.samcrow.frameviewer;
+
+import java.util.List;
+
+/**
+ * An interface for something that is notified when a {@link FrameDataStore}
+ * moves values into or out of memory. Loading and unloading do not change
+ * the contents of the store, so they are not reported to
+ * {@link FrameDataListener}s. Indexes of the values in memory should listen
+ * for both kinds of events.
+ * <p/>
+ * @param <T> The type of value stored
+ * @author Sam Crow
+ */
+public interface FrameLoadListener<T> {
+
+    /**
+     * Called when the values for a frame have been loaded into memory
+     * @param frame The frame that was loaded
+     * @param values The values for the frame, in list order. This list
+     * must not be modified or retained.
+     */
+    void valuesLoaded(int frame, List<? extends T> values);
+
+    /**
+     * Called when the values for a frame have been removed from memory
+     * @param frame The frame that was unloaded
+     * @param values The values that were removed, in list order. This list
+     * must not be modified or retained.
+     */
+    void valuesUnloaded(int frame, List<? extends T> values);
+}
@@ -0,0 +1,207 @@
+package org.samcrow.frameviewer;
+
+import java.util.Arrays;
+
+/**
+ * Maps frame numbers to values. Only frames that have values use memory,
+ * so a value at a large frame number does not require space for every
+ * frame before it.
+ * <p/>
+ * Frame numbers are stored in a sorted array and found with a binary search.
+ * Iterating with {@link #keyAt(int)} and {@link #valueAt(int)} visits frames
+ * in increasing order.
+ * <p/>
+ * This class is not thread-safe.
+ * @param <V> The type of value to store
+ * @author Sam Crow
+ */
+public class SparseFrameMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The frame numbers that have values, in increasing order.
+     * Only the first {@link #size} elements are used.
+     */
+    private int[] keys;
+
+    /**
+     * The value for each frame number in {@link #keys}
+     */
+    private Object[] values;
+
+    private int size;
+
+    public SparseFrameMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param initialCapacity The number of frames that this map can hold
+     * before it needs to expand
+     */
+    public SparseFrameMap(int initialCapacity) {
+        keys = new int[Math.max(initialCapacity, 1)];
+        values = new Object[keys.length];
+    }
+
+    /**
+     * Makes a copy of another map. The values themselves are not copied.
+     * @param other The map to copy
+     */
+    public SparseFrameMap(SparseFrameMap<? extends V> other) {
+        keys = Arrays.copyOf(other.keys, Math.max(other.size, 1));
+        values = Arrays.copyOf(other.values, keys.length);
+        size = other.size;
+    }
+
+    /**
+     * 
+     * @param frame The frame to get a value for
+     * @return The value for the frame, or null if the frame has no value
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int frame) {
+        int index = indexOfKey(frame);
+        if (index < 0) {
+            return null;
+        }
+        return (V) values[index];
+    }
+
+    /**
+     * Sets the value for a frame
+     * @param frame The frame to set the value for
+     * @param value The value
+     * @return The value previously associated with the frame, or null if none
+     * existed
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int frame, V value) {
+        int index = indexOfKey(frame);
+        if (index >= 0) {
+            V oldValue = (V) values[index];
+            values[index] = value;
+            return oldValue;
+        }
+        index = -(index + 1);
+
+        if (size == keys.length) {
+            int newCapacity = keys.length + (keys.length >> 1) + 1;
+            keys = Arrays.copyOf(keys, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+        // Markers are usually added in increasing frame order, so this copy
+        // is usually empty
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = frame;
+        values[index] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes the value for a frame
+     * @param frame The frame to remove
+     * @return The value that was removed, or null if the frame had no value
+     */
+    public V remove(int frame) {
+        int index = indexOfKey(frame);
+        if (index < 0) {
+            return null;
+        }
+        return removeAt(index);
+    }
+
+    /**
+     * Removes the entry at an index
+     * @param index The index of the entry, from 0 to {@link #size()} - 1
+     * @return The value that was removed
+     */
+    @SuppressWarnings("unchecked")
+    public V removeAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        V oldValue = (V) values[index];
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        values[size] = null;
+        return oldValue;
+    }
+
+    /**
+     * Finds the index of a frame
+     * @param frame The frame to find
+     * @return The index of the frame if it has a value. Otherwise,
+     * (-(insertion point) - 1), as returned by
+     * {@link Arrays#binarySearch(int[], int, int, int)}.
+     */
+    public int indexOfKey(int frame) {
+        // Fast path for appending at the end
+        if (size == 0 || frame > keys[size - 1]) {
+            return -(size + 1);
+        }
+        return Arrays.binarySearch(keys, 0, size, frame);
+    }
+
+    /**
+     * 
+     * @param frame A frame number
+     * @return The index of the first entry whose frame is greater than or
+     * equal to the provided frame. This is equal to {@link #size()} if
+     * no such entry exists.
+     */
+    public int ceilingIndex(int frame) {
+        int index = indexOfKey(frame);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        return index;
+    }
+
+    /**
+     * 
+     * @param index The index of an entry, from 0 to {@link #size()} - 1
+     * @return The frame number of the entry at the index
+     */
+    public int keyAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return keys[index];
+    }
+
+    /**
+     * 
+     * @param index The index of an entry, from 0 to {@link #size()} - 1
+     * @return The value of the entry at the index
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return (V) values[index];
+    }
+
+    /**
+     * 
+     * @return The number of frames that have values
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
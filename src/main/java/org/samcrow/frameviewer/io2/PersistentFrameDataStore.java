@@ -48,8 +48,7 @@ public class PersistentFrameDataStore <T extends Marker> extends FrameDataStore<
         //Extract an array of markers
         //Move all the sublists out into a new, outer, list
         final List<T> outerList = new LinkedList<>();
-        final List<List<T>> composite = getList();
-        for (List<T> subList : composite) {
+        for (List<T> subList : this) {
             if(subList != null) {
                 for (T value : subList) {
                     outerList.add(value);
@@ -0,0 +1,268 @@
+package org.samcrow.frameviewer.io3;
+
+import com.google.common.collect.AbstractIterator;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import org.samcrow.frameviewer.FrameDataListener;
+import org.samcrow.frameviewer.FrameLoadListener;
+import org.samcrow.frameviewer.FrameDataStore;
+
+/**
+ * Indexes the markers in a data store by ant ID and frame.
+ * <p>
+ * The index is kept up to date as markers are added to and removed from
+ * the store. It can be used to find the positions of one ant over a range
+ * of frames, and to iterate over all markers sorted by ant ID and then
+ * frame without sorting them.
+ * <p>
+ * Markers are indexed with the ant ID that they have when they are added.
+ * If the ant ID of a marker is changed while it is in the store, the marker
+ * must be removed and added again (as {@link org.samcrow.frameviewer.ui.FrameCanvas}
+ * does when a marker is edited).
+ * <p>
+ * @author Sam Crow
+ * @param <T> The type of marker to index
+ */
+public class AntTrajectoryIndex<T extends Marker> implements FrameDataListener<T>, FrameLoadListener<T>, Iterable<T> {
+
+    /**
+     * Maps each ant ID to a map from frame numbers to the markers for that
+     * ant at that frame
+     */
+    private final NavigableMap<Integer, NavigableMap<Integer, List<T>>> ants = new TreeMap<>();
+
+    /**
+     * The number of markers in this index
+     */
+    private int size;
+
+    /**
+     * Creates an index of the markers that a store has in memory, and
+     * configures it to update when the store changes
+     * @param store The store to index
+     */
+    public AntTrajectoryIndex(FrameDataStore<T> store) {
+        for (List<T> frameMarkers : store.loadedFrames()) {
+            for (T marker : frameMarkers) {
+                add(marker.getFrame(), marker);
+            }
+        }
+        store.addFrameDataListener(this);
+        store.addFrameLoadListener(this);
+    }
+
+    @Override
+    public void valuesAdded(int frame, int index, List<? extends T> values) {
+        for (T marker : values) {
+            add(frame, marker);
+        }
+    }
+
+    @Override
+    public void valuesRemoved(int frame, int index, List<? extends T> values) {
+        for (T marker : values) {
+            remove(frame, marker);
+        }
+    }
+
+    @Override
+    public void framesChanged(BitSet frames) {
+        // Nothing to do; the index was updated as values were added and removed
+    }
+
+    @Override
+    public void valuesLoaded(int frame, List<? extends T> values) {
+        valuesAdded(frame, 0, values);
+    }
+
+    @Override
+    public void valuesUnloaded(int frame, List<? extends T> values) {
+        valuesRemoved(frame, 0, values);
+    }
+
+    private void add(int frame, T marker) {
+        NavigableMap<Integer, List<T>> frames = ants.get(marker.getAntId());
+        if (frames == null) {
+            frames = new TreeMap<>();
+            ants.put(marker.getAntId(), frames);
+        }
+        List<T> markers = frames.get(frame);
+        if (markers == null) {
+            markers = new ArrayList<>(1);
+            frames.put(frame, markers);
+        }
+        markers.add(marker);
+        size++;
+    }
+
+    private void remove(int frame, T marker) {
+        if (remove(marker.getAntId(), frame, marker)) {
+            return;
+        }
+        // The ant ID of the marker may have been changed after it was added.
+        // Look for it under every ant.
+        for (Integer antId : new ArrayList<>(ants.keySet())) {
+            if (remove(antId, frame, marker)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a marker from the index
+     * @return true if the marker was found and removed
+     */
+    private boolean remove(int antId, int frame, T marker) {
+        final NavigableMap<Integer, List<T>> frames = ants.get(antId);
+        if (frames == null) {
+            return false;
+        }
+        final List<T> markers = frames.get(frame);
+        if (markers == null) {
+            return false;
+        }
+        // Markers are compared by identity
+        for (Iterator<T> iterator = markers.iterator(); iterator.hasNext();) {
+            if (iterator.next() == marker) {
+                iterator.remove();
+                size--;
+                if (markers.isEmpty()) {
+                    frames.remove(frame);
+                    if (frames.isEmpty()) {
+                        ants.remove(antId);
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @return The IDs of all ants that have markers, in increasing order
+     */
+    public SortedSet<Integer> getAntIds() {
+        return Collections.unmodifiableSortedSet(ants.navigableKeySet());
+    }
+
+    /**
+     * Returns the markers for an ant within a range of frames
+     * @param antId The ID of the ant
+     * @param firstFrame The first frame to include
+     * @param lastFrame The last frame to include
+     * @return The markers for the ant, in frame order
+     */
+    public List<T> getTrajectory(int antId, int firstFrame, int lastFrame) {
+        final NavigableMap<Integer, List<T>> frames = ants.get(antId);
+        if (frames == null || firstFrame > lastFrame) {
+            return Collections.emptyList();
+        }
+        final List<T> trajectory = new ArrayList<>();
+        for (List<T> markers : frames.subMap(firstFrame, true, lastFrame, true).values()) {
+            trajectory.addAll(markers);
+        }
+        return trajectory;
+    }
+
+    /**
+     * Returns an iterator over the markers for an ant within a range of
+     * frames. The iterator does not support removal, and it must not be
+     * used after the store has been modified.
+     * @param antId The ID of the ant
+     * @param firstFrame The first frame to include
+     * @param lastFrame The last frame to include
+     * @return an iterator over the markers, in frame order
+     */
+    public Iterator<T> iterator(int antId, int firstFrame, int lastFrame) {
+        final NavigableMap<Integer, List<T>> frames = ants.get(antId);
+        if (frames == null || firstFrame > lastFrame) {
+            return Collections.emptyIterator();
+        }
+        final Iterator<List<T>> frameIterator = frames.subMap(firstFrame, true, lastFrame, true).values().iterator();
+        return new AbstractIterator<T>() {
+
+            private Iterator<T> markerIterator = Collections.emptyIterator();
+
+            @Override
+            protected T computeNext() {
+                while (!markerIterator.hasNext()) {
+                    if (!frameIterator.hasNext()) {
+                        return endOfData();
+                    }
+                    markerIterator = frameIterator.next().iterator();
+                }
+                return markerIterator.next();
+            }
+        };
+    }
+
+    /**
+     * Returns all the markers for an ant
+     * @param antId The ID of the ant
+     * @return The markers for the ant, in frame order
+     */
+    public List<T> getTrajectory(int antId) {
+        return getTrajectory(antId, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 
+     * @return The number of markers in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an iterator over all indexed markers, sorted by ant ID and
+     * then by frame. The iterator does not support removal, and it
+     * must not be used after the store has been modified.
+     * @return an iterator
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+
+            private final Iterator<NavigableMap<Integer, List<T>>> antIterator = ants.values().iterator();
+
+            private Iterator<List<T>> frameIterator = Collections.emptyIterator();
+
+            private Iterator<T> markerIterator = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!markerIterator.hasNext()) {
+                    while (!frameIterator.hasNext()) {
+                        if (!antIterator.hasNext()) {
+                            return false;
+                        }
+                        frameIterator = antIterator.next().values().iterator();
+                    }
+                    markerIterator = frameIterator.next().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return markerIterator.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Not supported");
+            }
+        };
+    }
+}
@@ -0,0 +1,653 @@
+package org.samcrow.frameviewer.io3;
+
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes markers in the version 4 binary format.
+ * <p>
+ * A file starts with {@link #MAGIC} and the version number, followed by
+ * dictionaries of the names of the {@link AntActivity},
+ * {@link AntLocation}, and {@link InteractionMarker.InteractionType}
+ * values. Markers refer to these values by their index in the
+ * dictionaries, so files stay readable if values are added or reordered.
+ * <p>
+ * The markers follow in blocks of up to {@link #BLOCK_ROWS} markers,
+ * in frame order. Each block has a header with the number of markers,
+ * the first and last frames, the length of the encoded markers, and a
+ * CRC-32 checksum of the encoded markers. Within a block, each field is
+ * stored as a column. Frame numbers are stored as differences from the
+ * previous frame. Integers are stored as zig-zag variable-length
+ * integers, so small values take one byte.
+ * <p>
+ * After the blocks is an index with the offset and frame range of each
+ * block, then the offset of the index and {@link #INDEX_MAGIC}.
+ * <p>
+ * All fixed-size integers are big-endian.
+ * @author Sam Crow
+ */
+final class BinaryMarkerFormat {
+
+    /**
+     * The bytes at the start of every binary marker file. The first byte
+     * is not valid ASCII, so a binary file is never mistaken for a CSV file.
+     */
+    static final byte[] MAGIC = { (byte) 0x89, 'F', 'V', 'M' };
+
+    /**
+     * The version number written after the magic bytes
+     */
+    static final int VERSION = 4;
+
+    /**
+     * The bytes at the end of every complete binary marker file
+     */
+    static final byte[] INDEX_MAGIC = { 'F', 'V', 'M', 'I' };
+
+    /**
+     * The maximum number of markers in a block
+     */
+    static final int BLOCK_ROWS = 4096;
+
+    private static final byte BLOCK_TAG = 1;
+    private static final byte INDEX_TAG = 2;
+
+    private BinaryMarkerFormat() {
+    }
+
+    /**
+     * Determines if some bytes start with {@link #MAGIC}
+     * @param bytes The bytes to check
+     * @param length The number of valid bytes
+     * @return true if the bytes start with the magic bytes
+     */
+    static boolean hasMagic(byte[] bytes, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes markers to a stream in the binary format. Markers must be
+     * added in frame order. The index is written when this writer is closed.
+     */
+    static final class Writer implements Closeable {
+
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+
+        /**
+         * The markers in the block that has not yet been written
+         */
+        private final MarkerTable block = new MarkerTable(BLOCK_ROWS);
+
+        /**
+         * Holds the encoded markers of a block
+         */
+        private final ByteSink payload = new ByteSink();
+
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * The blocks that have been written
+         */
+        private final List<BlockInfo> blocks = new ArrayList<>();
+
+        private int lastFrame = Integer.MIN_VALUE;
+
+        /**
+         * Creates a writer and writes the file header
+         * @param stream The stream to write to. This should be buffered.
+         * It is closed when this writer is closed.
+         * @throws IOException
+         */
+        Writer(OutputStream stream) throws IOException {
+            counter = new CountingOutputStream(stream);
+            out = new DataOutputStream(counter);
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            writeDictionary(AntActivity.values());
+            writeDictionary(AntLocation.values());
+            writeDictionary(InteractionMarker.InteractionType.values());
+        }
+
+        private void writeDictionary(Enum<?>[] values) throws IOException {
+            out.writeInt(values.length);
+            for (Enum<?> value : values) {
+                out.writeUTF(value.name());
+            }
+        }
+
+        /**
+         * Adds a marker
+         * @param marker The marker to add. Its frame must not be less than
+         * the frame of the previous marker.
+         * @throws IOException
+         */
+        void add(Marker marker) throws IOException {
+            if (marker.getFrame() < lastFrame) {
+                throw new IllegalArgumentException("Marker at frame " + marker.getFrame() + " added after frame " + lastFrame);
+            }
+            lastFrame = marker.getFrame();
+            block.add(marker);
+            if (block.size() == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Ends the current block, so that the next marker starts a new
+         * block. This can be used to keep markers from different sources
+         * in separate blocks.
+         * @throws IOException
+         */
+        void endBlock() throws IOException {
+            writeBlock();
+        }
+
+        private void writeBlock() throws IOException {
+            final int rows = block.size();
+            if (rows == 0) {
+                return;
+            }
+            payload.reset();
+            int previousFrame = block.getFrame(0);
+            for (int row = 0; row < rows; row++) {
+                final int frame = block.getFrame(row);
+                payload.writeSignedVarint(frame - previousFrame);
+                previousFrame = frame;
+            }
+            for (int row = 0; row < rows; row++) {
+                payload.writeSignedVarint(block.getAntId(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                payload.writeSignedVarint(block.getX(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                payload.writeSignedVarint(block.getY(row));
+            }
+            for (int row = 0; row < rows; row++) {
+                payload.writeByte(block.getFocusAntActivity(row).ordinal());
+            }
+            for (int row = 0; row < rows; row++) {
+                payload.writeByte(block.getFocusAntLocation(row).ordinal());
+            }
+            for (int row = 0; row < rows; row++) {
+                // 0 for markers that are not interactions
+                payload.writeByte(block.isInteraction(row) ? block.getInteractionType(row).ordinal() + 1 : 0);
+            }
+            for (int row = 0; row < rows; row++) {
+                if (block.isInteraction(row)) {
+                    payload.writeByte(block.getMetAntActivity(row).ordinal());
+                    payload.writeByte(block.getMetAntLocation(row).ordinal());
+                    payload.writeSignedVarint(block.getMetAntId(row));
+                }
+            }
+
+            crc.reset();
+            crc.update(payload.bytes, 0, payload.length);
+
+            final BlockInfo info = new BlockInfo(counter.getCount(), block.getFrame(0), block.getFrame(rows - 1), rows);
+            out.writeByte(BLOCK_TAG);
+            out.writeInt(rows);
+            out.writeInt(info.firstFrame);
+            out.writeInt(info.lastFrame);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload.bytes, 0, payload.length);
+            blocks.add(info);
+            block.clear();
+        }
+
+        /**
+         * Writes the last block and the index, and closes the stream
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBlock();
+                final long indexOffset = counter.getCount();
+                out.writeByte(INDEX_TAG);
+                out.writeInt(blocks.size());
+                for (BlockInfo info : blocks) {
+                    out.writeLong(info.offset);
+                    out.writeInt(info.firstFrame);
+                    out.writeInt(info.lastFrame);
+                    out.writeInt(info.rows);
+                }
+                out.writeLong(indexOffset);
+                out.write(INDEX_MAGIC);
+                out.flush();
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all the markers from a stream in the binary format
+     * @param stream The stream to read from. This should be buffered.
+     * @return A table containing the markers, in file order
+     * @throws IOException if the stream could not be read, or a block
+     * checksum does not match
+     * @throws ParseException if the stream is not a binary marker file
+     */
+    static MarkerTable read(InputStream stream) throws IOException, ParseException {
+        final DataInputStream in = new DataInputStream(stream);
+        final Dictionaries dictionaries = readHeader(in);
+        final MarkerTable table = new MarkerTable();
+        final BlockDecoder decoder = new BlockDecoder(dictionaries);
+        long blockNumber = 0;
+        while (true) {
+            final int tag = in.read();
+            if (tag == INDEX_TAG) {
+                // The index is not needed when reading every block
+                break;
+            }
+            if (tag != BLOCK_TAG) {
+                if (tag == -1) {
+                    throw new EOFException("File ends without an index after " + blockNumber + " blocks");
+                }
+                throw new ParseException("Unexpected tag " + tag + " after " + blockNumber + " blocks", 0);
+            }
+            decoder.readBlock(in, table);
+            blockNumber++;
+        }
+        return table;
+    }
+
+    /**
+     * Reads the header of a file
+     * @param channel The file to read from
+     * @return The dictionaries
+     * @throws IOException
+     * @throws ParseException if the file is not a version 4 binary file
+     */
+    static Dictionaries readHeader(FileChannel channel) throws IOException, ParseException {
+        channel.position(0);
+        return readHeader(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 4096)));
+    }
+
+    /**
+     * Reads the block index at the end of a file
+     * @param channel The file to read from
+     * @return Information about each block, in file order
+     * @throws IOException
+     * @throws ParseException if the file does not end with a valid index
+     */
+    static List<BlockInfo> readIndex(FileChannel channel) throws IOException, ParseException {
+        final long size = channel.size();
+        final ByteBuffer trailer = ByteBuffer.allocate(8 + INDEX_MAGIC.length);
+        if (size < trailer.capacity()) {
+            throw new ParseException("File is too short to have an index", 0);
+        }
+        readFully(channel, trailer, size - trailer.capacity());
+        final long indexOffset = trailer.getLong();
+        final byte[] magic = new byte[INDEX_MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC) || indexOffset < 0 || indexOffset >= size - trailer.capacity()) {
+            throw new ParseException("File does not end with an index", (int) Math.min(size, Integer.MAX_VALUE));
+        }
+
+        final ByteBuffer index = ByteBuffer.allocate((int) (size - trailer.capacity() - indexOffset));
+        readFully(channel, index, indexOffset);
+        try {
+            if (index.get() != INDEX_TAG) {
+                throw new ParseException("Invalid index tag", (int) indexOffset);
+            }
+            final int count = index.getInt();
+            if (count < 0) {
+                throw new ParseException("Invalid block count " + count, (int) indexOffset);
+            }
+            final List<BlockInfo> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new BlockInfo(index.getLong(), index.getInt(), index.getInt(), index.getInt()));
+            }
+            return blocks;
+        }
+        catch (BufferUnderflowException ex) {
+            throw new ParseException("Index is truncated", (int) indexOffset);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads consecutive blocks from a file
+     * @param channel The file to read from
+     * @param offset The offset of the first block, from its {@link BlockInfo}
+     * @param count The number of blocks to read
+     * @param decoder The decoder to use
+     * @param table The table to add the markers to
+     * @throws IOException if the blocks could not be read or a checksum
+     * does not match
+     * @throws ParseException if a block is not valid
+     */
+    static void readBlocks(FileChannel channel, long offset, int count, BlockDecoder decoder, MarkerTable table) throws IOException, ParseException {
+        channel.position(offset);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+        for (int i = 0; i < count; i++) {
+            final int tag = in.read();
+            if (tag != BLOCK_TAG) {
+                throw new ParseException("Expected a block at offset " + offset + ", found tag " + tag, 0);
+            }
+            decoder.readBlock(in, table);
+        }
+    }
+
+    /**
+     * Reads the magic bytes, version, and dictionaries
+     * @param in The stream to read from
+     * @return The dictionaries
+     * @throws IOException
+     * @throws ParseException if the file is not a version 4 binary file or
+     * refers to values that are not known
+     */
+    static Dictionaries readHeader(DataInputStream in) throws IOException, ParseException {
+        final byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new ParseException("Not a binary marker file", 0);
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new ParseException("Invalid version number " + version, MAGIC.length);
+        }
+        return new Dictionaries(
+                readDictionary(in, AntActivity.values()),
+                readDictionary(in, AntLocation.values()),
+                readDictionary(in, InteractionMarker.InteractionType.values()));
+    }
+
+    /**
+     * Reads a dictionary of enumeration names
+     * @return An array mapping indices in the file to ordinals
+     */
+    private static byte[] readDictionary(DataInputStream in, Enum<?>[] values) throws IOException, ParseException {
+        final int count = in.readInt();
+        if (count < 0 || count > Byte.MAX_VALUE) {
+            throw new ParseException("Invalid dictionary size " + count, 0);
+        }
+        final byte[] ordinals = new byte[count];
+        for (int i = 0; i < count; i++) {
+            final String name = in.readUTF();
+            int ordinal = -1;
+            for (Enum<?> value : values) {
+                if (value.name().equals(name)) {
+                    ordinal = value.ordinal();
+                    break;
+                }
+            }
+            if (ordinal == -1) {
+                throw new ParseException("Unknown value \"" + name + "\" in dictionary", 0);
+            }
+            ordinals[i] = (byte) ordinal;
+        }
+        return ordinals;
+    }
+
+    /**
+     * Maps the enumeration indices in a file to the ordinals of the
+     * enumerations
+     */
+    static final class Dictionaries {
+        final byte[] activities;
+        final byte[] locations;
+        final byte[] interactionTypes;
+
+        Dictionaries(byte[] activities, byte[] locations, byte[] interactionTypes) {
+            this.activities = activities;
+            this.locations = locations;
+            this.interactionTypes = interactionTypes;
+        }
+    }
+
+    /**
+     * The location and frame range of a block
+     */
+    static final class BlockInfo {
+        /**
+         * The offset in the file of the block's tag
+         */
+        final long offset;
+        final int firstFrame;
+        final int lastFrame;
+        final int rows;
+
+        BlockInfo(long offset, int firstFrame, int lastFrame, int rows) {
+            this.offset = offset;
+            this.firstFrame = firstFrame;
+            this.lastFrame = lastFrame;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Decodes blocks. The buffers used for decoding are reused between blocks.
+     */
+    static final class BlockDecoder {
+
+        private final Dictionaries dictionaries;
+        private final CRC32 crc = new CRC32();
+        private final ByteSource source = new ByteSource();
+        private byte[] payload = new byte[0];
+        private int[] frames = new int[0];
+        private int[] antIds = new int[0];
+        private int[] xs = new int[0];
+        private int[] ys = new int[0];
+
+        BlockDecoder(Dictionaries dictionaries) {
+            this.dictionaries = dictionaries;
+        }
+
+        /**
+         * Reads one block, after its tag, and adds its markers to a table
+         * @param in The stream to read from
+         * @param table The table to add to
+         * @throws IOException if the block could not be read or its
+         * checksum does not match
+         * @throws ParseException if the block is not valid
+         */
+        void readBlock(DataInputStream in, MarkerTable table) throws IOException, ParseException {
+            final int rows = in.readInt();
+            final int firstFrame = in.readInt();
+            final int lastFrame = in.readInt();
+            final int length = in.readInt();
+            final int expectedCrc = in.readInt();
+            if (rows < 0 || length < 0 || lastFrame < firstFrame) {
+                throw new ParseException("Invalid block header", 0);
+            }
+            if (payload.length < length) {
+                payload = new byte[length];
+            }
+            in.readFully(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch in block of frames " + firstFrame + " to " + lastFrame);
+            }
+            decode(rows, firstFrame, length, table);
+        }
+
+        private void decode(int rows, int firstFrame, int length, MarkerTable table) throws ParseException {
+            if (frames.length < rows) {
+                frames = new int[rows];
+                antIds = new int[rows];
+                xs = new int[rows];
+                ys = new int[rows];
+            }
+            source.reset(payload, length);
+            int frame = firstFrame;
+            for (int row = 0; row < rows; row++) {
+                frame += source.readSignedVarint();
+                frames[row] = frame;
+            }
+            for (int row = 0; row < rows; row++) {
+                antIds[row] = source.readSignedVarint();
+            }
+            for (int row = 0; row < rows; row++) {
+                xs[row] = source.readSignedVarint();
+            }
+            for (int row = 0; row < rows; row++) {
+                ys[row] = source.readSignedVarint();
+            }
+            final int activityStart = source.skip(rows);
+            final int locationStart = source.skip(rows);
+            final int typeStart = source.skip(rows);
+            for (int row = 0; row < rows; row++) {
+                final byte activity = lookup(dictionaries.activities, payload[activityStart + row]);
+                final byte location = lookup(dictionaries.locations, payload[locationStart + row]);
+                final int typeIndex = payload[typeStart + row] & 0xFF;
+                if (typeIndex == 0) {
+                    table.add(antIds[row], frames[row], xs[row], ys[row], activity, location,
+                            MarkerTable.NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+                }
+                else {
+                    final byte type = lookup(dictionaries.interactionTypes, (byte) (typeIndex - 1));
+                    final byte metActivity = lookup(dictionaries.activities, source.readByte());
+                    final byte metLocation = lookup(dictionaries.locations, source.readByte());
+                    final int metAntId = source.readSignedVarint();
+                    table.add(antIds[row], frames[row], xs[row], ys[row], activity, location,
+                            type, metActivity, metLocation, metAntId);
+                }
+            }
+            if (source.position != length) {
+                throw new ParseException("Block has " + (length - source.position) + " extra bytes", 0);
+            }
+        }
+
+        private static byte lookup(byte[] dictionary, byte index) throws ParseException {
+            final int i = index & 0xFF;
+            if (i >= dictionary.length) {
+                throw new ParseException("Dictionary index " + i + " out of range", 0);
+            }
+            return dictionary[i];
+        }
+    }
+
+    /**
+     * A growable byte array with methods for writing variable-length
+     * integers
+     */
+    private static final class ByteSink {
+
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void writeByte(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        /**
+         * Writes an unsigned variable-length integer, 7 bits per byte with
+         * the high bit set on all bytes except the last
+         */
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        /**
+         * Writes a signed integer in zig-zag encoding, so that values near
+         * zero use few bytes
+         */
+        void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+    }
+
+    /**
+     * Reads variable-length integers from a byte array
+     */
+    private static final class ByteSource {
+
+        private byte[] bytes;
+        private int limit;
+        int position;
+
+        void reset(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+            this.position = 0;
+        }
+
+        byte readByte() throws ParseException {
+            if (position >= limit) {
+                throw new ParseException("Block is truncated", position);
+            }
+            return bytes[position++];
+        }
+
+        /**
+         * Skips some bytes
+         * @return The position of the first skipped byte
+         */
+        int skip(int count) throws ParseException {
+            if (limit - position < count) {
+                throw new ParseException("Block is truncated", position);
+            }
+            final int start = position;
+            position += count;
+            return start;
+        }
+
+        int readVarint() throws ParseException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ParseException("Variable-length integer is too long", position);
+        }
+
+        int readSignedVarint() throws ParseException {
+            final int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
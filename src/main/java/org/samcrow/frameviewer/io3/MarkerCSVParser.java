@@ -0,0 +1,454 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Reads version 3 marker CSV lines directly from bytes.
+ * <p>
+ * Each line is scanned once. Integers are parsed from the bytes without
+ * creating strings, and enumeration names are looked up in tables of
+ * encoded names that are built once. Parsed lines are added to
+ * a {@link MarkerTable}, so no objects are created per line.
+ * <p>
+ * Lines can be read from a stream, or parsed from a {@link ByteBuffer}
+ * such as a buffer mapped from a file.
+ * <p>
+ * A line has the fields
+ * <code>ant,frame,x,y,activity,location,type,metActivity,metLocation,metAnt</code>.
+ * The last four fields are empty for markers that are not interactions.
+ * Lines written before the met ant ID was added have no final field.
+ * <p>
+ * This class is not thread-safe.
+ * @author Sam Crow
+ */
+final class MarkerCSVParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final byte[][] ACTIVITY_NAMES = encodeNames(AntActivity.values());
+    static final byte[][] LOCATION_NAMES = encodeNames(AntLocation.values());
+    static final byte[][] INTERACTION_TYPE_NAMES = encodeNames(InteractionMarker.InteractionType.values());
+
+    private final InputStream in;
+
+    /**
+     * Holds bytes that have been read and not yet parsed
+     */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * A byte buffer that wraps the buffer array
+     */
+    private ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+
+    /**
+     * The index in the buffer of the first byte that has not been parsed
+     */
+    private int position;
+
+    /**
+     * The number of valid bytes in the buffer
+     */
+    private int limit;
+
+    /**
+     * The offset in the stream of the first byte in the buffer
+     */
+    private long bufferOffset;
+
+    /**
+     * True if the end of the stream has been reached
+     */
+    private boolean endOfInput;
+
+    /**
+     * The number of lines that have been read
+     */
+    private int lineNumber;
+
+    /**
+     * Constructor
+     * @param in The stream to read from. This parser does its own buffering,
+     * so the stream does not need to be buffered.
+     */
+    MarkerCSVParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a line as text. This is used for header lines.
+     * @return The line, without its line terminator, or null if the end
+     * of the stream has been reached
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+        final int end = nextLineEnd();
+        if (end == -1) {
+            return null;
+        }
+        final String line = new String(buffer, position, trimEnd(bufferView, position, end) - position, StandardCharsets.UTF_8);
+        advancePast(end);
+        return line;
+    }
+
+    /**
+     *
+     * @return The offset in the stream of the first byte that has not been
+     * read as part of a line
+     */
+    long getOffset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Reads all the remaining lines as markers and adds them to a table
+     * @param table The table to add markers to
+     * @throws IOException if the stream could not be read
+     * @throws ParseException if a line is not a valid marker
+     */
+    void readMarkers(MarkerTable table) throws IOException, ParseException {
+        int end;
+        while ((end = nextLineEnd()) != -1) {
+            parseLine(bufferView, position, trimEnd(bufferView, position, end), table, lineNumber + 1);
+            advancePast(end);
+        }
+    }
+
+    /**
+     * Reads the next line as a marker and adds it to a table
+     * @param table The table to add the marker to
+     * @return false if there are no more lines
+     * @throws IOException if the stream could not be read
+     * @throws ParseException if the line is not a valid marker
+     */
+    boolean readMarker(MarkerTable table) throws IOException, ParseException {
+        final int end = nextLineEnd();
+        if (end == -1) {
+            return false;
+        }
+        parseLine(bufferView, position, trimEnd(bufferView, position, end), table, lineNumber + 1);
+        advancePast(end);
+        return true;
+    }
+
+    /**
+     *
+     * @return The number of lines that have been read
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Finds the end of the next line, reading more data if necessary
+     * @return The index in the buffer of the newline that ends the next line,
+     * or the buffer limit if the last line has no newline, or -1 if there
+     * are no more lines
+     * @throws IOException
+     */
+    private int nextLineEnd() throws IOException {
+        int searchFrom = position;
+        while (true) {
+            for (int i = searchFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            // The bytes already searched are moved to the start of the buffer
+            searchFrom = limit - position;
+            if (!readMore()) {
+                return position < limit ? limit : -1;
+            }
+        }
+    }
+
+    /**
+     * Moves the bytes that have not been parsed to the start of the buffer
+     * and reads more bytes after them
+     * @return false if the end of the stream has been reached
+     * @throws IOException
+     */
+    private boolean readMore() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        final int remaining = limit - position;
+        if (remaining == buffer.length) {
+            final byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, position, larger, 0, remaining);
+            buffer = larger;
+            bufferView = ByteBuffer.wrap(buffer);
+        }
+        else {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        bufferOffset += position;
+        position = 0;
+        limit = remaining;
+        final int count = in.read(buffer, limit, buffer.length - limit);
+        if (count == -1) {
+            endOfInput = true;
+        }
+        else {
+            limit += count;
+        }
+        return true;
+    }
+
+    /**
+     * Determines if the bytes that have not been read start with a prefix.
+     * No bytes are consumed.
+     * @param prefix The prefix to look for
+     * @return true if the next bytes match the prefix
+     * @throws IOException
+     */
+    boolean startsWith(byte[] prefix) throws IOException {
+        while (limit - position < prefix.length) {
+            if (!readMore()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[position + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a stream of the bytes that have not been read, including any
+     * bytes in this parser's buffer. This parser must not be used after
+     * this method is called.
+     * @return A stream of the remaining bytes
+     */
+    InputStream remainingInput() {
+        return new SequenceInputStream(new ByteArrayInputStream(buffer, position, limit - position), in);
+    }
+
+    /**
+     * Reads all the remaining lines as version 2 markers and adds them to
+     * a table. Lines in the old format with only a frame and position are
+     * also accepted.
+     * @param table The table to add markers to
+     * @throws IOException if the stream could not be read
+     * @throws ParseException if a line is not a valid marker. The error
+     * offset is the line number.
+     */
+    void readVersion2Markers(MarkerTable table) throws IOException, ParseException {
+        String line;
+        while ((line = readLine()) != null) {
+            try {
+                table.add(PersistentFrameDataStore2to3.parseLine(line));
+            }
+            catch (ParseException ex) {
+                final ParseException lineEx = new ParseException("Line " + lineNumber + ": " + ex.getMessage(), lineNumber);
+                lineEx.initCause(ex);
+                throw lineEx;
+            }
+        }
+    }
+
+    private void advancePast(int lineEnd) {
+        position = Math.min(lineEnd + 1, limit);
+        lineNumber++;
+    }
+
+    /**
+     * Returns the end of a line without a trailing carriage return
+     */
+    private static int trimEnd(ByteBuffer bytes, int start, int end) {
+        if (end > start && bytes.get(end - 1) == '\r') {
+            return end - 1;
+        }
+        return end;
+    }
+
+    /**
+     * Parses all the lines in a range of bytes and adds them to a table.
+     * The range must start at the beginning of a line.
+     * @param bytes The bytes that contain the lines. Bytes are read by
+     * absolute index, so the position and limit of the buffer are ignored.
+     * @param start The index of the first byte to parse
+     * @param end The index after the last byte to parse
+     * @param table The table to add to
+     * @param offset The offset in the file of the first byte in the array,
+     * used in error messages
+     * @throws ParseException if a line is not valid. The error offset is
+     * the offset in the file of the start of the line.
+     */
+    static void parseLines(ByteBuffer bytes, int start, int end, MarkerTable table, long offset) throws ParseException {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            try {
+                parseLine(bytes, lineStart, trimEnd(bytes, lineStart, lineEnd), table, 0);
+            }
+            catch (ParseException ex) {
+                final long lineOffset = offset + lineStart;
+                final ParseException located = new ParseException(ex.getMessage() + " at byte " + lineOffset, (int) Math.min(lineOffset, Integer.MAX_VALUE));
+                located.initCause(ex);
+                throw located;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Parses one marker line and adds it to a table
+     * @param bytes The bytes that contain the line
+     * @param start The index of the first byte of the line
+     * @param end The index after the last byte of the line, not including
+     * any line terminator
+     * @param table The table to add to
+     * @param lineNumber The line number, used in error messages, or 0 if
+     * it is not known
+     * @throws ParseException if the line is not valid. The error offset is
+     * the start of the line.
+     */
+    static void parseLine(ByteBuffer bytes, int start, int end, MarkerTable table, int lineNumber) throws ParseException {
+        // Find the commas that separate the fields
+        final int c1 = indexOfComma(bytes, start, end);
+        final int c2 = nextComma(bytes, c1, end);
+        final int c3 = nextComma(bytes, c2, end);
+        final int c4 = nextComma(bytes, c3, end);
+        final int c5 = nextComma(bytes, c4, end);
+        final int c6 = nextComma(bytes, c5, end);
+        final int c7 = nextComma(bytes, c6, end);
+        final int c8 = nextComma(bytes, c7, end);
+        if (c8 == -1) {
+            throw error("Unrecognized line", bytes, start, end, lineNumber);
+        }
+        // The ninth comma is absent in files written before the met ant ID was added
+        final int c9 = nextComma(bytes, c8, end);
+        final int metLocationEnd = c9 == -1 ? end : c9;
+
+        final int antId = parseInt(bytes, start, c1);
+        final int frame = parseInt(bytes, c1 + 1, c2);
+        final int x = parseInt(bytes, c2 + 1, c3);
+        final int y = parseInt(bytes, c3 + 1, c4);
+        final int focusAntActivity = lookup(ACTIVITY_NAMES, bytes, c4 + 1, c5);
+        final int focusAntLocation = lookup(LOCATION_NAMES, bytes, c5 + 1, c6);
+        if (antId == -1 || frame == -1 || x == -1 || y == -1 || focusAntActivity == -1 || focusAntLocation == -1) {
+            throw error("Unrecognized marker", bytes, start, end, lineNumber);
+        }
+
+        if (c8 == c7 + 1) {
+            // No met ant activity, so this is not an interaction
+            table.add(antId, frame, x, y, (byte) focusAntActivity, (byte) focusAntLocation,
+                    MarkerTable.NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+            return;
+        }
+
+        final int type = lookup(INTERACTION_TYPE_NAMES, bytes, c6 + 1, c7);
+        final int metAntActivity = lookup(ACTIVITY_NAMES, bytes, c7 + 1, c8);
+        final int metAntLocation = lookup(LOCATION_NAMES, bytes, c8 + 1, metLocationEnd);
+        final int metAntId = c9 == -1 ? 0 : parseInt(bytes, c9 + 1, end);
+        if (type == -1 || metAntActivity == -1 || metAntLocation == -1 || metAntId == -1) {
+            throw error("Unrecognized interaction marker", bytes, start, end, lineNumber);
+        }
+        table.add(antId, frame, x, y, (byte) focusAntActivity, (byte) focusAntLocation,
+                (byte) type, (byte) metAntActivity, (byte) metAntLocation, metAntId);
+    }
+
+    /**
+     * Finds the first comma in a range
+     * @return The index of the comma, or -1 if there is none
+     */
+    private static int indexOfComma(ByteBuffer bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes.get(i) == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the comma after another comma
+     * @param previous The index of the previous comma, or -1
+     * @return The index of the next comma, or -1 if there is none or if
+     * previous is -1
+     */
+    private static int nextComma(ByteBuffer bytes, int previous, int end) {
+        if (previous == -1) {
+            return -1;
+        }
+        return indexOfComma(bytes, previous + 1, end);
+    }
+
+    /**
+     * Parses a non-negative decimal integer
+     * @return The value, or -1 if the bytes are empty, contain anything
+     * other than digits, or are too large for an int
+     */
+    private static int parseInt(ByteBuffer bytes, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Finds an enumeration constant by name
+     * @param names The encoded names of the constants, indexed by ordinal
+     * @return The ordinal of the constant, or -1 if none matches
+     */
+    private static int lookup(byte[][] names, ByteBuffer bytes, int start, int end) {
+        final int length = end - start;
+        outer:
+        for (int ordinal = 0; ordinal < names.length; ordinal++) {
+            final byte[] name = names[ordinal];
+            if (name.length != length) {
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name[i] != bytes.get(start + i)) {
+                    continue outer;
+                }
+            }
+            return ordinal;
+        }
+        return -1;
+    }
+
+    private static byte[][] encodeNames(Enum<?>[] values) {
+        final byte[][] names = new byte[values.length][];
+        for (Enum<?> value : values) {
+            names[value.ordinal()] = value.name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    private static ParseException error(String message, ByteBuffer bytes, int start, int end, int lineNumber) {
+        final byte[] lineBytes = new byte[end - start];
+        for (int i = 0; i < lineBytes.length; i++) {
+            lineBytes[i] = bytes.get(start + i);
+        }
+        final String line = new String(lineBytes, StandardCharsets.UTF_8);
+        if (lineNumber > 0) {
+            message += " in line " + lineNumber;
+        }
+        return new ParseException(message + " \"" + line + "\"", start);
+    }
+}
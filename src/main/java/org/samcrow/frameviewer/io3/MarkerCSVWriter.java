@@ -0,0 +1,220 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes version 3 marker CSV lines to a channel.
+ * <p>
+ * Lines are formatted directly into one large reused buffer. Integers are
+ * formatted without creating strings, and enumeration names are copied
+ * from tables of encoded names. The output is the same as
+ * {@link Marker#toCSVLine()} followed by the platform line separator.
+ * <p>
+ * This class is not thread-safe.
+ * @author Sam Crow
+ */
+final class MarkerCSVWriter implements Flushable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The maximum length of a marker line: five integers of up to
+     * 11 characters, five enumeration names, separators, and a line
+     * separator
+     */
+    private static final int MAX_LINE_LENGTH = 5 * 11 + 5 * 32 + 16;
+
+    /**
+     * The line separator written after each line
+     */
+    static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] MIN_INT = Integer.toString(Integer.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+
+    /**
+     * The number of bytes in the buffer
+     */
+    private int length;
+
+    /**
+     * The number of bytes written, including bytes in the buffer
+     */
+    private long count;
+
+    /**
+     * Constructor
+     * @param channel The channel to write to
+     */
+    MarkerCSVWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     *
+     * @return The number of bytes written by this writer, including bytes
+     * that have not been flushed
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes a line of ASCII text followed by a line separator
+     * @param line The line to write
+     * @throws IOException
+     */
+    void writeLine(String line) throws IOException {
+        final byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        int written = 0;
+        while (written < bytes.length) {
+            if (length == buffer.length) {
+                flush();
+            }
+            final int chunk = Math.min(bytes.length - written, buffer.length - length);
+            System.arraycopy(bytes, written, buffer, length, chunk);
+            length += chunk;
+            written += chunk;
+        }
+        ensureSpace(LINE_SEPARATOR.length);
+        put(LINE_SEPARATOR);
+        count += bytes.length + LINE_SEPARATOR.length;
+    }
+
+    /**
+     * Writes a marker as a line
+     * @param marker The marker to write
+     * @throws IOException
+     */
+    void write(Marker marker) throws IOException {
+        if (marker instanceof InteractionMarker) {
+            final InteractionMarker interaction = (InteractionMarker) marker;
+            write(marker.getAntId(), marker.getFrame(), marker.getX(), marker.getY(),
+                    marker.getFocusAntActivity().ordinal(), marker.getFocusAntLocation().ordinal(),
+                    interaction.getType().ordinal(),
+                    interaction.getMetAntActivity().ordinal(), interaction.getMetAntLocation().ordinal(),
+                    interaction.getMetAntId());
+        }
+        else {
+            write(marker.getAntId(), marker.getFrame(), marker.getX(), marker.getY(),
+                    marker.getFocusAntActivity().ordinal(), marker.getFocusAntLocation().ordinal(),
+                    MarkerTable.NOT_INTERACTION, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Writes a row of a table as a line
+     * @param table The table
+     * @param row The index of the row to write
+     * @throws IOException
+     */
+    void write(MarkerTable table, int row) throws IOException {
+        if (table.isInteraction(row)) {
+            write(table.getAntId(row), table.getFrame(row), table.getX(row), table.getY(row),
+                    table.getFocusAntActivity(row).ordinal(), table.getFocusAntLocation(row).ordinal(),
+                    table.getInteractionType(row).ordinal(),
+                    table.getMetAntActivity(row).ordinal(), table.getMetAntLocation(row).ordinal(),
+                    table.getMetAntId(row));
+        }
+        else {
+            write(table.getAntId(row), table.getFrame(row), table.getX(row), table.getY(row),
+                    table.getFocusAntActivity(row).ordinal(), table.getFocusAntLocation(row).ordinal(),
+                    MarkerTable.NOT_INTERACTION, 0, 0, 0);
+        }
+    }
+
+    private void write(int antId, int frame, int x, int y, int focusAntActivity, int focusAntLocation,
+            int interactionType, int metAntActivity, int metAntLocation, int metAntId) throws IOException {
+        ensureSpace(MAX_LINE_LENGTH);
+        final int start = length;
+        putInt(antId);
+        buffer[length++] = ',';
+        putInt(frame);
+        buffer[length++] = ',';
+        putInt(x);
+        buffer[length++] = ',';
+        putInt(y);
+        buffer[length++] = ',';
+        put(MarkerCSVParser.ACTIVITY_NAMES[focusAntActivity]);
+        buffer[length++] = ',';
+        put(MarkerCSVParser.LOCATION_NAMES[focusAntLocation]);
+        if (interactionType == MarkerTable.NOT_INTERACTION) {
+            // Last four fields empty for the interaction type and met ant
+            buffer[length++] = ',';
+            buffer[length++] = ',';
+            buffer[length++] = ',';
+            buffer[length++] = ',';
+        }
+        else {
+            buffer[length++] = ',';
+            put(MarkerCSVParser.INTERACTION_TYPE_NAMES[interactionType]);
+            buffer[length++] = ',';
+            put(MarkerCSVParser.ACTIVITY_NAMES[metAntActivity]);
+            buffer[length++] = ',';
+            put(MarkerCSVParser.LOCATION_NAMES[metAntLocation]);
+            buffer[length++] = ',';
+            putInt(metAntId);
+        }
+        put(LINE_SEPARATOR);
+        count += length - start;
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Formats an integer in decimal into the buffer
+     */
+    private void putInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            put(MIN_INT);
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        // Count the digits, then fill them in from the end
+        int digits = 1;
+        for (int remaining = value / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        int position = length + digits;
+        length = position;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private void ensureSpace(int space) throws IOException {
+        if (buffer.length - length < space) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all buffered bytes to the channel
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        bufferView.clear();
+        bufferView.limit(length);
+        while (bufferView.hasRemaining()) {
+            channel.write(bufferView);
+        }
+        length = 0;
+    }
+}
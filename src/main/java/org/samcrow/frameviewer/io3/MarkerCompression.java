@@ -0,0 +1,280 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes compressed marker files.
+ * <p>
+ * Compressed files use the gzip format, so they can also be read and
+ * written with standard tools. Any marker file format can be compressed.
+ * A compressed file is recognized by {@link #GZIP_MAGIC} when reading, and
+ * by the {@link #EXTENSION} of its name when writing.
+ * <p>
+ * Decompression runs on its own thread, so that a parser can work on one
+ * chunk of data while the next chunk is decompressed.
+ * @author Sam Crow
+ */
+final class MarkerCompression {
+
+    /**
+     * The bytes at the start of every gzip file
+     */
+    static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+
+    /**
+     * The extension of the names of files that are written compressed
+     */
+    static final String EXTENSION = ".gz";
+
+    /**
+     * The number of decompressed bytes passed from the decompression thread
+     * at a time
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of decompressed chunks that can wait to be read
+     */
+    private static final int QUEUED_CHUNKS = 4;
+
+    private MarkerCompression() {
+    }
+
+    /**
+     * Determines if a file should be written compressed
+     * @param file The file
+     * @return true if the file's name ends with {@link #EXTENSION}
+     */
+    static boolean isCompressedName(File file) {
+        return file.getName().toLowerCase(Locale.US).endsWith(EXTENSION);
+    }
+
+    /**
+     * Checks that a compression level is valid
+     * @param level The level
+     * @throws IllegalArgumentException if the level is not valid
+     */
+    static void checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+    }
+
+    /**
+     * Creates a stream that compresses data
+     * @param out The stream to write compressed data to
+     * @param level The compression level, from {@link Deflater#NO_COMPRESSION}
+     * to {@link Deflater#BEST_COMPRESSION}, or
+     * {@link Deflater#DEFAULT_COMPRESSION}
+     * @return A stream. {@link GZIPOutputStream#finish()} must be called
+     * after all the data has been written.
+     * @throws IOException
+     */
+    static GZIPOutputStream compress(OutputStream out, int level) throws IOException {
+        checkLevel(level);
+        return new LevelGZIPOutputStream(out, level);
+    }
+
+    /**
+     * Creates a stream that decompresses data on another thread
+     * @param compressed The stream of compressed data. It is read on
+     * another thread, and closed when the returned stream is closed.
+     * @return A stream of decompressed data
+     */
+    static InputStream decompress(InputStream compressed) {
+        final PipelinedInputStream stream = new PipelinedInputStream(compressed);
+        stream.start();
+        return stream;
+    }
+
+    /**
+     * A gzip stream with a configurable compression level
+     */
+    private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, CHUNK_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * A chunk of decompressed data, or the end of the data
+     */
+    private static final class Chunk {
+
+        /**
+         * Marks the end of the data
+         */
+        static final Chunk END = new Chunk(null, 0, null);
+
+        final byte[] bytes;
+        final int length;
+
+        /**
+         * The exception that stopped decompression, or null
+         */
+        final IOException error;
+
+        Chunk(byte[] bytes, int length, IOException error) {
+            this.bytes = bytes;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Reads chunks that are decompressed on another thread
+     */
+    private static final class PipelinedInputStream extends InputStream implements Runnable {
+
+        private final InputStream compressed;
+
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+
+        /**
+         * Buffers that have been read and can be filled again
+         */
+        private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(QUEUED_CHUNKS + 2);
+
+        private final Thread thread;
+
+        /**
+         * The chunk being read, or null
+         */
+        private Chunk current;
+
+        private int position;
+
+        private boolean ended;
+
+        PipelinedInputStream(InputStream compressed) {
+            this.compressed = compressed;
+            thread = new Thread(this, "Marker decompression");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Decompresses chunks until the end of the data, an error, or
+         * interruption
+         */
+        @Override
+        public void run() {
+            try {
+                // Closing the stream releases the inflater's native memory
+                try (InputStream in = new GZIPInputStream(compressed, CHUNK_SIZE)) {
+                    while (true) {
+                        byte[] buffer = freeBuffers.poll();
+                        if (buffer == null) {
+                            buffer = new byte[CHUNK_SIZE];
+                        }
+                        int length = 0;
+                        int count = 0;
+                        while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+                            length += count;
+                        }
+                        if (length != 0) {
+                            chunks.put(new Chunk(buffer, length, null));
+                        }
+                        if (count == -1) {
+                            break;
+                        }
+                    }
+                    chunks.put(Chunk.END);
+                }
+                catch (IOException ex) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        chunks.put(new Chunk(null, 0, ex));
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                // Closed before all the data was read
+            }
+        }
+
+        /**
+         * Makes sure that the current chunk has bytes to read
+         * @return false if there are no more bytes
+         */
+        private boolean nextChunk() throws IOException {
+            if (ended) {
+                return false;
+            }
+            if (current != null && position < current.length) {
+                return true;
+            }
+            if (current != null) {
+                freeBuffers.offer(current.bytes);
+                current = null;
+            }
+            final Chunk chunk;
+            try {
+                chunk = chunks.take();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+            }
+            if (chunk.error != null) {
+                ended = true;
+                throw new IOException("Could not decompress data", chunk.error);
+            }
+            if (chunk == Chunk.END) {
+                ended = true;
+                return false;
+            }
+            current = chunk;
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return current.bytes[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            final int count = Math.min(len, current.length - position);
+            System.arraycopy(current.bytes, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current != null ? current.length - position : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ended = true;
+            thread.interrupt();
+            compressed.close();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Converts a directory tree of version 2 marker files into version 3 CSV
+ * files or binary files, using several threads.
+ * <p/>
+ * Each file is read one line at a time into a {@link MarkerTable}, without
+ * creating a data store. Files that are already in version 3 or in the
+ * binary format are skipped. The output tree has the same structure as
+ * the input tree.
+ * <p/>
+ * This can be run from the command line:
+ * <pre>
+ * MarkerFileConverter [-j threads] [--binary] input-directory output-directory
+ * </pre>
+ * @author Sam Crow
+ */
+public final class MarkerFileConverter {
+
+    /**
+     * The formats that files can be converted to
+     */
+    public enum OutputFormat {
+        /**
+         * Version 3 CSV, with the extension .csv
+         */
+        CSV(".csv"),
+        /**
+         * Version 4 binary, with the extension .fvm
+         */
+        BINARY(".fvm");
+
+        private final String extension;
+
+        private OutputFormat(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * The results of converting a tree
+     */
+    public static final class Summary {
+        private int converted;
+        private int skipped;
+        private long markers;
+        private long bytesRead;
+        private long elapsedNanos;
+        private final List<String> errors = new ArrayList<>();
+
+        /**
+         *
+         * @return The number of files that were converted
+         */
+        public int getConvertedCount() {
+            return converted;
+        }
+
+        /**
+         *
+         * @return The number of files that were already in a newer format
+         */
+        public int getSkippedCount() {
+            return skipped;
+        }
+
+        /**
+         *
+         * @return The number of markers in the converted files
+         */
+        public long getMarkerCount() {
+            return markers;
+        }
+
+        /**
+         *
+         * @return A message for each file that could not be converted,
+         * in path order
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = elapsedNanos / 1e9;
+            final StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "Converted %d files (%d markers) in %.2f s: %.0f markers/s, %.1f MB/s",
+                    converted, markers, seconds,
+                    seconds > 0 ? markers / seconds : 0.0,
+                    seconds > 0 ? bytesRead / seconds / (1024 * 1024) : 0.0));
+            builder.append(String.format(Locale.US, "%nSkipped %d files, %d errors", skipped, errors.size()));
+            for (String error : errors) {
+                builder.append(String.format("%n")).append(error);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The result of converting one file
+     */
+    private static final class FileResult {
+        final boolean skipped;
+        final int markers;
+        final long bytes;
+
+        FileResult(boolean skipped, int markers, long bytes) {
+            this.skipped = skipped;
+            this.markers = markers;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int threads;
+
+    private final OutputFormat format;
+
+    /**
+     * Creates a converter
+     * @param threads The number of files to convert at the same time
+     * @param format The format to write
+     */
+    public MarkerFileConverter(int threads, OutputFormat format) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        this.format = format;
+    }
+
+    /**
+     * Converts every .csv file in a directory tree
+     * @param inputDirectory The directory to read from
+     * @param outputDirectory The directory to write to. Directories are
+     * created as needed.
+     * @return A summary of the conversion
+     * @throws IOException if the input directory could not be read
+     * @throws InterruptedException if interrupted while waiting for the
+     * conversions to finish
+     */
+    public Summary convert(final Path inputDirectory, final Path outputDirectory) throws IOException, InterruptedException {
+        final List<Path> sources = findSources(inputDirectory);
+        final long start = System.nanoTime();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<FileResult>> results = new ArrayList<>(sources.size());
+        try {
+            for (final Path source : sources) {
+                results.add(pool.submit(new Callable<FileResult>() {
+                    @Override
+                    public FileResult call() throws Exception {
+                        return convertFile(source, targetFor(inputDirectory, outputDirectory, source), format);
+                    }
+                }));
+            }
+
+            final Summary summary = new Summary();
+            for (int i = 0; i < sources.size(); i++) {
+                try {
+                    final FileResult result = results.get(i).get();
+                    if (result.skipped) {
+                        summary.skipped++;
+                    }
+                    else {
+                        summary.converted++;
+                        summary.markers += result.markers;
+                        summary.bytesRead += result.bytes;
+                    }
+                }
+                catch (ExecutionException ex) {
+                    summary.errors.add(sources.get(i) + ": " + ex.getCause().getMessage());
+                }
+            }
+            summary.elapsedNanos = System.nanoTime() - start;
+            return summary;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the .csv files in a tree, in path order
+     */
+    private static List<Path> findSources(Path directory) throws IOException {
+        final List<Path> sources = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().toLowerCase(Locale.US).endsWith(".csv")) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(sources);
+        return sources;
+    }
+
+    private Path targetFor(Path inputDirectory, Path outputDirectory, Path source) {
+        final Path relative = inputDirectory.relativize(source);
+        final String name = relative.getFileName().toString();
+        final String baseName = name.substring(0, name.length() - ".csv".length());
+        return outputDirectory.resolve(relative).resolveSibling(baseName + format.extension);
+    }
+
+    /**
+     * Converts one version 2 file
+     * @param source The file to read
+     * @param target The file to write
+     * @param format The format to write
+     * @return The result
+     * @throws IOException if a file could not be read or written
+     * @throws ParseException if a line could not be parsed
+     */
+    private static FileResult convertFile(Path source, Path target, OutputFormat format) throws IOException, ParseException {
+        final MarkerTable table = new MarkerTable();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(source), StandardCharsets.ISO_8859_1), 65536)) {
+            // An empty file is a version 2 file with no markers, as readHeader treats it
+            final String header = reader.readLine();
+            if (header != null && (header.startsWith("File version") || !header.isEmpty() && header.charAt(0) == (char) (BinaryMarkerFormat.MAGIC[0] & 0xFF))) {
+                // Already in a newer format
+                return new FileResult(true, 0, 0);
+            }
+            int lineNumber = 1;
+            while (true) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                lineNumber++;
+                try {
+                    table.add(PersistentFrameDataStore2to3.parseLine(line));
+                }
+                catch (ParseException ex) {
+                    final ParseException lineEx = new ParseException("Line " + lineNumber + ": " + ex.getMessage(), lineNumber);
+                    lineEx.initCause(ex);
+                    throw lineEx;
+                }
+            }
+        }
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        if (format == OutputFormat.BINARY) {
+            writeBinary(table, target.toFile());
+        }
+        else {
+            PersistentFrameDataStore.writeTableTo(table, target.toFile(), null, Deflater.DEFAULT_COMPRESSION);
+        }
+        return new FileResult(false, table.size(), Files.size(source));
+    }
+
+    private static void writeBinary(MarkerTable table, File file) throws IOException {
+        final int[] order = table.frameOrder();
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (BinaryMarkerFormat.Writer writer = new BinaryMarkerFormat.Writer(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+                for (int row : order) {
+                    writer.add(table.toMarker(row));
+                }
+            }
+            PersistentFrameDataStore.replaceFile(tempFile, file);
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: MarkerFileConverter [-j threads] [--binary] input-directory output-directory");
+        out.println("Converts version 2 marker files to version 3 CSV files, or to binary files with --binary");
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        OutputFormat format = OutputFormat.CSV;
+        final List<String> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-j")) {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--binary")) {
+                    format = OutputFormat.BINARY;
+                }
+                else {
+                    paths.add(args[i]);
+                }
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            printUsage(System.err);
+            System.exit(2);
+        }
+        if (paths.size() != 2 || threads < 1) {
+            printUsage(System.err);
+            System.exit(2);
+        }
+
+        try {
+            final Summary summary = new MarkerFileConverter(threads, format).convert(new File(paths.get(0)).toPath(), new File(paths.get(1)).toPath());
+            System.out.println(summary);
+            System.exit(summary.getErrors().isEmpty() ? 0 : 1);
+        }
+        catch (IOException | InterruptedException ex) {
+            System.err.println("Conversion failed: " + ex);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * An index of the lines in a version 3 CSV marker file, stored in a
+ * separate file next to the CSV file.
+ * <p>
+ * The lines in a CSV file are sorted by ant and then by frame. The index
+ * divides each ant's lines into runs of up to {@link #LINES_PER_ENTRY}
+ * lines, and records the range of frames and the byte offset and length
+ * of each run. The markers in a range of frames, optionally for one ant,
+ * can then be read by reading only the runs that contain those frames.
+ * <p>
+ * The index file records the length and modification time of the CSV file.
+ * An index is not used after the CSV file has been changed by something
+ * else. Compressed files are not indexed.
+ * <p>
+ * Index file format (big-endian):
+ * <pre>
+ * magic "FVIX", int version
+ * long CSV file length, long CSV file modification time
+ * int entry count
+ * entries: int ant ID, int first frame, int last frame, long offset, int length
+ * </pre>
+ * @author Sam Crow
+ */
+public final class MarkerFileIndex {
+
+    /**
+     * The bytes at the start of every index file
+     */
+    private static final byte[] MAGIC = { 'F', 'V', 'I', 'X' };
+
+    private static final int VERSION = 1;
+
+    /**
+     * The extension added to the name of a CSV file to get the name of
+     * its index file
+     */
+    private static final String EXTENSION = ".idx";
+
+    /**
+     * The maximum number of lines in one entry
+     */
+    static final int LINES_PER_ENTRY = 256;
+
+    /**
+     * The maximum number of bytes read from the CSV file at once, unless
+     * one entry is longer
+     */
+    private static final int MAX_READ_LENGTH = 256 * 1024;
+
+    /**
+     * The CSV file that this index describes
+     */
+    private final File dataFile;
+
+    private final long dataLength;
+
+    private final long dataLastModified;
+
+    private final int size;
+
+    // Entries, sorted by ant ID and then by offset
+    private final int[] antIds;
+    private final int[] firstFrames;
+    private final int[] lastFrames;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private MarkerFileIndex(File dataFile, long dataLength, long dataLastModified, int size,
+            int[] antIds, int[] firstFrames, int[] lastFrames, long[] offsets, int[] lengths) {
+        this.dataFile = dataFile.getAbsoluteFile();
+        this.dataLength = dataLength;
+        this.dataLastModified = dataLastModified;
+        this.size = size;
+        this.antIds = antIds;
+        this.firstFrames = firstFrames;
+        this.lastFrames = lastFrames;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Returns the index file for a CSV file
+     * @param dataFile The CSV file
+     * @return The index file, which may not exist
+     */
+    public static File indexFileFor(File dataFile) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Reads the index of a CSV file
+     * @param dataFile The CSV file
+     * @return The index, or null if the CSV file has no index or has been
+     * changed since its index was written
+     * @throws IOException if the index file could not be read or is not
+     * valid
+     */
+    public static MarkerFileIndex open(File dataFile) throws IOException {
+        final File indexFile = indexFileFor(dataFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(indexFile + " is not a marker index file");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(indexFile + ": unsupported index version " + version);
+            }
+            final long dataLength = in.readLong();
+            final long dataLastModified = in.readLong();
+            final int size = in.readInt();
+            if (size < 0) {
+                throw new IOException(indexFile + ": invalid entry count " + size);
+            }
+            final int[] antIds = new int[size];
+            final int[] firstFrames = new int[size];
+            final int[] lastFrames = new int[size];
+            final long[] offsets = new long[size];
+            final int[] lengths = new int[size];
+            for (int i = 0; i < size; i++) {
+                antIds[i] = in.readInt();
+                firstFrames[i] = in.readInt();
+                lastFrames[i] = in.readInt();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+            final MarkerFileIndex index = new MarkerFileIndex(dataFile, dataLength, dataLastModified, size,
+                    antIds, firstFrames, lastFrames, offsets, lengths);
+            return index.isCurrent() ? index : null;
+        }
+        catch (FileNotFoundException ex) {
+            return null;
+        }
+        catch (EOFException ex) {
+            throw new IOException(indexFile + " is truncated", ex);
+        }
+    }
+
+    /**
+     * Creates an index for an existing CSV file by reading the file, and
+     * writes the index file
+     * @param dataFile A version 3 CSV file that is not compressed
+     * @return The index
+     * @throws IOException if a file could not be read or written
+     * @throws ParseException if the file is not a version 3 CSV file, or
+     * a line could not be parsed
+     */
+    public static MarkerFileIndex create(File dataFile) throws IOException, ParseException {
+        final Builder builder = new Builder();
+        try (InputStream in = new FileInputStream(dataFile)) {
+            final MarkerCSVParser parser = new MarkerCSVParser(in);
+            if (parser.startsWith(MarkerCompression.GZIP_MAGIC) || PersistentFrameDataStore.readHeader(parser) != 3) {
+                throw new ParseException(dataFile + ": only uncompressed version 3 CSV files can be indexed", 0);
+            }
+            final MarkerTable current = new MarkerTable(1);
+            long start = parser.getOffset();
+            while (parser.readMarker(current)) {
+                if (builder.size != 0 && current.getAntId(0) < builder.antIds[builder.size - 1]) {
+                    throw new ParseException(dataFile + ": line " + parser.getLineNumber() + " is not sorted by ant", parser.getLineNumber());
+                }
+                final long end = parser.getOffset();
+                builder.add(current.getAntId(0), current.getFrame(0), start, end);
+                current.clear();
+                start = end;
+            }
+        }
+        final MarkerFileIndex index = builder.build(dataFile);
+        index.write();
+        return index;
+    }
+
+    /**
+     *
+     * @return The CSV file that this index describes
+     */
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     *
+     * @return true if the CSV file has not been changed since this index
+     * was created
+     */
+    public boolean isCurrent() {
+        return dataFile.length() == dataLength && dataFile.lastModified() == dataLastModified;
+    }
+
+    /**
+     * Reads the markers in a range of frames
+     * @param firstFrame The first frame to read
+     * @param lastFrame The last frame to read, inclusive
+     * @return The markers, sorted by ant and then by frame
+     * @throws IOException if the CSV file could not be read, or has been
+     * changed since this index was created
+     * @throws ParseException if a line could not be parsed
+     */
+    public MarkerTable read(int firstFrame, int lastFrame) throws IOException, ParseException {
+        return read(0, size, firstFrame, lastFrame);
+    }
+
+    /**
+     * Reads the markers for one ant in a range of frames
+     * @param antId The ant ID
+     * @param firstFrame The first frame to read
+     * @param lastFrame The last frame to read, inclusive
+     * @return The markers, sorted by frame
+     * @throws IOException if the CSV file could not be read, or has been
+     * changed since this index was created
+     * @throws ParseException if a line could not be parsed
+     */
+    public MarkerTable readAnt(int antId, int firstFrame, int lastFrame) throws IOException, ParseException {
+        final int start = firstEntry(antIds, size, antId);
+        int end = start;
+        while (end < size && antIds[end] == antId) {
+            end++;
+        }
+        return read(start, end, firstFrame, lastFrame);
+    }
+
+    /**
+     * Reads the markers in a range of frames from some entries
+     * @param startEntry The index of the first entry to read
+     * @param endEntry The index after the last entry to read
+     */
+    private MarkerTable read(int startEntry, int endEntry, int firstFrame, int lastFrame) throws IOException, ParseException {
+        if (!isCurrent()) {
+            throw new IOException("The index of " + dataFile + " is out of date");
+        }
+        final MarkerTable result = new MarkerTable();
+        final MarkerTable lines = new MarkerTable(LINES_PER_ENTRY);
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        try (FileChannel channel = new FileInputStream(dataFile).getChannel()) {
+            int entry = startEntry;
+            while (entry < endEntry) {
+                if (lastFrames[entry] < firstFrame || firstFrames[entry] > lastFrame) {
+                    entry++;
+                    continue;
+                }
+                // Read the following matching entries that are next to this
+                // one in the file together
+                final long offset = offsets[entry];
+                long length = lengths[entry];
+                int end = entry + 1;
+                while (end < endEntry && offsets[end] == offset + length
+                        && lastFrames[end] >= firstFrame && firstFrames[end] <= lastFrame
+                        && length + lengths[end] <= MAX_READ_LENGTH) {
+                    length += lengths[end];
+                    end++;
+                }
+                if (buffer.capacity() < length) {
+                    buffer = ByteBuffer.allocate((int) length);
+                }
+                buffer.clear();
+                buffer.limit((int) length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) == -1) {
+                        throw new IOException(dataFile + " is shorter than its index");
+                    }
+                }
+
+                lines.clear();
+                MarkerCSVParser.parseLines(buffer, 0, (int) length, lines, offset);
+                for (int row = 0; row < lines.size(); row++) {
+                    final int frame = lines.getFrame(row);
+                    if (frame >= firstFrame && frame <= lastFrame) {
+                        result.add(lines, row);
+                    }
+                }
+                entry = end;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes this index to its index file
+     * @throws IOException
+     */
+    void write() throws IOException {
+        final File indexFile = indexFileFor(dataFile);
+        final File tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(dataLength);
+                out.writeLong(dataLastModified);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(antIds[i]);
+                    out.writeInt(firstFrames[i]);
+                    out.writeInt(lastFrames[i]);
+                    out.writeLong(offsets[i]);
+                    out.writeInt(lengths[i]);
+                }
+                out.flush();
+            }
+            PersistentFrameDataStore.replaceFile(tempFile, indexFile);
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Finds the first entry for an ant ID or a greater ant ID
+     * @param antIds The sorted ant IDs of the entries
+     * @param size The number of entries
+     * @param antId The ant ID to find
+     * @return The index of the first entry with an ant ID greater than or
+     * equal to the provided ID, or size if there is none
+     */
+    private static int firstEntry(int[] antIds, int size, int antId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (antIds[middle] < antId) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Creates an index while a CSV file is being written
+     */
+    static final class Builder {
+
+        private int size;
+        private int[] antIds = new int[64];
+        private int[] firstFrames = new int[64];
+        private int[] lastFrames = new int[64];
+        private long[] offsets = new long[64];
+        private int[] lengths = new int[64];
+
+        /**
+         * The number of lines in the last entry
+         */
+        private int lastEntryLines;
+
+        /**
+         * Records a line that has been written
+         * @param antId The ant ID of the marker on the line
+         * @param frame The frame of the marker on the line
+         * @param start The offset of the start of the line
+         * @param end The offset after the end of the line, including its
+         * line separator
+         */
+        void add(int antId, int frame, long start, long end) {
+            final int last = size - 1;
+            if (size != 0 && antIds[last] == antId && lastEntryLines < LINES_PER_ENTRY
+                    && offsets[last] + lengths[last] == start) {
+                firstFrames[last] = Math.min(firstFrames[last], frame);
+                lastFrames[last] = Math.max(lastFrames[last], frame);
+                lengths[last] += (int) (end - start);
+                lastEntryLines++;
+            }
+            else {
+                addEntry(antId, frame, frame, start, (int) (end - start));
+                lastEntryLines = 1;
+            }
+        }
+
+        /**
+         * Records a block of lines for an ant that has been copied from
+         * another indexed file
+         * @param previous The index of the file that the lines were copied
+         * from
+         * @param antId The ant ID
+         * @param shift The offset of the block in the new file minus its
+         * offset in the old file
+         */
+        void copy(MarkerFileIndex previous, int antId, long shift) {
+            for (int i = firstEntry(previous.antIds, previous.size, antId); i < previous.size && previous.antIds[i] == antId; i++) {
+                addEntry(antId, previous.firstFrames[i], previous.lastFrames[i], previous.offsets[i] + shift, previous.lengths[i]);
+            }
+            // Lines written after this are not added to the copied entries
+            lastEntryLines = LINES_PER_ENTRY;
+        }
+
+        private void addEntry(int antId, int firstFrame, int lastFrame, long offset, int length) {
+            if (size == antIds.length) {
+                final int capacity = size + (size >> 1) + 1;
+                antIds = Arrays.copyOf(antIds, capacity);
+                firstFrames = Arrays.copyOf(firstFrames, capacity);
+                lastFrames = Arrays.copyOf(lastFrames, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            antIds[size] = antId;
+            firstFrames[size] = firstFrame;
+            lastFrames[size] = lastFrame;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        /**
+         * Creates the index. This should be called after the CSV file has
+         * been completely written and has replaced any previous file.
+         * @param dataFile The CSV file
+         * @return The index
+         */
+        MarkerFileIndex build(File dataFile) {
+            return new MarkerFileIndex(dataFile, dataFile.length(), dataFile.lastModified(), size,
+                    antIds, firstFrames, lastFrames, offsets, lengths);
+        }
+    }
+}
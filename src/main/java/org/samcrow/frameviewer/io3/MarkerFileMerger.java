@@ -0,0 +1,368 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Merges marker files from several annotators into one file.
+ * <p/>
+ * Each input must be a version 3 CSV file, optionally compressed, sorted
+ * by ant and frame as {@link PersistentFrameDataStore#writeTo(java.io.File)}
+ * writes it. The inputs are merged in one pass with a priority queue that
+ * holds the next marker from each input, so only one marker per input is in
+ * memory at a time. The output is written in the same order.
+ * <p/>
+ * When more than one input has markers for the same ant in the same frame
+ * and the markers are the same, one copy is written. When they differ,
+ * the markers from the first of those inputs are written and the
+ * difference is reported as a {@link Conflict}.
+ * <p/>
+ * This can be run from the command line:
+ * <pre>
+ * MarkerFileMerger output-file input-file input-file...
+ * </pre>
+ * @author Sam Crow
+ */
+public final class MarkerFileMerger {
+
+    /**
+     * Markers for the same ant in the same frame that differ between inputs
+     */
+    public static final class Conflict {
+        private final int antId;
+        private final int frame;
+        private final Map<File, List<String>> versions;
+
+        Conflict(int antId, int frame, Map<File, List<String>> versions) {
+            this.antId = antId;
+            this.frame = frame;
+            this.versions = Collections.unmodifiableMap(versions);
+        }
+
+        public int getAntId() {
+            return antId;
+        }
+
+        public int getFrame() {
+            return frame;
+        }
+
+        /**
+         *
+         * @return The CSV lines of the markers in each input that has
+         * markers for this ant and frame, in input order. The markers from
+         * the first input were written.
+         */
+        public Map<File, List<String>> getVersions() {
+            return versions;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("Ant ").append(antId).append(" frame ").append(frame).append(':');
+            for (Map.Entry<File, List<String>> entry : versions.entrySet()) {
+                builder.append(String.format("%n    ")).append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The results of a merge
+     */
+    public static final class Result {
+        private long read;
+        private long written;
+        private final List<Conflict> conflicts = new ArrayList<>();
+
+        /**
+         *
+         * @return The number of markers read from all the inputs
+         */
+        public long getReadCount() {
+            return read;
+        }
+
+        /**
+         *
+         * @return The number of markers written
+         */
+        public long getWrittenCount() {
+            return written;
+        }
+
+        /**
+         *
+         * @return The conflicts, sorted by ant and frame
+         */
+        public List<Conflict> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append(String.format("Read %d markers, wrote %d markers, %d conflicts", read, written, conflicts.size()));
+            for (Conflict conflict : conflicts) {
+                builder.append(String.format("%n")).append(conflict);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Orders inputs by their next marker, and then by input order
+     */
+    private static final Comparator<Input> INPUT_ORDER = new Comparator<Input>() {
+        @Override
+        public int compare(Input a, Input b) {
+            int result = compareKeys(a.antId, a.frame, b.antId, b.frame);
+            if (result == 0) {
+                result = Integer.compare(a.index, b.index);
+            }
+            return result;
+        }
+    };
+
+    private MarkerFileMerger() {
+    }
+
+    private static int compareKeys(int antId1, int frame1, int antId2, int frame2) {
+        final int result = Integer.compare(antId1, antId2);
+        return result != 0 ? result : Integer.compare(frame1, frame2);
+    }
+
+    /**
+     * Merges marker files
+     * @param inputs The files to merge, in order of precedence
+     * @param output The file to write. If its name ends with .gz, it is
+     * compressed. It may be one of the inputs.
+     * @return The results of the merge
+     * @throws IOException if a file could not be read or written
+     * @throws ParseException if an input is not a sorted version 3 file, or
+     * a line could not be parsed
+     */
+    public static Result merge(List<File> inputs, File output) throws IOException, ParseException {
+        final List<Input> opened = new ArrayList<>(inputs.size());
+        final File tempFile = File.createTempFile(output.getName(), ".tmp", output.getAbsoluteFile().getParentFile());
+        try {
+            final PriorityQueue<Input> queue = new PriorityQueue<>(Math.max(1, inputs.size()), INPUT_ORDER);
+            for (File file : inputs) {
+                final Input input = new Input(opened.size(), file);
+                opened.add(input);
+                if (input.advance()) {
+                    queue.add(input);
+                }
+            }
+
+            final Result result = new Result();
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                final GZIPOutputStream compressor = MarkerCompression.isCompressedName(output) ? MarkerCompression.compress(fileOut, Deflater.DEFAULT_COMPRESSION) : null;
+                final MarkerCSVWriter out = new MarkerCSVWriter(compressor != null ? Channels.newChannel(compressor) : fileOut.getChannel());
+                PersistentFrameDataStore.writeHeader(out);
+
+                final Map<File, List<Marker>> group = new LinkedHashMap<>();
+                while (!queue.isEmpty()) {
+                    final int antId = queue.peek().antId;
+                    final int frame = queue.peek().frame;
+                    // Take the markers for this ant and frame from every input
+                    group.clear();
+                    while (!queue.isEmpty() && queue.peek().antId == antId && queue.peek().frame == frame) {
+                        final Input input = queue.poll();
+                        final List<Marker> markers = new ArrayList<>(1);
+                        do {
+                            markers.add(input.marker());
+                        } while (input.advance() && input.antId == antId && input.frame == frame);
+                        if (!input.ended) {
+                            queue.add(input);
+                        }
+                        result.read += markers.size();
+                        group.put(input.file, markers);
+                    }
+
+                    final List<Marker> chosen = group.values().iterator().next();
+                    if (group.size() > 1) {
+                        final Conflict conflict = findConflict(antId, frame, group);
+                        if (conflict != null) {
+                            result.conflicts.add(conflict);
+                        }
+                    }
+                    for (Marker marker : chosen) {
+                        out.write(marker);
+                    }
+                    result.written += chosen.size();
+                }
+
+                out.flush();
+                if (compressor != null) {
+                    compressor.finish();
+                }
+                fileOut.getChannel().force(true);
+            }
+            // Close the inputs before replacing one of them
+            closeAll(opened);
+            PersistentFrameDataStore.replaceFile(tempFile, output);
+            return result;
+        }
+        finally {
+            closeAll(opened);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Compares the markers that several inputs have for one ant and frame
+     * @return A conflict, or null if all the inputs have the same markers
+     */
+    private static Conflict findConflict(int antId, int frame, Map<File, List<Marker>> group) {
+        final Map<File, List<String>> versions = new LinkedHashMap<>();
+        boolean different = false;
+        List<String> first = null;
+        for (Map.Entry<File, List<Marker>> entry : group.entrySet()) {
+            final List<String> lines = new ArrayList<>(entry.getValue().size());
+            for (Marker marker : entry.getValue()) {
+                lines.add(marker.toCSVLine());
+            }
+            if (first == null) {
+                first = lines;
+            }
+            else if (!first.equals(lines)) {
+                different = true;
+            }
+            versions.put(entry.getKey(), lines);
+        }
+        return different ? new Conflict(antId, frame, versions) : null;
+    }
+
+    private static void closeAll(List<Input> inputs) throws IOException {
+        for (Input input : inputs) {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the markers in one input file one at a time
+     */
+    private static final class Input implements Closeable {
+        final int index;
+        final File file;
+        private final InputStream fileIn;
+        private final InputStream in;
+        private final MarkerCSVParser parser;
+
+        /**
+         * Holds the current marker
+         */
+        private final MarkerTable current = new MarkerTable(1);
+
+        int antId;
+        int frame;
+        boolean ended;
+
+        /**
+         * If a marker has been read
+         */
+        private boolean started;
+
+        Input(int index, File file) throws IOException, ParseException {
+            this.index = index;
+            this.file = file;
+            fileIn = new FileInputStream(file);
+            InputStream stream = fileIn;
+            try {
+                MarkerCSVParser fileParser = new MarkerCSVParser(fileIn);
+                if (fileParser.startsWith(MarkerCompression.GZIP_MAGIC)) {
+                    stream = MarkerCompression.decompress(fileParser.remainingInput());
+                    fileParser = new MarkerCSVParser(stream);
+                }
+                if (PersistentFrameDataStore.readHeader(fileParser) != 3) {
+                    throw new ParseException(file + ": only version 3 CSV files can be merged", 0);
+                }
+                in = stream;
+                parser = fileParser;
+            }
+            catch (IOException | ParseException | RuntimeException ex) {
+                stream.close();
+                fileIn.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Reads the next marker
+         * @return false if there are no more markers
+         */
+        boolean advance() throws IOException, ParseException {
+            if (ended) {
+                return false;
+            }
+            current.clear();
+            if (!parser.readMarker(current)) {
+                ended = true;
+                close();
+                return false;
+            }
+            final int nextAntId = current.getAntId(0);
+            final int nextFrame = current.getFrame(0);
+            if (started && compareKeys(nextAntId, nextFrame, antId, frame) < 0) {
+                throw new ParseException(file + ": line " + parser.getLineNumber() + " is not sorted by ant and frame", parser.getLineNumber());
+            }
+            antId = nextAntId;
+            frame = nextFrame;
+            started = true;
+            return true;
+        }
+
+        Marker marker() {
+            return current.toMarker(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            fileIn.close();
+        }
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: MarkerFileMerger output-file input-file input-file...");
+        out.println("Merges version 3 marker files that are sorted by ant and frame");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            printUsage(System.err);
+            System.exit(2);
+        }
+        final List<File> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            inputs.add(new File(args[i]));
+        }
+        try {
+            final Result result = merge(inputs, new File(args[0]));
+            System.out.println(result);
+            System.exit(result.getConflicts().isEmpty() ? 0 : 1);
+        }
+        catch (IOException | ParseException ex) {
+            System.err.println("Merge failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
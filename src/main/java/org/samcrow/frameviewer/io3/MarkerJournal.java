@@ -0,0 +1,606 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.samcrow.frameviewer.FrameDataListener;
+import org.samcrow.frameviewer.FrameDataStore;
+
+/**
+ * Records every change to a data store in a journal file next to the
+ * data set file, so that changes that have not been saved can be
+ * recovered after a crash.
+ * <p/>
+ * Each change is appended to the journal as a record with a checksum when
+ * the data store reports that frames have changed. Appending only writes
+ * to the operating system, so it is fast. The journal is forced to disk
+ * by a background thread at most once per {@link #SYNC_INTERVAL_MS}
+ * milliseconds, so a crash can lose at most that much work.
+ * <p/>
+ * The journal header records the length and modification time of the
+ * data set file. When the data set is opened again,
+ * {@link #open(java.io.File, org.samcrow.frameviewer.FrameDataStore)}
+ * replays the records into the data store if the data set has not changed
+ * since the journal was started. A record that was only partly written
+ * when the application stopped is ignored.
+ * <p/>
+ * Records identify markers by their contents, not by their positions in
+ * their frames. Saved files are sorted by ant, so a frame's markers may be
+ * in a different order after the data set is read again. An added marker
+ * is appended to its frame, and a removed marker is matched by its CSV
+ * line.
+ * <p/>
+ * After the data store is saved to the data set file, {@link #reset()}
+ * empties the journal. If the journal grows large,
+ * {@link #needsCompaction()} returns true, and the data store should be
+ * saved so that the journal can be reset.
+ * <p/>
+ * @author Sam Crow
+ */
+public class MarkerJournal implements FrameDataListener<Marker>, Closeable {
+
+    /**
+     * The bytes at the start of every journal file
+     */
+    private static final byte[] MAGIC = { 'F', 'V', 'M', 'J' };
+
+    private static final int VERSION = 2;
+
+    /**
+     * The length of the journal header
+     */
+    private static final int HEADER_LENGTH = MAGIC.length + 4 + 8 + 8;
+
+    /**
+     * The maximum time between writing a record and forcing it to disk
+     */
+    public static final long SYNC_INTERVAL_MS = 500;
+
+    /**
+     * The journal size above which {@link #needsCompaction()} returns true
+     */
+    public static final long COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * Forces journals to disk
+     */
+    private static final ScheduledExecutorService SYNC_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "Marker journal sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File dataSet;
+
+    private final File journalFile;
+
+    private final FrameDataStore<Marker> store;
+
+    private final FileChannel channel;
+
+    /**
+     * Records that have not yet been written to the file
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * The body of the record being built
+     */
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * True if records have been written and not yet forced to disk
+     */
+    private final AtomicBoolean unsynced = new AtomicBoolean();
+
+    private final ScheduledFuture<?> syncTask;
+
+    /**
+     * The number of records that were replayed when this journal was opened
+     */
+    private int recoveredCount;
+
+    private MarkerJournal(File dataSet, FrameDataStore<Marker> store) throws IOException {
+        this.dataSet = dataSet;
+        this.journalFile = journalFileFor(dataSet);
+        this.store = store;
+        this.channel = new RandomAccessFile(journalFile, "rw").getChannel();
+        syncTask = SYNC_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the journal file for a data set file
+     * @param dataSet The data set file
+     * @return The journal file
+     */
+    public static File journalFileFor(File dataSet) {
+        return new File(dataSet.getPath() + ".journal");
+    }
+
+    /**
+     * Opens the journal for a data set and starts recording changes to
+     * a data store.
+     * <p/>
+     * If a journal exists for the same version of the data set, its
+     * records are replayed into the store in one batch, and new records are
+     * appended to it. Otherwise, a new empty journal is started.
+     * <p/>
+     * @param dataSet The data set file that the store was read from
+     * @param store The data store, containing the data in the data set file
+     * @return A journal
+     * @throws IOException if the journal could not be read or written
+     */
+    public static MarkerJournal open(File dataSet, FrameDataStore<Marker> store) throws IOException {
+        final MarkerJournal journal = new MarkerJournal(dataSet, store);
+        try {
+            if (journal.headerMatches()) {
+                final long validLength = journal.replay();
+                // Remove any partly written record at the end
+                journal.channel.truncate(validLength);
+                journal.channel.position(validLength);
+            }
+            else {
+                journal.writeHeader();
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            journal.close();
+            throw ex;
+        }
+        store.addFrameDataListener(journal);
+        return journal;
+    }
+
+    /**
+     * Starts a new, empty journal for a data set and starts recording
+     * changes to a data store. Any existing journal for the data set is
+     * replaced.
+     * <p/>
+     * @param dataSet The data set file that the store was saved to
+     * @param store The data store, containing the data in the data set file
+     * @return A journal
+     * @throws IOException if the journal could not be written
+     */
+    public static MarkerJournal create(File dataSet, FrameDataStore<Marker> store) throws IOException {
+        final MarkerJournal journal = new MarkerJournal(dataSet, store);
+        try {
+            journal.writeHeader();
+        }
+        catch (IOException | RuntimeException ex) {
+            journal.close();
+            throw ex;
+        }
+        store.addFrameDataListener(journal);
+        return journal;
+    }
+
+    /**
+     *
+     * @return The number of changes that were recovered from the journal
+     * when it was opened
+     */
+    public int getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     *
+     * @return The data set file that this journal records changes to
+     */
+    public File getDataSet() {
+        return dataSet;
+    }
+
+    /**
+     *
+     * @return The journal file
+     */
+    public File getFile() {
+        return journalFile;
+    }
+
+    /**
+     *
+     * @return The size of the journal file in bytes
+     * @throws IOException
+     */
+    public long size() throws IOException {
+        return channel.size() + pending.size();
+    }
+
+    /**
+     * Determines if the journal has grown large enough that the data store
+     * should be saved and the journal reset
+     * @return true if the journal should be compacted
+     * @throws IOException
+     */
+    public boolean needsCompaction() throws IOException {
+        return size() > COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Empties the journal. This must be called after the data store has
+     * been saved to the data set file.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        pending.reset();
+        writeHeader();
+    }
+
+    /**
+     * Writes all pending records and returns the position in the journal
+     * after the last record. This can be used with
+     * {@link #rebase(java.io.File, long)} when the data store is saved
+     * from a snapshot while changes continue to be recorded.
+     * @return The current end of the journal
+     * @throws IOException
+     */
+    public long mark() throws IOException {
+        writePending();
+        return channel.size();
+    }
+
+    /**
+     * Removes the records before a mark from the journal. This must be
+     * called after a snapshot of the data store, taken when the mark was
+     * made, has been saved to a data set file. Records after the mark
+     * describe changes that the saved file does not contain, so they
+     * are kept.
+     * <p/>
+     * If the data set file is not the file that this journal belongs to,
+     * this journal is discarded and a journal for the new data set is
+     * returned.
+     * <p/>
+     * @param savedDataSet The data set file that the snapshot was saved to
+     * @param mark A value returned by {@link #mark()}
+     * @return The journal that records changes relative to the saved file
+     * @throws IOException
+     */
+    public MarkerJournal rebase(File savedDataSet, long mark) throws IOException {
+        writePending();
+        final ByteBuffer tail = ByteBuffer.allocate((int) Math.max(0, channel.size() - mark));
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, mark + tail.position()) == -1) {
+                throw new EOFException("Journal ended before " + (mark + tail.capacity()));
+            }
+        }
+        tail.flip();
+
+        MarkerJournal journal = this;
+        if (!savedDataSet.getAbsoluteFile().equals(dataSet.getAbsoluteFile())) {
+            journal = new MarkerJournal(savedDataSet, store);
+        }
+        try {
+            journal.writeHeader();
+            while (tail.hasRemaining()) {
+                journal.channel.write(tail);
+            }
+            journal.unsynced.set(true);
+        }
+        catch (IOException | RuntimeException ex) {
+            if (journal != this) {
+                journal.close();
+            }
+            throw ex;
+        }
+        if (journal != this) {
+            store.addFrameDataListener(journal);
+            discard();
+        }
+        return journal;
+    }
+
+    /**
+     * Stops recording changes and closes the journal file. The file is
+     * kept so that it can be replayed later.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        store.removeFrameDataListener(this);
+        syncTask.cancel(false);
+        try {
+            writePending();
+            if (channel.isOpen()) {
+                channel.force(false);
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Stops recording changes and deletes the journal file. This should be
+     * called when the changes in the data store are intentionally
+     * discarded.
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        pending.reset();
+        close();
+        if (!journalFile.delete() && journalFile.exists()) {
+            throw new IOException("Could not delete " + journalFile.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public void valuesAdded(int frame, int index, List<? extends Marker> values) {
+        try {
+            writeRecord(ADD, frame, values);
+        }
+        catch (IOException ex) {
+            // Writing to a byte array does not fail
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void valuesRemoved(int frame, int index, List<? extends Marker> values) {
+        try {
+            writeRecord(REMOVE, frame, values);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void framesChanged(BitSet frames) {
+        try {
+            writePending();
+        }
+        catch (IOException ex) {
+            Logger.getLogger(MarkerJournal.class.getName()).log(Level.SEVERE, "Could not write journal " + journalFile, ex);
+        }
+    }
+
+    /**
+     * Builds a record with the CSV lines of some markers and adds it to
+     * the pending records
+     */
+    private void writeRecord(byte type, int frame, List<? extends Marker> values) throws IOException {
+        record.writeByte(type);
+        record.writeInt(frame);
+        record.writeInt(values.size());
+        for (Marker marker : values) {
+            record.writeUTF(marker.toCSVLine());
+        }
+        endRecord();
+    }
+
+    /**
+     * Moves the record being built to the pending records, with its length
+     * and checksum
+     */
+    private void endRecord() throws IOException {
+        final byte[] body = recordBytes.toByteArray();
+        recordBytes.reset();
+        crc.reset();
+        crc.update(body);
+        final DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes pending records to the journal file
+     */
+    private void writePending() throws IOException {
+        if (pending.size() == 0 || !channel.isOpen()) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        unsynced.set(true);
+    }
+
+    /**
+     * Forces written records to disk if any have been written since the
+     * last time
+     */
+    private void sync() {
+        if (unsynced.getAndSet(false)) {
+            try {
+                channel.force(false);
+            }
+            catch (IOException ex) {
+                Logger.getLogger(MarkerJournal.class.getName()).log(Level.WARNING, "Could not sync journal " + journalFile, ex);
+            }
+        }
+    }
+
+    /**
+     * Truncates the journal file and writes a header for the current
+     * version of the data set
+     */
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(dataSet.length());
+        header.putLong(dataSet.lastModified());
+        header.flip();
+        channel.truncate(0);
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Determines if the journal file has a header that matches the
+     * current version of the data set
+     */
+    private boolean headerMatches() throws IOException {
+        if (channel.size() < HEADER_LENGTH) {
+            return false;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, 0);
+        header.flip();
+        final byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+            return false;
+        }
+        return header.getLong() == dataSet.length() && header.getLong() == dataSet.lastModified();
+    }
+
+    /**
+     * Applies the records in the journal file to the store
+     * @return The offset after the last complete, valid record
+     */
+    private long replay() throws IOException {
+        long position = HEADER_LENGTH;
+        final long size = channel.size();
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        final MarkerTable table = new MarkerTable();
+        store.beginBatch();
+        try {
+            while (position + 4 <= size) {
+                lengthBuffer.clear();
+                readFully(lengthBuffer, position);
+                final int length = lengthBuffer.getInt(0);
+                if (length <= 0 || position + 4 + length + 4 > size) {
+                    // Partly written record
+                    break;
+                }
+                final ByteBuffer body = ByteBuffer.allocate(length + 4);
+                readFully(body, position + 4);
+                crc.reset();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != body.getInt(length)) {
+                    break;
+                }
+                body.clear();
+                body.limit(length);
+                boolean applied;
+                try {
+                    applied = apply(body, table);
+                }
+                catch (BufferUnderflowException ex) {
+                    applied = false;
+                }
+                if (!applied) {
+                    Logger.getLogger(MarkerJournal.class.getName()).log(Level.WARNING, "Journal {0} does not match the data set. Ignoring the rest of it.", journalFile);
+                    break;
+                }
+                recoveredCount++;
+                position += 4 + length + 4;
+            }
+        }
+        finally {
+            store.endBatch();
+        }
+        return position;
+    }
+
+    /**
+     * Applies one record to the store
+     * @return false if the record does not match the store
+     */
+    private boolean apply(ByteBuffer body, MarkerTable table) {
+        final byte type = body.get();
+        final int frame = body.getInt();
+        final int count = body.getInt();
+        if (count < 0 || (type != ADD && type != REMOVE)) {
+            return false;
+        }
+        final List<String> lines = new ArrayList<>(count);
+        final List<Marker> markers = new ArrayList<>(count);
+        table.clear();
+        for (int i = 0; i < count; i++) {
+            final int length = body.getShort() & 0xFFFF;
+            final byte[] line = new byte[length];
+            body.get(line);
+            try {
+                MarkerCSVParser.parseLine(ByteBuffer.wrap(line), 0, length, table, 0);
+            }
+            catch (ParseException ex) {
+                return false;
+            }
+            final Marker marker = table.toMarker(i);
+            markers.add(marker);
+            lines.add(marker.toCSVLine());
+        }
+
+        final List<Marker> frameData = store.getFrameData(frame);
+        if (type == ADD) {
+            frameData.addAll(markers);
+            return true;
+        }
+        // Find every removed marker before removing any of them
+        final int[] indexes = new int[count];
+        final boolean[] matched = new boolean[frameData.size()];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = -1;
+            for (int j = 0; j < frameData.size(); j++) {
+                if (!matched[j] && frameData.get(j).toCSVLine().equals(lines.get(i))) {
+                    matched[j] = true;
+                    indexes[i] = j;
+                    break;
+                }
+            }
+            if (indexes[i] == -1) {
+                return false;
+            }
+        }
+        // Remove from the end so that the other indexes stay valid
+        Arrays.sort(indexes);
+        for (int i = count - 1; i >= 0; i--) {
+            frameData.remove(indexes[i]);
+        }
+        return true;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Unexpected end of journal " + journalFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.samcrow.frameviewer.io3;
+
+import com.google.common.collect.AbstractIterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+
+/**
+ * Selects markers from a {@link PersistentFrameDataStore} that match
+ * a set of conditions.
+ * <p>
+ * A query is created with {@link PersistentFrameDataStore#query()} and
+ * configured by calling its condition methods, which each return the query.
+ * For example, to find all two-way interactions in the entrance chamber
+ * between frames 9000 and 18000:
+ * <pre>
+ * store.query().frames(9000, 18000)
+ *         .location(AntLocation.EntranceChamber)
+ *         .interactionType(InteractionMarker.InteractionType.TwoWay)
+ * </pre>
+ * <p>
+ * Iterating over a query finds matching markers lazily. If an ant ID has
+ * been specified, only that ant's markers are examined, using the store's
+ * trajectory index. Otherwise, only the frames in the frame range are
+ * examined. {@link #listParallel()} searches a snapshot of the store using
+ * several threads.
+ * <p>
+ * @author Sam Crow
+ * @param <T> The type of marker
+ */
+public class MarkerQuery<T extends Marker> implements Iterable<T> {
+
+    /**
+     * The minimum number of frames to search in each parallel task
+     */
+    private static final int PARALLEL_THRESHOLD = 512;
+
+    private final PersistentFrameDataStore<T> store;
+
+    private int firstFrame = Integer.MIN_VALUE;
+    private int lastFrame = Integer.MAX_VALUE;
+
+    private boolean antSpecified;
+    private int antId;
+
+    private AntActivity activity;
+    private AntLocation location;
+
+    private InteractionMarker.InteractionType interactionType;
+
+    private boolean metAntSpecified;
+    private int metAntId;
+
+    MarkerQuery(PersistentFrameDataStore<T> store) {
+        this.store = store;
+    }
+
+    /**
+     * Limits this query to markers within a range of frames
+     * @param firstFrame The first frame to include
+     * @param lastFrame The last frame to include
+     * @return this query
+     */
+    public MarkerQuery<T> frames(int firstFrame, int lastFrame) {
+        this.firstFrame = firstFrame;
+        this.lastFrame = lastFrame;
+        return this;
+    }
+
+    /**
+     * Limits this query to markers for one focal ant
+     * @param antId The ID of the ant
+     * @return this query
+     */
+    public MarkerQuery<T> ant(int antId) {
+        this.antId = antId;
+        antSpecified = true;
+        return this;
+    }
+
+    /**
+     * Limits this query to markers with a focal ant activity
+     * @param activity The activity
+     * @return this query
+     */
+    public MarkerQuery<T> activity(AntActivity activity) {
+        this.activity = activity;
+        return this;
+    }
+
+    /**
+     * Limits this query to markers with a focal ant location
+     * @param location The location
+     * @return this query
+     */
+    public MarkerQuery<T> location(AntLocation location) {
+        this.location = location;
+        return this;
+    }
+
+    /**
+     * Limits this query to interaction markers with an interaction type
+     * @param type The interaction type
+     * @return this query
+     */
+    public MarkerQuery<T> interactionType(InteractionMarker.InteractionType type) {
+        this.interactionType = type;
+        return this;
+    }
+
+    /**
+     * Limits this query to interaction markers in which the focal ant
+     * met a specific ant
+     * @param metAntId The ID of the met ant
+     * @return this query
+     */
+    public MarkerQuery<T> metAnt(int metAntId) {
+        this.metAntId = metAntId;
+        metAntSpecified = true;
+        return this;
+    }
+
+    /**
+     * 
+     * @param marker A marker
+     * @return true if the marker matches all the conditions of this query
+     */
+    public boolean matches(Marker marker) {
+        if (marker.getFrame() < firstFrame || marker.getFrame() > lastFrame) {
+            return false;
+        }
+        if (antSpecified && marker.getAntId() != antId) {
+            return false;
+        }
+        if (activity != null && marker.getFocusAntActivity() != activity) {
+            return false;
+        }
+        if (location != null && marker.getFocusAntLocation() != location) {
+            return false;
+        }
+        if (interactionType != null || metAntSpecified) {
+            if (!(marker instanceof InteractionMarker)) {
+                return false;
+            }
+            final InteractionMarker interaction = (InteractionMarker) marker;
+            if (interactionType != null && interaction.getType() != interactionType) {
+                return false;
+            }
+            if (metAntSpecified && interaction.getMetAntId() != metAntId) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an iterator over the matching markers. Markers are found as the
+     * iterator advances. The iterator does not support removal, and it must
+     * not be used after the store has been modified.
+     * @return an iterator
+     */
+    @Override
+    public Iterator<T> iterator() {
+        if (antSpecified) {
+            // Markers are in frame order
+            return filter(store.getTrajectoryIndex().iterator(antId, firstFrame, lastFrame));
+        }
+        final Iterator<List<T>> frameIterator = store.iterator(firstFrame, lastFrame);
+        return filter(new AbstractIterator<T>() {
+
+            private Iterator<T> markerIterator = Collections.emptyIterator();
+
+            @Override
+            protected T computeNext() {
+                while (!markerIterator.hasNext()) {
+                    if (!frameIterator.hasNext()) {
+                        return endOfData();
+                    }
+                    markerIterator = frameIterator.next().iterator();
+                }
+                return markerIterator.next();
+            }
+        });
+    }
+
+    /**
+     * 
+     * @return A list of the matching markers
+     */
+    public List<T> list() {
+        final List<T> result = new ArrayList<>();
+        for (T marker : this) {
+            result.add(marker);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return The number of matching markers
+     */
+    public int count() {
+        int count = 0;
+        for (Iterator<T> iterator = iterator(); iterator.hasNext();) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the matching markers using several threads.
+     * <p>
+     * This takes a snapshot of the store and searches the snapshot in
+     * parallel, so it is most useful for queries that must examine a large
+     * part of the dataset. It must be called on the thread that modifies the
+     * store, but the store may be modified as soon as it returns.
+     * @return A list of the matching markers, in frame order
+     */
+    public List<T> listParallel() {
+        final FrameDataSnapshot<T> snapshot = store.snapshot();
+        final int startIndex = ceilingIndex(snapshot, firstFrame);
+        final int endIndex = lastFrame == Integer.MAX_VALUE ? snapshot.getFrameCount() : ceilingIndex(snapshot, lastFrame + 1);
+        return WorkerPool.POOL.invoke(new SearchTask(snapshot, startIndex, endIndex));
+    }
+
+    /**
+     * 
+     * @return The index of the first frame in the snapshot at or after
+     * the provided frame
+     */
+    private static int ceilingIndex(FrameDataSnapshot<?> snapshot, int frame) {
+        int low = 0;
+        int high = snapshot.getFrameCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (snapshot.getFrameAt(middle) < frame) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Iterator<T> filter(final Iterator<T> source) {
+        return new AbstractIterator<T>() {
+            @Override
+            protected T computeNext() {
+                while (source.hasNext()) {
+                    final T marker = source.next();
+                    if (matches(marker)) {
+                        return marker;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * A task that searches a range of frames in a snapshot, splitting it
+     * among subtasks if it is large
+     */
+    private class SearchTask extends RecursiveTask<List<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FrameDataSnapshot<T> snapshot;
+        private final int startIndex;
+        private final int endIndex;
+
+        SearchTask(FrameDataSnapshot<T> snapshot, int startIndex, int endIndex) {
+            this.snapshot = snapshot;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (endIndex - startIndex <= PARALLEL_THRESHOLD) {
+                final List<T> result = new ArrayList<>();
+                for (int i = startIndex; i < endIndex; i++) {
+                    for (T marker : snapshot.getFrameDataAt(i)) {
+                        if (matches(marker)) {
+                            result.add(marker);
+                        }
+                    }
+                }
+                return result;
+            }
+            final int middle = (startIndex + endIndex) >>> 1;
+            final SearchTask second = new SearchTask(snapshot, middle, endIndex);
+            second.fork();
+            final List<T> result = new SearchTask(snapshot, startIndex, middle).compute();
+            result.addAll(second.join());
+            return result;
+        }
+    }
+}
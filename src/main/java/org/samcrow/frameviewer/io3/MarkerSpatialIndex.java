@@ -0,0 +1,343 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+import org.samcrow.frameviewer.FrameDataListener;
+import org.samcrow.frameviewer.FrameLoadListener;
+import org.samcrow.frameviewer.FrameDataStore;
+import org.samcrow.frameviewer.SparseFrameMap;
+
+/**
+ * Indexes the markers in a data store by position, using a uniform grid
+ * for each frame.
+ * <p>
+ * The index is kept up to date as markers are added to and removed from the
+ * store. It can find the marker nearest to a point on one frame without
+ * checking every marker on the frame, and it can find all the markers
+ * within a rectangle over a range of frames.
+ * <p>
+ * Markers are indexed at the position that they have when they are added.
+ * A marker must not be moved while it is in the store.
+ * <p>
+ * This class is not thread-safe. It should be used on the same thread as
+ * the store that it indexes.
+ * <p>
+ * @author Sam Crow
+ * @param <T> The type of marker to index
+ */
+public class MarkerSpatialIndex<T extends Marker> implements FrameDataListener<T>, FrameLoadListener<T> {
+
+    /**
+     * The width and height, in frame coordinates, of each grid cell
+     */
+    private static final int CELL_SIZE = 32;
+
+    /**
+     * The minimum number of frames to search in each parallel task
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    private final FrameDataStore<T> store;
+
+    /**
+     * The grid for each frame that has markers
+     */
+    private final SparseFrameMap<Grid<T>> grids = new SparseFrameMap<>();
+
+    /**
+     * Creates an index of the markers that a store has in memory, and
+     * configures it to update when the store changes
+     * @param store The store to index
+     */
+    public MarkerSpatialIndex(FrameDataStore<T> store) {
+        this.store = store;
+        for (List<T> frameMarkers : store.loadedFrames()) {
+            for (T marker : frameMarkers) {
+                add(marker.getFrame(), marker);
+            }
+        }
+        store.addFrameDataListener(this);
+        store.addFrameLoadListener(this);
+    }
+
+    /**
+     * Stops updating this index when the store changes
+     */
+    public void detach() {
+        store.removeFrameDataListener(this);
+        store.removeFrameLoadListener(this);
+    }
+
+    @Override
+    public void valuesAdded(int frame, int index, List<? extends T> values) {
+        for (T marker : values) {
+            add(frame, marker);
+        }
+    }
+
+    @Override
+    public void valuesRemoved(int frame, int index, List<? extends T> values) {
+        final Grid<T> grid = grids.get(frame);
+        if (grid == null) {
+            return;
+        }
+        for (T marker : values) {
+            grid.remove(marker);
+        }
+        if (grid.isEmpty()) {
+            grids.remove(frame);
+        }
+    }
+
+    @Override
+    public void framesChanged(BitSet frames) {
+        // Nothing to do; the index was updated as values were added and removed
+    }
+
+    @Override
+    public void valuesLoaded(int frame, List<? extends T> values) {
+        valuesAdded(frame, 0, values);
+    }
+
+    @Override
+    public void valuesUnloaded(int frame, List<? extends T> values) {
+        valuesRemoved(frame, 0, values);
+    }
+
+    private void add(int frame, T marker) {
+        Grid<T> grid = grids.get(frame);
+        if (grid == null) {
+            grid = new Grid<>();
+            grids.put(frame, grid);
+        }
+        grid.add(marker);
+    }
+
+    /**
+     * Finds the marker on a frame that is closest to a point
+     * @param frame The frame to search
+     * @param x The X coordinate of the point, in frame coordinates
+     * @param y The Y coordinate of the point, in frame coordinates
+     * @param radius The maximum distance from the point to the marker
+     * @return The closest marker within the radius, or null if none exists
+     */
+    public T findNearest(int frame, double x, double y, double radius) {
+        final Grid<T> grid = grids.get(frame);
+        if (grid == null) {
+            return null;
+        }
+        T nearest = null;
+        double nearestDistanceSquared = radius * radius;
+        for (List<T> cell : grid.cells(x - radius, y - radius, x + radius, y + radius)) {
+            for (T marker : cell) {
+                final double dx = marker.getX() - x;
+                final double dy = marker.getY() - y;
+                final double distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared <= nearestDistanceSquared) {
+                    nearest = marker;
+                    nearestDistanceSquared = distanceSquared;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Finds all the markers within a rectangle over a range of frames
+     * @param firstFrame The first frame to search
+     * @param lastFrame The last frame to search
+     * @param minX The minimum X coordinate, inclusive
+     * @param minY The minimum Y coordinate, inclusive
+     * @param maxX The maximum X coordinate, inclusive
+     * @param maxY The maximum Y coordinate, inclusive
+     * @return The markers in the rectangle, in frame order
+     */
+    public List<T> query(int firstFrame, int lastFrame, double minX, double minY, double maxX, double maxY) {
+        final List<T> result = new ArrayList<>();
+        if (firstFrame > lastFrame) {
+            return result;
+        }
+        search(grids.ceilingIndex(firstFrame), endIndex(lastFrame), minX, minY, maxX, maxY, result);
+        return result;
+    }
+
+    /**
+     * Finds all the markers within a rectangle over a range of frames,
+     * dividing the frames among several threads. This method blocks until
+     * the search is complete, and the store must not be modified until
+     * it returns.
+     * @param firstFrame The first frame to search
+     * @param lastFrame The last frame to search
+     * @param minX The minimum X coordinate, inclusive
+     * @param minY The minimum Y coordinate, inclusive
+     * @param maxX The maximum X coordinate, inclusive
+     * @param maxY The maximum Y coordinate, inclusive
+     * @return The markers in the rectangle, in frame order
+     */
+    public List<T> queryParallel(int firstFrame, int lastFrame, double minX, double minY, double maxX, double maxY) {
+        if (firstFrame > lastFrame) {
+            return new ArrayList<>();
+        }
+        return WorkerPool.POOL.invoke(new SearchTask(grids.ceilingIndex(firstFrame), endIndex(lastFrame), minX, minY, maxX, maxY));
+    }
+
+    /**
+     * 
+     * @param lastFrame The last frame to include
+     * @return The index in the grid map after the last grid at or before
+     * the provided frame
+     */
+    private int endIndex(int lastFrame) {
+        return lastFrame == Integer.MAX_VALUE ? grids.size() : grids.ceilingIndex(lastFrame + 1);
+    }
+
+    /**
+     * Searches the grids with indexes in a range and adds the markers found
+     * to a list
+     */
+    private void search(int startIndex, int endIndex, double minX, double minY, double maxX, double maxY, List<T> result) {
+        for (int i = startIndex; i < endIndex; i++) {
+            for (List<T> cell : grids.valueAt(i).cells(minX, minY, maxX, maxY)) {
+                for (T marker : cell) {
+                    if (marker.getX() >= minX && marker.getX() <= maxX && marker.getY() >= minY && marker.getY() <= maxY) {
+                        result.add(marker);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A task that searches a range of grids, splitting it among subtasks
+     * if it is large
+     */
+    private class SearchTask extends RecursiveTask<List<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int startIndex;
+        private final int endIndex;
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+
+        SearchTask(int startIndex, int endIndex, double minX, double minY, double maxX, double maxY) {
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (endIndex - startIndex <= PARALLEL_THRESHOLD) {
+                final List<T> result = new ArrayList<>();
+                search(startIndex, endIndex, minX, minY, maxX, maxY, result);
+                return result;
+            }
+            final int middle = (startIndex + endIndex) >>> 1;
+            final SearchTask second = new SearchTask(middle, endIndex, minX, minY, maxX, maxY);
+            second.fork();
+            final List<T> result = new SearchTask(startIndex, middle, minX, minY, maxX, maxY).compute();
+            result.addAll(second.join());
+            return result;
+        }
+    }
+
+    /**
+     * A grid of cells for one frame
+     */
+    private static final class Grid<T extends Marker> {
+
+        /**
+         * Maps cell keys to the markers in each cell
+         */
+        private final Map<Long, List<T>> cells = new HashMap<>();
+
+        private static long key(int cellX, int cellY) {
+            return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+        }
+
+        private static int cell(double coordinate) {
+            return (int) Math.floor(coordinate / CELL_SIZE);
+        }
+
+        void add(T marker) {
+            final Long key = key(cell(marker.getX()), cell(marker.getY()));
+            List<T> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<>(2);
+                cells.put(key, cell);
+            }
+            cell.add(marker);
+        }
+
+        void remove(T marker) {
+            final Long key = key(cell(marker.getX()), cell(marker.getY()));
+            final List<T> cell = cells.get(key);
+            if (cell != null && removeIdentical(cell, marker)) {
+                if (cell.isEmpty()) {
+                    cells.remove(key);
+                }
+                return;
+            }
+            // The marker may have been moved after it was added. Check every cell.
+            for (Iterator<List<T>> iterator = cells.values().iterator(); iterator.hasNext();) {
+                final List<T> otherCell = iterator.next();
+                if (removeIdentical(otherCell, marker)) {
+                    if (otherCell.isEmpty()) {
+                        iterator.remove();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private static <T> boolean removeIdentical(List<T> list, T value) {
+            for (Iterator<T> iterator = list.iterator(); iterator.hasNext();) {
+                if (iterator.next() == value) {
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return cells.isEmpty();
+        }
+
+        /**
+         * Returns the cells that may contain markers within a rectangle
+         */
+        List<List<T>> cells(double minX, double minY, double maxX, double maxY) {
+            final long minCellX = cell(minX);
+            final long minCellY = cell(minY);
+            final long maxCellX = cell(maxX);
+            final long maxCellY = cell(maxY);
+            final long rectangleCells = (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1);
+            if (rectangleCells >= cells.size()) {
+                // Checking every cell is faster
+                return new ArrayList<>(cells.values());
+            }
+            final List<List<T>> found = new ArrayList<>();
+            for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    final List<T> cell = cells.get(key((int) cellX, (int) cellY));
+                    if (cell != null) {
+                        found.add(cell);
+                    }
+                }
+            }
+            return found;
+        }
+    }
+}
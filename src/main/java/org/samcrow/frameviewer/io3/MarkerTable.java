@@ -0,0 +1,512 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.Arrays;
+import java.util.List;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+import org.samcrow.frameviewer.FrameDataStore;
+
+/**
+ * Stores markers in columns of primitive values instead of as individual
+ * {@link Marker} objects. This uses much less memory per marker, and scans
+ * over one field (for example, all the frame numbers) read one contiguous
+ * array.
+ * <p>
+ * Enumeration values are stored as their ordinals in byte columns.
+ * Rows that are not interactions have {@link #NOT_INTERACTION} in the
+ * interaction type column and 0 in the other interaction columns.
+ * <p>
+ * A row can be read through a lightweight {@link Row} view or converted
+ * into a full Marker object with {@link #toMarker(int)}.
+ * <p>
+ * This class is not thread-safe.
+ * @author Sam Crow
+ */
+public class MarkerTable {
+
+    /**
+     * The value of the interaction type column for markers that are not
+     * interactions
+     */
+    public static final byte NOT_INTERACTION = -1;
+
+    private static final AntActivity[] ACTIVITIES = AntActivity.values();
+    private static final AntLocation[] LOCATIONS = AntLocation.values();
+    private static final InteractionMarker.InteractionType[] INTERACTION_TYPES = InteractionMarker.InteractionType.values();
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * The number of values of each digit in {@link #antFrameOrder()}
+     */
+    private static final int RADIX = 1 << 16;
+
+    private int[] antId;
+    private int[] frame;
+    private int[] x;
+    private int[] y;
+    private byte[] focusAntActivity;
+    private byte[] focusAntLocation;
+
+    private byte[] interactionType;
+    private byte[] metAntActivity;
+    private byte[] metAntLocation;
+    private int[] metAntId;
+
+    /**
+     * The number of rows in use
+     */
+    private int size;
+
+    public MarkerTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param initialCapacity The number of rows that this table can hold before
+     * it needs to expand
+     */
+    public MarkerTable(int initialCapacity) {
+        allocate(Math.max(initialCapacity, 1));
+    }
+
+    /**
+     * Creates a table containing all the markers in a data store, in frame
+     * order
+     * @param store The store to copy markers from
+     * @return a table
+     */
+    public static MarkerTable fromStore(FrameDataStore<? extends Marker> store) {
+        MarkerTable table = new MarkerTable();
+        for (List<? extends Marker> frameMarkers : store) {
+            for (Marker marker : frameMarkers) {
+                table.add(marker);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Creates a table containing all the markers in a snapshot, in frame
+     * order. This may be called from any thread.
+     * @param snapshot The snapshot to copy markers from
+     * @return a table
+     */
+    public static MarkerTable fromSnapshot(FrameDataSnapshot<? extends Marker> snapshot) {
+        MarkerTable table = new MarkerTable(snapshot.size());
+        for (List<? extends Marker> frameMarkers : snapshot) {
+            for (Marker marker : frameMarkers) {
+                table.add(marker);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Appends a marker to this table
+     * @param marker The marker to add
+     */
+    public void add(Marker marker) {
+        if (marker instanceof InteractionMarker) {
+            InteractionMarker interaction = (InteractionMarker) marker;
+            add(marker.getAntId(), marker.getFrame(), marker.getX(), marker.getY(),
+                    (byte) marker.getFocusAntActivity().ordinal(), (byte) marker.getFocusAntLocation().ordinal(),
+                    (byte) interaction.getType().ordinal(),
+                    (byte) interaction.getMetAntActivity().ordinal(), (byte) interaction.getMetAntLocation().ordinal(),
+                    interaction.getMetAntId());
+        }
+        else {
+            add(marker.getAntId(), marker.getFrame(), marker.getX(), marker.getY(),
+                    (byte) marker.getFocusAntActivity().ordinal(), (byte) marker.getFocusAntLocation().ordinal(),
+                    NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+        }
+    }
+
+    /**
+     * Appends a row to this table
+     * @param antId The focal ant ID
+     * @param frame The frame number
+     * @param x The X position
+     * @param y The Y position
+     * @param focusAntActivity The ordinal of the focal ant's {@link AntActivity}
+     * @param focusAntLocation The ordinal of the focal ant's {@link AntLocation}
+     * @param interactionType The ordinal of the
+     * {@link InteractionMarker.InteractionType}, or {@link #NOT_INTERACTION}
+     * @param metAntActivity The ordinal of the met ant's activity
+     * @param metAntLocation The ordinal of the met ant's location
+     * @param metAntId The ID of the met ant
+     */
+    public void add(int antId, int frame, int x, int y, byte focusAntActivity, byte focusAntLocation,
+            byte interactionType, byte metAntActivity, byte metAntLocation, int metAntId) {
+        if (size == this.antId.length) {
+            allocate(size + (size >> 1) + 1);
+        }
+        final int row = size++;
+        this.antId[row] = antId;
+        this.frame[row] = frame;
+        this.x[row] = x;
+        this.y[row] = y;
+        this.focusAntActivity[row] = focusAntActivity;
+        this.focusAntLocation[row] = focusAntLocation;
+        this.interactionType[row] = interactionType;
+        this.metAntActivity[row] = metAntActivity;
+        this.metAntLocation[row] = metAntLocation;
+        this.metAntId[row] = metAntId;
+    }
+
+    /**
+     * Appends one row of another table to this table
+     * @param other The table to copy the row from
+     * @param row The index of the row in the other table
+     */
+    public void add(MarkerTable other, int row) {
+        other.checkRow(row);
+        add(other.antId[row], other.frame[row], other.x[row], other.y[row],
+                other.focusAntActivity[row], other.focusAntLocation[row],
+                other.interactionType[row], other.metAntActivity[row], other.metAntLocation[row],
+                other.metAntId[row]);
+    }
+
+    /**
+     * Appends all the rows of another table to this table
+     * @param other The table to copy rows from
+     */
+    public void addAll(MarkerTable other) {
+        if (size + other.size > antId.length) {
+            allocate(size + other.size);
+        }
+        System.arraycopy(other.antId, 0, antId, size, other.size);
+        System.arraycopy(other.frame, 0, frame, size, other.size);
+        System.arraycopy(other.x, 0, x, size, other.size);
+        System.arraycopy(other.y, 0, y, size, other.size);
+        System.arraycopy(other.focusAntActivity, 0, focusAntActivity, size, other.size);
+        System.arraycopy(other.focusAntLocation, 0, focusAntLocation, size, other.size);
+        System.arraycopy(other.interactionType, 0, interactionType, size, other.size);
+        System.arraycopy(other.metAntActivity, 0, metAntActivity, size, other.size);
+        System.arraycopy(other.metAntLocation, 0, metAntLocation, size, other.size);
+        System.arraycopy(other.metAntId, 0, metAntId, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Creates a Marker object for every row of this table and adds it
+     * to a data store. The markers are added in one batch.
+     * @param store The store to add markers to
+     */
+    public void addTo(FrameDataStore<Marker> store) {
+        store.beginBatch();
+        try {
+            for (int row = 0; row < size; row++) {
+                store.getFrameData(frame[row]).add(toMarker(row));
+            }
+        }
+        finally {
+            store.endBatch();
+        }
+    }
+
+    /**
+     * Creates a Marker object with the values in a row
+     * @param row The row index
+     * @return a new Marker, or a new InteractionMarker if the row is an
+     * interaction
+     */
+    public Marker toMarker(int row) {
+        checkRow(row);
+        final Marker marker;
+        if (isInteraction(row)) {
+            InteractionMarker interaction = new InteractionMarker(x[row], y[row],
+                    ACTIVITIES[focusAntActivity[row]], LOCATIONS[focusAntLocation[row]],
+                    ACTIVITIES[metAntActivity[row]], LOCATIONS[metAntLocation[row]]);
+            interaction.setType(INTERACTION_TYPES[interactionType[row]]);
+            interaction.setMetAntId(metAntId[row]);
+            marker = interaction;
+        }
+        else {
+            marker = new Marker(x[row], y[row], ACTIVITIES[focusAntActivity[row]], LOCATIONS[focusAntLocation[row]]);
+        }
+        marker.setAntId(antId[row]);
+        marker.setFrame(frame[row]);
+        return marker;
+    }
+
+    /**
+     * Returns a view of a row. The view reads its values from this table,
+     * so it reflects later changes to the row.
+     * @param row The row index
+     * @return a view
+     */
+    public Row row(int row) {
+        checkRow(row);
+        return new Row(row);
+    }
+
+    /**
+     * 
+     * @return The number of rows in this table
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the indices of the rows of this table sorted by ant ID, then
+     * by frame. Rows with the same ant ID and frame stay in table order.
+     * <p>
+     * This uses a radix sort on 16-bit digits of the keys, so it takes
+     * time proportional to the number of rows and does not compare rows.
+     * @return An array of row indices in sorted order
+     */
+    public int[] antFrameOrder() {
+        // Least significant digit first: low and high digits of the frame,
+        // then low and high digits of the ant ID
+        return radixOrder(new int[][] { frame, frame, antId, antId });
+    }
+
+    /**
+     * Returns the indices of the rows of this table sorted by frame. Rows
+     * with the same frame stay in table order.
+     * @return An array of row indices in sorted order
+     * @see #antFrameOrder()
+     */
+    public int[] frameOrder() {
+        return radixOrder(new int[][] { frame, frame });
+    }
+
+    /**
+     * Sorts the rows with a least significant digit radix sort
+     * @param keys The key column for each pass. Even passes sort on the
+     * low 16 bits of their column and odd passes on the high 16 bits.
+     * @return An array of row indices in sorted order
+     */
+    private int[] radixOrder(int[][] keys) {
+        int[] order = new int[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        int[] scratch = new int[size];
+        final int[] counts = new int[RADIX + 1];
+        for (int pass = 0; pass < keys.length; pass++) {
+            final int[] key = keys[pass];
+            final int shift = (pass % 2) * 16;
+            // Flip the sign bit so that negative values sort first
+            final int flip = shift == 16 ? Integer.MIN_VALUE : 0;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(((key[order[i]] ^ flip) >>> shift) & 0xFFFF) + 1]++;
+            }
+            for (int digit = 0; digit < RADIX; digit++) {
+                counts[digit + 1] += counts[digit];
+            }
+            for (int i = 0; i < size; i++) {
+                final int row = order[i];
+                scratch[counts[((key[row] ^ flip) >>> shift) & 0xFFFF]++] = row;
+            }
+            final int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+        return order;
+    }
+
+    /**
+     * Reduces the capacity of this table to its size
+     */
+    public void trimToSize() {
+        if (size < antId.length) {
+            allocate(Math.max(size, 1));
+        }
+    }
+
+    public int getAntId(int row) {
+        checkRow(row);
+        return antId[row];
+    }
+
+    public int getFrame(int row) {
+        checkRow(row);
+        return frame[row];
+    }
+
+    public int getX(int row) {
+        checkRow(row);
+        return x[row];
+    }
+
+    public int getY(int row) {
+        checkRow(row);
+        return y[row];
+    }
+
+    public AntActivity getFocusAntActivity(int row) {
+        checkRow(row);
+        return ACTIVITIES[focusAntActivity[row]];
+    }
+
+    public AntLocation getFocusAntLocation(int row) {
+        checkRow(row);
+        return LOCATIONS[focusAntLocation[row]];
+    }
+
+    /**
+     * 
+     * @param row The row index
+     * @return true if the row is an interaction
+     */
+    public boolean isInteraction(int row) {
+        checkRow(row);
+        return interactionType[row] != NOT_INTERACTION;
+    }
+
+    /**
+     * 
+     * @param row The row index
+     * @return The interaction type of the row, or null if it is not an
+     * interaction
+     */
+    public InteractionMarker.InteractionType getInteractionType(int row) {
+        return isInteraction(row) ? INTERACTION_TYPES[interactionType[row]] : null;
+    }
+
+    /**
+     * 
+     * @param row The row index
+     * @return The activity of the met ant, or null if the row is not an
+     * interaction
+     */
+    public AntActivity getMetAntActivity(int row) {
+        return isInteraction(row) ? ACTIVITIES[metAntActivity[row]] : null;
+    }
+
+    /**
+     * 
+     * @param row The row index
+     * @return The location of the met ant, or null if the row is not an
+     * interaction
+     */
+    public AntLocation getMetAntLocation(int row) {
+        return isInteraction(row) ? LOCATIONS[metAntLocation[row]] : null;
+    }
+
+    public int getMetAntId(int row) {
+        checkRow(row);
+        return metAntId[row];
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", size " + size);
+        }
+    }
+
+    /**
+     * Resizes all the columns
+     * @param capacity The new capacity
+     */
+    private void allocate(int capacity) {
+        if (antId == null) {
+            antId = new int[capacity];
+            frame = new int[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+            focusAntActivity = new byte[capacity];
+            focusAntLocation = new byte[capacity];
+            interactionType = new byte[capacity];
+            metAntActivity = new byte[capacity];
+            metAntLocation = new byte[capacity];
+            metAntId = new int[capacity];
+        }
+        else {
+            antId = Arrays.copyOf(antId, capacity);
+            frame = Arrays.copyOf(frame, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            focusAntActivity = Arrays.copyOf(focusAntActivity, capacity);
+            focusAntLocation = Arrays.copyOf(focusAntLocation, capacity);
+            interactionType = Arrays.copyOf(interactionType, capacity);
+            metAntActivity = Arrays.copyOf(metAntActivity, capacity);
+            metAntLocation = Arrays.copyOf(metAntLocation, capacity);
+            metAntId = Arrays.copyOf(metAntId, capacity);
+        }
+    }
+
+    /**
+     * A view of one row of a table
+     */
+    public final class Row {
+
+        private final int row;
+
+        private Row(int row) {
+            this.row = row;
+        }
+
+        /**
+         * 
+         * @return The index of this row in its table
+         */
+        public int getIndex() {
+            return row;
+        }
+
+        public int getAntId() {
+            return MarkerTable.this.getAntId(row);
+        }
+
+        public int getFrame() {
+            return MarkerTable.this.getFrame(row);
+        }
+
+        public int getX() {
+            return MarkerTable.this.getX(row);
+        }
+
+        public int getY() {
+            return MarkerTable.this.getY(row);
+        }
+
+        public AntActivity getFocusAntActivity() {
+            return MarkerTable.this.getFocusAntActivity(row);
+        }
+
+        public AntLocation getFocusAntLocation() {
+            return MarkerTable.this.getFocusAntLocation(row);
+        }
+
+        public boolean isInteraction() {
+            return MarkerTable.this.isInteraction(row);
+        }
+
+        public InteractionMarker.InteractionType getInteractionType() {
+            return MarkerTable.this.getInteractionType(row);
+        }
+
+        public AntActivity getMetAntActivity() {
+            return MarkerTable.this.getMetAntActivity(row);
+        }
+
+        public AntLocation getMetAntLocation() {
+            return MarkerTable.this.getMetAntLocation(row);
+        }
+
+        public int getMetAntId() {
+            return MarkerTable.this.getMetAntId(row);
+        }
+
+        /**
+         * 
+         * @return A new Marker object with the values in this row
+         */
+        public Marker toMarker() {
+            return MarkerTable.this.toMarker(row);
+        }
+    }
+}
@@ -0,0 +1,691 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import org.samcrow.frameviewer.FrameDataListener;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+import org.samcrow.frameviewer.FrameDataStore;
+
+/**
+ * A data store that keeps only some of the markers in a binary marker file
+ * in memory.
+ * <p/>
+ * The file's block index is read when the store is opened, so opening
+ * takes the same time for any size of file. Markers are loaded in pages,
+ * where a page is a group of blocks whose frame ranges overlap. The pages
+ * within {@link #getWindow()} frames of the current frame are loaded when
+ * the current frame changes, and any other page is loaded when one of its
+ * frames is accessed.
+ * <p/>
+ * When more than {@link #getMaxLoadedMarkers()} markers are loaded, the
+ * least recently used pages are unloaded. A page is never unloaded if it
+ * is near the current frame, is being accessed, or contains changes that
+ * have not been saved with {@link #writeBinaryTo(java.io.File)}.
+ * <p/>
+ * Iterating over every frame loads the entire file, and so does taking a
+ * snapshot, although pages that can be unloaded are unloaded again when
+ * the snapshot has been taken. To save the store without loading the file,
+ * use {@link #writeBinaryTo(java.io.File)}. Indexes of the markers should use {@link #loadedFrames()} and
+ * listen for {@link org.samcrow.frameviewer.FrameLoadListener} events.
+ * <p/>
+ * This class is not thread-safe.
+ * @author Sam Crow
+ */
+public class PagedMarkerStore extends FrameDataStore<Marker> implements Closeable {
+
+    /**
+     * The default number of frames before and after the current frame to
+     * keep loaded, five minutes of video at 30 frames per second
+     */
+    public static final int DEFAULT_WINDOW = 9000;
+
+    /**
+     * The default maximum number of markers to keep loaded when pages
+     * could be unloaded
+     */
+    public static final int DEFAULT_MAX_LOADED_MARKERS = 1 << 20;
+
+    /**
+     * A group of consecutive blocks that are loaded and unloaded together.
+     * Blocks with overlapping frame ranges are in the same page, so each
+     * frame is in at most one page.
+     */
+    private static final class Page {
+
+        /**
+         * The offset of the first block
+         */
+        final long offset;
+
+        final int firstFrame;
+
+        int lastFrame;
+
+        int blocks;
+
+        int rows;
+
+        boolean loaded;
+
+        Page(BinaryMarkerFormat.BlockInfo block) {
+            offset = block.offset;
+            firstFrame = block.firstFrame;
+            lastFrame = block.lastFrame;
+            blocks = 1;
+            rows = block.rows;
+        }
+    }
+
+    private File file;
+
+    private FileChannel channel;
+
+    private BinaryMarkerFormat.Dictionaries dictionaries;
+
+    private BinaryMarkerFormat.BlockDecoder decoder;
+
+    /**
+     * The pages of the file, in frame order
+     */
+    private List<Page> pages;
+
+    /**
+     * The loaded pages, from least recently to most recently used
+     */
+    private final LinkedHashMap<Page, Boolean> loadedPages = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of markers in the loaded pages
+     */
+    private int loadedMarkers;
+
+    /**
+     * The frames that have changed since the file was written, or since
+     * the save in progress was prepared
+     */
+    private final BitSet unsavedFrames = new BitSet();
+
+    private int window = DEFAULT_WINDOW;
+
+    private int maxLoadedMarkers = DEFAULT_MAX_LOADED_MARKERS;
+
+    /**
+     * The save in progress, or null. Pages are not unloaded while a save
+     * is in progress.
+     */
+    private BinarySave activeSave;
+
+    private PagedMarkerStore(File file, FileChannel channel, BinaryMarkerFormat.Dictionaries dictionaries, List<Page> pages) {
+        this.file = file;
+        this.channel = channel;
+        this.dictionaries = dictionaries;
+        this.decoder = new BinaryMarkerFormat.BlockDecoder(dictionaries);
+        this.pages = pages;
+
+        addFrameDataListener(new FrameDataListener<Marker>() {
+            @Override
+            public void valuesAdded(int frame, int index, List<? extends Marker> values) {
+                markUnsaved(frame);
+            }
+
+            @Override
+            public void valuesRemoved(int frame, int index, List<? extends Marker> values) {
+                markUnsaved(frame);
+            }
+
+            @Override
+            public void framesChanged(BitSet frames) {
+
+            }
+        });
+        currentFrameProperty().addListener(new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> ov, Number oldValue, Number newValue) {
+                final int frame = newValue.intValue();
+                load(windowStart(frame), windowEnd(frame));
+                evict(frame, frame);
+            }
+        });
+    }
+
+    /**
+     * Opens a binary marker file. Only the file header and block index are
+     * read.
+     * <p/>
+     * @param file The file to open. This must not be changed by other
+     * programs while the store is open.
+     * @return A store that reads markers from the file
+     * @throws IOException if the file could not be read
+     * @throws ParseException if the file is not a complete binary marker
+     * file
+     */
+    public static PagedMarkerStore open(File file) throws IOException, ParseException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final BinaryMarkerFormat.Dictionaries dictionaries = BinaryMarkerFormat.readHeader(channel);
+            final List<Page> pages = pagesFor(BinaryMarkerFormat.readIndex(channel));
+            return new PagedMarkerStore(file, channel, dictionaries, pages);
+        }
+        catch (IOException | ParseException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Determines if a file can be opened with {@link #open(java.io.File)}
+     * @param file The file to check
+     * @return true if the file starts like an uncompressed binary marker
+     * file
+     * @throws IOException if the file could not be read
+     */
+    public static boolean canOpen(File file) throws IOException {
+        final byte[] start = new byte[BinaryMarkerFormat.MAGIC.length];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < start.length && (read = in.read(start, length, start.length - length)) != -1) {
+                length += read;
+            }
+        }
+        return BinaryMarkerFormat.hasMagic(start, length);
+    }
+
+    /**
+     * Groups blocks into pages
+     * @param blocks The blocks of a file, in frame order
+     * @return The pages
+     */
+    private static List<Page> pagesFor(List<BinaryMarkerFormat.BlockInfo> blocks) {
+        final List<Page> pages = new ArrayList<>();
+        Page page = null;
+        for (BinaryMarkerFormat.BlockInfo block : blocks) {
+            if (page != null && block.firstFrame <= page.lastFrame) {
+                // A frame continues from the previous block
+                page.lastFrame = Math.max(page.lastFrame, block.lastFrame);
+                page.blocks++;
+                page.rows += block.rows;
+            }
+            else {
+                page = new Page(block);
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Finds the first page that ends at or after a frame
+     * @return The index of the page, or the number of pages if all pages
+     * end before the frame
+     */
+    private static int pageIndex(List<Page> pages, int frame) {
+        int low = 0;
+        int high = pages.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (pages.get(middle).lastFrame < frame) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the page that contains a frame
+     * @return The page, or null if no page contains the frame
+     */
+    private static Page pageContaining(List<Page> pages, int frame) {
+        final int index = pageIndex(pages, frame);
+        if (index < pages.size() && pages.get(index).firstFrame <= frame) {
+            return pages.get(index);
+        }
+        return null;
+    }
+
+    @Override
+    protected void beforeAccess(int firstFrame, int lastFrame) {
+        load(firstFrame, lastFrame);
+        evict(firstFrame, lastFrame);
+    }
+
+    /**
+     * Loads all the pages that contain frames in a range
+     */
+    private void load(int firstFrame, int lastFrame) {
+        for (int i = pageIndex(pages, firstFrame); i < pages.size(); i++) {
+            final Page page = pages.get(i);
+            if (page.firstFrame > lastFrame) {
+                break;
+            }
+            if (page.loaded) {
+                // Mark as recently used
+                loadedPages.get(page);
+            }
+            else {
+                loadPage(page);
+            }
+        }
+    }
+
+    private void loadPage(Page page) {
+        final MarkerTable table = new MarkerTable(page.rows);
+        try {
+            BinaryMarkerFormat.readBlocks(channel, page.offset, page.blocks, decoder, table);
+        }
+        catch (IOException | ParseException ex) {
+            throw new IllegalStateException("Could not load frames " + page.firstFrame + " to " + page.lastFrame + " from " + file, ex);
+        }
+        // Mark the page loaded first, because loading frames can cause
+        // listeners to access them
+        page.loaded = true;
+        loadedPages.put(page, Boolean.TRUE);
+        loadedMarkers += page.rows;
+
+        // Markers are in frame order
+        int row = 0;
+        while (row < table.size()) {
+            final int frame = table.getFrame(row);
+            final List<Marker> markers = new ArrayList<>();
+            while (row < table.size() && table.getFrame(row) == frame) {
+                markers.add(table.toMarker(row));
+                row++;
+            }
+            loadFrameData(frame, markers);
+        }
+    }
+
+    /**
+     * Unloads the least recently used pages until no more than the maximum
+     * number of markers are loaded or no more pages can be unloaded
+     * @param firstFrame The first frame of a range that must stay loaded
+     * @param lastFrame The last frame of a range that must stay loaded
+     */
+    private void evict(int firstFrame, int lastFrame) {
+        if (activeSave != null) {
+            return;
+        }
+        final int current = getCurrentFrame();
+        final Iterator<Page> iter = loadedPages.keySet().iterator();
+        while (loadedMarkers > maxLoadedMarkers && iter.hasNext()) {
+            final Page page = iter.next();
+            if (overlaps(page, firstFrame, lastFrame)
+                    || overlaps(page, windowStart(current), windowEnd(current))
+                    || hasUnsavedChanges(page)) {
+                continue;
+            }
+            iter.remove();
+            page.loaded = false;
+            loadedMarkers -= page.rows;
+            unloadFrameData(page.firstFrame, page.lastFrame);
+        }
+    }
+
+    private static boolean overlaps(Page page, int firstFrame, int lastFrame) {
+        return page.firstFrame <= lastFrame && page.lastFrame >= firstFrame;
+    }
+
+    private boolean hasUnsavedChanges(Page page) {
+        final int next = unsavedFrames.nextSetBit(Math.max(page.firstFrame, 0));
+        return next != -1 && next <= page.lastFrame;
+    }
+
+    private void markUnsaved(int frame) {
+        if (frame >= 0) {
+            unsavedFrames.set(frame);
+        }
+    }
+
+    private int windowStart(int frame) {
+        return (int) Math.max(Integer.MIN_VALUE, (long) frame - window);
+    }
+
+    private int windowEnd(int frame) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) frame + window);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This loads every page. Pages that can be unloaded are unloaded again
+     * before this returns, so their markers stay in memory only as long as
+     * the snapshot does.
+     */
+    @Override
+    public FrameDataSnapshot<Marker> snapshot() {
+        final FrameDataSnapshot<Marker> snapshot = super.snapshot();
+        final int current = getCurrentFrame();
+        evict(current, current);
+        return snapshot;
+    }
+
+    /**
+     * Writes all the markers in this store to a file in the binary format.
+     * Markers that are not loaded are copied from the current file. After
+     * writing, this store reads from the new file.
+     * <p/>
+     * The data is written to a temporary file, which then replaces the
+     * provided file.
+     * <p/>
+     * @param target The file to write to
+     * @throws IOException
+     */
+    public void writeBinaryTo(File target) throws IOException {
+        final BinarySave save = prepareBinarySave(target);
+        try {
+            save.write(null);
+        }
+        catch (IOException ex) {
+            finishBinarySave(save);
+            throw ex;
+        }
+        finishBinarySave(save);
+    }
+
+    /**
+     * Prepares to save this store to a binary file on another thread. This
+     * must be called on the thread that modifies this store.
+     * <p/>
+     * The save takes a snapshot of the loaded frames. The markers that are
+     * not loaded are copied from the current file when the save is
+     * written, so they are not loaded into memory. Pages are not unloaded
+     * until {@link #finishBinarySave(BinarySave)} is called.
+     * <p/>
+     * @param target The file to write to
+     * @return A save that can be written from any thread
+     * @throws IOException if the current file could not be opened for
+     * copying
+     * @throws IllegalStateException if another save has not finished
+     */
+    public BinarySave prepareBinarySave(File target) throws IOException {
+        if (activeSave != null) {
+            throw new IllegalStateException("A save is already in progress");
+        }
+        final List<Page> unloaded = new ArrayList<>();
+        for (Page page : pages) {
+            if (!page.loaded) {
+                unloaded.add(page);
+            }
+        }
+        // The save reads from its own channel, so that it does not move
+        // the position of the channel that loads pages
+        final FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        activeSave = new BinarySave(snapshotLoaded(), target, source, dictionaries, unloaded, (BitSet) unsavedFrames.clone());
+        unsavedFrames.clear();
+        return activeSave;
+    }
+
+    /**
+     * Finishes a save prepared with {@link #prepareBinarySave(java.io.File)}.
+     * This must be called on the thread that modifies this store, after
+     * {@link BinarySave#write(PersistentFrameDataStore.ProgressListener)}
+     * has returned or thrown an exception.
+     * <p/>
+     * If the save was written, this store reads from the new file, and is
+     * marked clean if it has not changed since the save was prepared.
+     * Otherwise, the changes that were being saved are kept as unsaved.
+     * <p/>
+     * @param save The save to finish
+     * @return true if the save was written and contained the current data
+     * in this store
+     * @throws IOException if the new file could not be read
+     */
+    public boolean finishBinarySave(BinarySave save) throws IOException {
+        if (save != activeSave) {
+            throw new IllegalArgumentException("The save was not prepared by this store or has already finished");
+        }
+        activeSave = null;
+        boolean current = false;
+        try {
+            if (save.written) {
+                reopen(save.target);
+                current = save.snapshot.getModificationCount() == getModificationCount();
+                if (current) {
+                    markClean();
+                }
+            }
+        }
+        catch (ParseException ex) {
+            throw new IOException("Could not read " + save.target + " after writing it", ex);
+        }
+        finally {
+            if (!save.written || getFile() != save.target) {
+                unsavedFrames.or(save.unsavedFrames);
+            }
+            final int frame = getCurrentFrame();
+            evict(frame, frame);
+        }
+        return current;
+    }
+
+    /**
+     * A snapshot of the loaded frames of a store, with the pages that are
+     * copied from the store's file, that can be written on another thread
+     */
+    public static final class BinarySave {
+        private final FrameDataSnapshot<Marker> snapshot;
+        private final File target;
+        private final FileChannel source;
+        private final BinaryMarkerFormat.Dictionaries dictionaries;
+
+        /**
+         * The pages that were not loaded when the save was prepared, in
+         * frame order
+         */
+        private final List<Page> unloaded;
+
+        /**
+         * The frames that had unsaved changes when the save was prepared
+         */
+        private final BitSet unsavedFrames;
+
+        private volatile boolean written;
+
+        BinarySave(FrameDataSnapshot<Marker> snapshot, File target, FileChannel source, BinaryMarkerFormat.Dictionaries dictionaries,
+                List<Page> unloaded, BitSet unsavedFrames) {
+            this.snapshot = snapshot;
+            this.target = target;
+            this.source = source;
+            this.dictionaries = dictionaries;
+            this.unloaded = unloaded;
+            this.unsavedFrames = unsavedFrames;
+        }
+
+        /**
+         *
+         * @return The file that is written
+         */
+        public File getFile() {
+            return target;
+        }
+
+        /**
+         * Writes the markers to the file. This may be called from any
+         * thread, and must be called once.
+         * @param listener A listener to notify as markers are written, on
+         * the thread that called this method, or null
+         * @throws IOException
+         */
+        public void write(PersistentFrameDataStore.ProgressListener listener) throws IOException {
+            long total = snapshot.size();
+            for (Page page : unloaded) {
+                total += page.rows;
+            }
+            final File tempFile = File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+            try {
+                try (FileChannel in = source;
+                        BinaryMarkerFormat.Writer writer = new BinaryMarkerFormat.Writer(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+                    final BinaryMarkerFormat.BlockDecoder decoder = new BinaryMarkerFormat.BlockDecoder(dictionaries);
+                    long done = 0;
+                    long nextProgress = 0;
+                    int pageIndex = 0;
+                    for (int i = 0; i < snapshot.getFrameCount(); i++) {
+                        final int frame = snapshot.getFrameAt(i);
+                        while (pageIndex < unloaded.size() && unloaded.get(pageIndex).lastFrame < frame) {
+                            done += copy(unloaded.get(pageIndex++), in, decoder, writer);
+                        }
+                        final List<Marker> frameMarkers = snapshot.getFrameDataAt(i);
+                        for (Marker marker : frameMarkers) {
+                            writer.add(marker);
+                        }
+                        done += frameMarkers.size();
+                        if (listener != null && done >= nextProgress) {
+                            listener.progressChanged(done, total);
+                            nextProgress = done + PersistentFrameDataStore.PROGRESS_INTERVAL;
+                        }
+                    }
+                    while (pageIndex < unloaded.size()) {
+                        done += copy(unloaded.get(pageIndex++), in, decoder, writer);
+                    }
+                }
+                PersistentFrameDataStore.replaceFile(tempFile, target);
+                written = true;
+                if (listener != null) {
+                    listener.progressChanged(total, total);
+                }
+            }
+            catch (ParseException ex) {
+                throw new IOException("Could not copy markers that were not loaded", ex);
+            }
+            finally {
+                tempFile.delete();
+            }
+        }
+
+        /**
+         * Copies the markers in a page from the source file to a writer.
+         * The markers are written in their own blocks, so that each block
+         * of the new file contains either markers that were loaded or
+         * markers that were not.
+         * @return The number of markers copied
+         */
+        private static int copy(Page page, FileChannel in, BinaryMarkerFormat.BlockDecoder decoder, BinaryMarkerFormat.Writer writer) throws IOException, ParseException {
+            final MarkerTable table = new MarkerTable(page.rows);
+            BinaryMarkerFormat.readBlocks(in, page.offset, page.blocks, decoder, table);
+            writer.endBlock();
+            for (int row = 0; row < table.size(); row++) {
+                writer.add(table.toMarker(row));
+            }
+            writer.endBlock();
+            return table.size();
+        }
+    }
+
+    /**
+     * Switches to reading from a file that was just written from this store
+     */
+    private void reopen(File newFile) throws IOException, ParseException {
+        final FileChannel newChannel = FileChannel.open(newFile.toPath(), StandardOpenOption.READ);
+        final List<Page> newPages;
+        final BinaryMarkerFormat.Dictionaries newDictionaries;
+        try {
+            newDictionaries = BinaryMarkerFormat.readHeader(newChannel);
+            newPages = pagesFor(BinaryMarkerFormat.readIndex(newChannel));
+        }
+        catch (IOException | ParseException | RuntimeException ex) {
+            newChannel.close();
+            throw ex;
+        }
+
+        loadedPages.clear();
+        loadedMarkers = 0;
+        for (Page page : newPages) {
+            // Each new page holds either markers copied from a page that
+            // was not loaded or markers that were in memory. Pages are not
+            // unloaded during a save, so the markers in memory still are.
+            final Page oldPage = pageContaining(pages, page.firstFrame);
+            page.loaded = oldPage == null || oldPage.loaded;
+            if (page.loaded) {
+                loadedPages.put(page, Boolean.TRUE);
+                loadedMarkers += page.rows;
+            }
+        }
+
+        channel.close();
+        channel = newChannel;
+        dictionaries = newDictionaries;
+        decoder = new BinaryMarkerFormat.BlockDecoder(newDictionaries);
+        pages = newPages;
+        file = newFile;
+    }
+
+    /**
+     *
+     * @return The file that markers are read from
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return The number of markers in the pages that are loaded
+     */
+    public int getLoadedMarkerCount() {
+        return loadedMarkers;
+    }
+
+    /**
+     *
+     * @return The number of frames before and after the current frame that
+     * are kept loaded
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the number of frames before and after the current frame that
+     * are kept loaded
+     * @param window The number of frames
+     */
+    public void setWindow(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        this.window = window;
+    }
+
+    /**
+     *
+     * @return The number of markers above which pages are unloaded
+     */
+    public int getMaxLoadedMarkers() {
+        return maxLoadedMarkers;
+    }
+
+    /**
+     * Sets the number of markers above which pages are unloaded
+     * @param maxLoadedMarkers The maximum number of markers
+     */
+    public void setMaxLoadedMarkers(int maxLoadedMarkers) {
+        this.maxLoadedMarkers = maxLoadedMarkers;
+    }
+
+    /**
+     * Closes the file. Pages that are not loaded can no longer be loaded.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,218 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses the marker lines of a version 3 file on several threads.
+ * <p>
+ * The file is divided into chunks that end at line boundaries. Each chunk
+ * is read with a positional read, or mapped into memory, and parsed into
+ * its own {@link MarkerTable}. The tables are then joined in file order.
+ * <p>
+ * @author Sam Crow
+ */
+final class ParallelMarkerLoader {
+
+    /**
+     * The default number of bytes in each chunk
+     */
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The default number of bytes in each chunk when chunks are mapped.
+     * Mapped chunks do not use heap memory, so they can be larger.
+     */
+    static final int MAPPED_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The number of bytes read at a time when looking for the end of a line
+     */
+    private static final int SCAN_SIZE = 4096;
+
+    /**
+     * The approximate number of bytes in a marker line, used to size
+     * each chunk's table
+     */
+    private static final int BYTES_PER_LINE = 40;
+
+    private ParallelMarkerLoader() {
+    }
+
+    /**
+     * Parses the marker lines in part of a file
+     * @param channel The channel to read from. Only positional reads are
+     * used, so the position of the channel does not matter.
+     * @param start The offset of the first marker line
+     * @param end The offset after the last marker line
+     * @param chunkSize The approximate number of bytes to parse in each task
+     * @param map If true, each chunk is mapped into memory and parsed from
+     * the operating system's page cache. Otherwise, each chunk is copied
+     * into an array.
+     * @return A table containing the markers, in file order
+     * @throws IOException if the file could not be read
+     * @throws ParseException if a line is not valid
+     */
+    static MarkerTable load(FileChannel channel, long start, long end, int chunkSize, boolean map) throws IOException, ParseException {
+        final long[] boundaries = findBoundaries(channel, start, end, chunkSize);
+        try {
+            return WorkerPool.POOL.invoke(new ChunkTask(channel, boundaries, map, 0, boundaries.length - 1));
+        }
+        catch (ChunkException ex) {
+            // The pool may wrap the exception that the task threw
+            Throwable cause = ex;
+            while (cause != null) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof ParseException) {
+                    throw (ParseException) cause;
+                }
+                cause = cause.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Divides part of a file into chunks that start at the beginning
+     * of lines
+     * @return The offsets of the chunk boundaries, starting with start and
+     * ending with end
+     * @throws IOException
+     */
+    private static long[] findBoundaries(FileChannel channel, long start, long end, int chunkSize) throws IOException {
+        final int maxChunks = (int) Math.min((end - start) / chunkSize + 2, Integer.MAX_VALUE - 8);
+        final long[] boundaries = new long[maxChunks];
+        int count = 0;
+        boundaries[count++] = start;
+        final ByteBuffer scan = ByteBuffer.allocate(SCAN_SIZE);
+        long next = start + chunkSize;
+        while (next < end) {
+            final long lineStart = nextLineStart(channel, scan, next, end);
+            if (lineStart >= end) {
+                break;
+            }
+            boundaries[count++] = lineStart;
+            next = lineStart + chunkSize;
+        }
+        boundaries[count++] = end;
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    /**
+     * Finds the start of the first line that starts after an offset
+     * @return The offset after the next newline, or end if there is none
+     * @throws IOException
+     */
+    private static long nextLineStart(FileChannel channel, ByteBuffer scan, long from, long end) throws IOException {
+        long position = from;
+        while (position < end) {
+            scan.clear();
+            if (end - position < scan.capacity()) {
+                scan.limit((int) (end - position));
+            }
+            final int count = channel.read(scan, position);
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += count;
+        }
+        return end;
+    }
+
+    /**
+     * Reads bytes from a channel until an array is full
+     * @throws IOException if the end of the file is reached first
+     */
+    private static void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, position + buffer.position());
+            if (count == -1) {
+                throw new IOException("Unexpected end of file at byte " + (position + buffer.position()));
+            }
+        }
+    }
+
+    /**
+     * Parses a range of chunks, dividing it between threads
+     */
+    private static class ChunkTask extends RecursiveTask<MarkerTable> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] boundaries;
+        private final boolean map;
+        private final int firstChunk;
+        private final int endChunk;
+
+        ChunkTask(FileChannel channel, long[] boundaries, boolean map, int firstChunk, int endChunk) {
+            this.channel = channel;
+            this.boundaries = boundaries;
+            this.map = map;
+            this.firstChunk = firstChunk;
+            this.endChunk = endChunk;
+        }
+
+        @Override
+        protected MarkerTable compute() {
+            if (endChunk - firstChunk <= 1) {
+                return parseChunk(firstChunk);
+            }
+            final int middle = (firstChunk + endChunk) >>> 1;
+            final ChunkTask second = new ChunkTask(channel, boundaries, map, middle, endChunk);
+            second.fork();
+            final MarkerTable result = new ChunkTask(channel, boundaries, map, firstChunk, middle).compute();
+            result.addAll(second.join());
+            return result;
+        }
+
+        private MarkerTable parseChunk(int chunk) {
+            if (chunk >= endChunk) {
+                return new MarkerTable();
+            }
+            final long start = boundaries[chunk];
+            final int length = (int) (boundaries[chunk + 1] - start);
+            final MarkerTable table = new MarkerTable(length / BYTES_PER_LINE);
+            try {
+                final ByteBuffer bytes;
+                if (map) {
+                    bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                }
+                else {
+                    final byte[] array = new byte[length];
+                    readFully(channel, array, start);
+                    bytes = ByteBuffer.wrap(array);
+                }
+                MarkerCSVParser.parseLines(bytes, 0, length, table, start);
+            }
+            catch (IOException | ParseException ex) {
+                throw new ChunkException(ex);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Carries a checked exception out of a task
+     */
+    private static class ChunkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
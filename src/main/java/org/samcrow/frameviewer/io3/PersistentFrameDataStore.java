@@ -1,18 +1,29 @@
 package org.samcrow.frameviewer.io3;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.samcrow.frameviewer.FrameDataListener;
+import org.samcrow.frameviewer.FrameDataSnapshot;
 import org.samcrow.frameviewer.FrameDataStore;
 
 /**
@@ -25,7 +36,66 @@ import org.samcrow.frameviewer.FrameDataStore;
 public class PersistentFrameDataStore<T extends Marker> extends FrameDataStore<T> {
 
     /**
-     * Writes this data store to a CSV file
+     * An interface for something that is notified of the progress of
+     * a long write
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called when some of the markers have been written
+         * @param done The number of markers written
+         * @param total The total number of markers to write
+         */
+        void progressChanged(long done, long total);
+    }
+
+    /**
+     * The number of markers written between progress notifications
+     */
+    static final int PROGRESS_INTERVAL = 4096;
+
+    /**
+     * Indexes the markers in this store by ant and frame
+     */
+    private final AntTrajectoryIndex<T> trajectories;
+
+    /**
+     * The IDs of the ants whose markers have changed since this store was
+     * last saved
+     */
+    private final BitSet dirtyAnts = new BitSet();
+
+    /**
+     * The layout of the file that this store was last saved to, or null
+     * if it has not been saved
+     */
+    private SavedFileLayout savedLayout;
+
+    /**
+     * The level used to compress files with names that end with .gz
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The number of changes to markers with ant IDs that cannot be recorded
+     * in {@link #dirtyAnts}
+     */
+    private long untrackedChanges;
+
+    /**
+     * Writes this data store to a CSV file.
+     * <p/>
+     * If this store was last saved to the same file and the file has not
+     * been modified since then, only the markers for ants that have changed
+     * are formatted. The lines for other ants are copied from the existing
+     * file. If nothing has changed, the file is not written.
+     * <p/>
+     * If the file name ends with .gz, the file is compressed at
+     * {@link #getCompressionLevel()} and is always written in full.
+     * Otherwise, a {@link MarkerFileIndex} is written next to the file.
+     * <p/>
+     * The data is written to a temporary file, which then replaces the
+     * provided file.
      * <p/>
      * @param file The file to write to
      * @throws IOException
@@ -42,202 +112,654 @@ public class PersistentFrameDataStore<T extends Marker> extends FrameDataStore<T
             throw new IOException("Can't write to file " + file.getAbsolutePath());
         }
 
-        //Extract an array of markers
-        //Move all the sublists out into a new, outer, list
-        final List<T> outerList = new LinkedList<>();
-        final List<List<T>> composite = getList();
-        for (List<T> subList : composite) {
-            if (subList != null) {
-                for (T value : subList) {
-                    outerList.add(value);
-                }
-            }
+        final boolean compressed = MarkerCompression.isCompressedName(file);
+        // Lines cannot be copied from a compressed file
+        final SavedFileLayout previous = (!compressed && savedLayout != null && savedLayout.isCurrent(file)) ? savedLayout : null;
+        if (previous != null && !hasChanges() && dirtyAnts.isEmpty()) {
+            // File is already up to date
+            return;
         }
-        //Sort the entries in the outer list by colony ID
-        Collections.sort(outerList, new Comparator<Marker>() {
-            @Override
-            public int compare(Marker marker1, Marker marker2) {
-                if (marker1.getAntId() < marker2.getAntId()) {
-                    return -1;
-                }
-                else if (marker1.getAntId() > marker2.getAntId()) {
-                    return 1;
-                }
-                else {
-                    //Ant IDs are the same; now compare frames
-                    if (marker1.getFrame() < marker2.getFrame()) {
-                        return -1;
-                    }
-                    else if (marker1.getFrame() > marker2.getFrame()) {
-                        return 1;
-                    }
-                    else {
-                        return 0;
-                    }
-                }
-            }
-        });
-
-        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
 
-            // Add version number
-            out.println("File version,3");
-            //Add heading
-            out.println(Marker.fileHeader());
+        savedLayout = writeTableTo(MarkerTable.fromStore(this), file, null, compressionLevel, previous, dirtyAnts);
+        markClean();
+    }
 
-            for (T marker : outerList) {
-                out.println(marker.toCSVLine());
+    /**
+     * Writes this data store to a file in the binary format.
+     * <p/>
+     * The binary format is much smaller and faster to read than the CSV
+     * format. The markers are written in frame order. If the file name ends
+     * with .gz, the file is compressed.
+     * <p/>
+     * The data is written to a temporary file, which then replaces the
+     * provided file.
+     * <p/>
+     * @param file The file to write to
+     * @throws IOException
+     */
+    public void writeBinaryTo(File file) throws IOException {
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                final GZIPOutputStream compressor = MarkerCompression.isCompressedName(file) ? MarkerCompression.compress(fileOut, compressionLevel) : null;
+                final BinaryMarkerFormat.Writer writer = new BinaryMarkerFormat.Writer(new BufferedOutputStream(compressor != null ? compressor : fileOut, 65536));
+                for (List<T> frameMarkers : this) {
+                    for (T marker : frameMarkers) {
+                        writer.add(marker);
+                    }
+                }
+                // Closes the file
+                writer.close();
             }
-
+            replaceFile(tempFile, file);
+        }
+        finally {
+            tempFile.delete();
         }
 
+        // The CSV file that was last saved, if any, is no longer up to date
+        // with the saved state
+        savedLayout = null;
+        markClean();
     }
 
     /**
-     * Reads a data store from a file
+     * Writes the version line and the header line of a CSV file
+     * @param out The writer to write to
+     * @throws IOException
+     */
+    static void writeHeader(MarkerCSVWriter out) throws IOException {
+        // Add version number
+        out.writeLine("File version,3");
+        //Add heading
+        out.writeLine(Marker.fileHeader());
+    }
+
+    /**
+     * Writes the markers in a snapshot to a CSV file, in the same order as
+     * {@link #writeTo(java.io.File)}. This may be called from any thread.
      * <p/>
-     * @param file The file to read from
-     * @return an instance containing the data in the file
+     * The markers are copied into a {@link MarkerTable} and sorted by ant
+     * and frame with a radix sort. They are then formatted into a reused
+     * buffer and written through a file channel.
+     * <p/>
+     * The data is written to a temporary file, which then replaces the
+     * provided file.
+     * <p/>
+     * @param snapshot The markers to write
+     * @param file The file to write to
      * @throws IOException
-     * @throws ParseException
      */
-    public static PersistentFrameDataStore<Marker> readFromFile(File file) throws IOException, ParseException {
+    public static void writeSnapshotTo(FrameDataSnapshot<? extends Marker> snapshot, File file) throws IOException {
+        writeSnapshotTo(snapshot, file, null);
+    }
 
-        PersistentFrameDataStore<Marker> instance = new PersistentFrameDataStore<>();
+    /**
+     * Writes the markers in a snapshot to a CSV file, and reports progress.
+     * This may be called from any thread.
+     * <p/>
+     * @param snapshot The markers to write
+     * @param file The file to write to
+     * @param listener A listener to notify as markers are written, on the
+     * thread that called this method, or null
+     * @throws IOException
+     * @see #writeSnapshotTo(org.samcrow.frameviewer.FrameDataSnapshot, java.io.File)
+     */
+    public static void writeSnapshotTo(FrameDataSnapshot<? extends Marker> snapshot, File file, ProgressListener listener) throws IOException {
+        writeSnapshotTo(snapshot, file, listener, Deflater.DEFAULT_COMPRESSION);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+    /**
+     * Writes the markers in a snapshot to a CSV file, compressing it at
+     * a provided level if its name ends with .gz. This may be called from
+     * any thread.
+     * <p/>
+     * @param snapshot The markers to write
+     * @param file The file to write to
+     * @param listener A listener to notify as markers are written, on the
+     * thread that called this method, or null
+     * @param compressionLevel The compression level, usually the
+     * {@link #getCompressionLevel()} of the store that the snapshot was
+     * taken from
+     * @throws IOException
+     * @see #writeSnapshotTo(org.samcrow.frameviewer.FrameDataSnapshot, java.io.File)
+     */
+    public static void writeSnapshotTo(FrameDataSnapshot<? extends Marker> snapshot, File file, ProgressListener listener, int compressionLevel) throws IOException {
+        MarkerCompression.checkLevel(compressionLevel);
+        writeTableTo(MarkerTable.fromSnapshot(snapshot), file, listener, compressionLevel);
+    }
 
-            //Read and interpret version line
-            try {
-                int version = getVersion(reader.readLine());
+    /**
+     * Writes the markers in a table to a CSV file, sorted by ant and frame.
+     * If the file is not compressed, a {@link MarkerFileIndex} is written
+     * next to it.
+     * <p/>
+     * @param table The markers to write
+     * @param file The file to write to
+     * @param listener A listener to notify as markers are written, or null
+     * @param compressionLevel The compression level to use if the file name
+     * ends with .gz
+     * @throws IOException
+     */
+    static void writeTableTo(MarkerTable table, File file, ProgressListener listener, int compressionLevel) throws IOException {
+        writeTableTo(table, file, listener, compressionLevel, null, null);
+    }
 
-                // Check version
-                if (version != 3) {
-                    throw new ParseException("Invalid version number " + version, 0);
+    /**
+     * Writes the markers in a table to a CSV file, sorted by ant and frame,
+     * copying the lines for unchanged ants from the existing file.
+     * If the file is not compressed, a {@link MarkerFileIndex} is written
+     * next to it.
+     * <p/>
+     * @param table The markers to write
+     * @param file The file to write to
+     * @param listener A listener to notify as markers are written, or null
+     * @param compressionLevel The compression level to use if the file name
+     * ends with .gz
+     * @param previous The layout of the existing file, or null. It is not
+     * used if the file has changed since it was written.
+     * @param dirtyAnts The IDs of the ants whose markers in the table may
+     * differ from the existing file, or null if previous is null
+     * @return The layout of the new file, or null if it is compressed
+     * @throws IOException
+     */
+    static SavedFileLayout writeTableTo(MarkerTable table, File file, ProgressListener listener, int compressionLevel,
+            SavedFileLayout previous, BitSet dirtyAnts) throws IOException {
+        final int[] order = table.antFrameOrder();
+        final boolean compressed = MarkerCompression.isCompressedName(file);
+        // Lines cannot be copied from a compressed file
+        if (compressed || (previous != null && !previous.isCurrent(file))) {
+            previous = null;
+        }
+        final SavedFileLayout layout = compressed ? null : new SavedFileLayout(file);
+        final MarkerFileIndex.Builder indexBuilder = compressed ? null : new MarkerFileIndex.Builder();
+
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                    FileChannel previousChannel = previous != null ? new FileInputStream(file).getChannel() : null) {
+                final GZIPOutputStream compressor = compressed ? MarkerCompression.compress(fileOut, compressionLevel) : null;
+                final WritableByteChannel channel = compressed ? Channels.newChannel(compressor) : fileOut.getChannel();
+                final MarkerCSVWriter out = new MarkerCSVWriter(channel);
+                // Bytes copied directly from the previous file
+                long copiedBytes = 0;
+                int nextProgress = 0;
+                writeHeader(out);
+
+                // Rows for each ant are together
+                int start = 0;
+                while (start < order.length) {
+                    final int antId = table.getAntId(order[start]);
+                    int end = start + 1;
+                    while (end < order.length && table.getAntId(order[end]) == antId) {
+                        end++;
+                    }
+                    final long[] oldBlock = previous != null && antId >= 0 && !dirtyAnts.get(antId) ? previous.getBlock(antId) : null;
+                    final long blockStart = out.getCount() + copiedBytes;
+                    if (oldBlock != null) {
+                        // Copy the unchanged block from the old file
+                        out.flush();
+                        long copied = 0;
+                        while (copied < oldBlock[1]) {
+                            copied += previousChannel.transferTo(oldBlock[0] + copied, oldBlock[1] - copied, channel);
+                        }
+                        copiedBytes += oldBlock[1];
+                        indexBuilder.copy(previous.getIndex(), antId, blockStart - oldBlock[0]);
+                    }
+                    else {
+                        for (int i = start; i < end; i++) {
+                            final long lineStart = out.getCount() + copiedBytes;
+                            out.write(table, order[i]);
+                            if (indexBuilder != null) {
+                                indexBuilder.add(antId, table.getFrame(order[i]), lineStart, out.getCount() + copiedBytes);
+                            }
+                        }
+                    }
+                    if (layout != null) {
+                        layout.addBlock(antId, blockStart, out.getCount() + copiedBytes - blockStart);
+                    }
+                    start = end;
+                    if (listener != null && start >= nextProgress) {
+                        listener.progressChanged(start, order.length);
+                        nextProgress = start + PROGRESS_INTERVAL;
+                    }
                 }
+                out.flush();
+                if (compressor != null) {
+                    compressor.finish();
+                }
+                // Make sure the data is on disk before it replaces the file
+                fileOut.getChannel().force(true);
             }
-            catch (IllegalArgumentException ex) {
-                // That wasn't a version line, it was a header line!
-                // Use the old parser
-                reader.close();
-                return new PersistentFrameDataStore<>(PersistentFrameDataStore2to3.readFromFile(file));
-            }
-
-            // Read and ignore header
-            reader.readLine();
+            replaceFile(tempFile, file);
+        }
+        finally {
+            tempFile.delete();
+        }
+        if (layout != null) {
+            final MarkerFileIndex index = indexBuilder.build(file);
+            layout.fileWritten();
+            layout.setIndex(index);
+            index.write();
+        }
+        if (listener != null) {
+            listener.progressChanged(order.length, order.length);
+        }
+        return layout;
+    }
 
-            final Pattern linePattern = Pattern.compile("^(?<ant>\\d+),(?<frame>\\d+),(?<x>\\d+),(?<y>\\d+),(?<focusAntActivity>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<focusAntLocation>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<interactionType>[a-zA-Z_$][a-zA-Z\\d_$]*)?,(?<trackedAntActivity>[a-zA-Z_$][a-zA-Z\\d_$]*)?,(?<trackedAntLocation>[a-zA-Z_$][a-zA-Z\\d_$]*)?,(?<metAntId>\\d+)?$");
+    /**
+     * Prepares to save a snapshot of this store to a CSV file on another
+     * thread. This must be called on the thread that modifies this store.
+     * <p/>
+     * If this store was last saved to the same file, the save copies the
+     * lines for ants that have not changed from the existing file.
+     * After the save, {@link #markSnapshotSaved(SnapshotSave)} should be
+     * called on the thread that modifies this store.
+     * <p/>
+     * @param file The file to save to
+     * @return A save that can be written from any thread
+     */
+    public SnapshotSave prepareSnapshotSave(File file) {
+        final boolean reusable = savedLayout != null && !MarkerCompression.isCompressedName(file) && savedLayout.isCurrent(file);
+        return new SnapshotSave(snapshot(), file, reusable ? savedLayout : null, (BitSet) dirtyAnts.clone(),
+                compressionLevel, untrackedChanges);
+    }
 
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
+    /**
+     * A snapshot of a store, with the information needed to save it to
+     * a file without formatting the lines for unchanged ants again
+     */
+    public static final class SnapshotSave {
+        private final FrameDataSnapshot<? extends Marker> snapshot;
+        private final File file;
+        private final SavedFileLayout previous;
+        private final BitSet dirtyAnts;
+        private final int compressionLevel;
+        private final long untrackedChanges;
+
+        /**
+         * The layout of the written file, or null
+         */
+        private volatile SavedFileLayout layout;
+
+        SnapshotSave(FrameDataSnapshot<? extends Marker> snapshot, File file, SavedFileLayout previous, BitSet dirtyAnts,
+                int compressionLevel, long untrackedChanges) {
+            this.snapshot = snapshot;
+            this.file = file;
+            this.previous = previous;
+            this.dirtyAnts = dirtyAnts;
+            this.compressionLevel = compressionLevel;
+            this.untrackedChanges = untrackedChanges;
+        }
 
-                Matcher matcher = linePattern.matcher(line);
-                if (matcher.find()) {
+        /**
+         *
+         * @return The snapshot that is saved
+         */
+        public FrameDataSnapshot<? extends Marker> getSnapshot() {
+            return snapshot;
+        }
 
-                    try {
+        /**
+         *
+         * @return The file that is written
+         */
+        public File getFile() {
+            return file;
+        }
 
-                        int antId = Integer.parseInt(matcher.group("ant"));
-                        int frame = Integer.parseInt(matcher.group("frame"));
-                        int x = Integer.parseInt(matcher.group("x"));
-                        int y = Integer.parseInt(matcher.group("y"));
+        /**
+         * Writes the snapshot to the file. This may be called from any
+         * thread.
+         * @param listener A listener to notify as markers are written, on
+         * the thread that called this method, or null
+         * @throws IOException
+         */
+        public void write(ProgressListener listener) throws IOException {
+            layout = writeTableTo(MarkerTable.fromSnapshot(snapshot), file, listener, compressionLevel, previous, dirtyAnts);
+        }
+    }
 
-                        AntActivity focusAntActivity = AntActivity.valueOf(matcher.group("focusAntActivity"));
-                        AntLocation focusAntLocation = AntLocation.valueOf(matcher.group("focusAntLocation"));
+    /**
+     * Records that a snapshot of this store has been saved with
+     * {@link SnapshotSave#write(ProgressListener)}. The next save to the
+     * same file can copy the lines for ants that have not changed since then.
+     * If no changes have been made to this store since the snapshot was
+     * taken, this store is marked clean.
+     * @param save A save prepared by this store that has been written
+     * @return true if the snapshot contained the current data in this store
+     */
+    public boolean markSnapshotSaved(SnapshotSave save) {
+        final boolean current = markSnapshotSaved(save.getSnapshot());
+        // Any ant changed since the snapshot is still in dirtyAnts
+        if (save.layout != null && save.untrackedChanges == untrackedChanges) {
+            savedLayout = save.layout;
+        }
+        return current;
+    }
 
-                        Marker marker;
-                        // Check for tracked ant activity and location
-                        String trackedAntActivityString = matcher.group("trackedAntActivity");
-                        if (trackedAntActivityString != null && !trackedAntActivityString.isEmpty()) {
-                            // Marker is an interaction marker
-                            AntActivity trackedAntActivity = AntActivity.valueOf(trackedAntActivityString);
-                            AntLocation trackedAntLocation = AntLocation.valueOf(matcher.group("trackedAntLocation"));
-                            InteractionMarker.InteractionType type = InteractionMarker.InteractionType.valueOf(matcher.group("interactionType"));
+    /**
+     * Records that a snapshot of this store has been saved. If no changes
+     * have been made to this store since the snapshot was taken, this store
+     * is marked clean.
+     * @param snapshot A snapshot of this store that has been written to
+     * a file
+     * @return true if the snapshot contained the current data in this store
+     */
+    public boolean markSnapshotSaved(FrameDataSnapshot<?> snapshot) {
+        // The saved file was not written by writeTo, so its layout is unknown
+        savedLayout = null;
+        if (snapshot.getModificationCount() == getModificationCount()) {
+            markClean();
+            return true;
+        }
+        return false;
+    }
 
-                            InteractionMarker interactionMarker = new InteractionMarker(x, y, focusAntActivity, focusAntLocation, trackedAntActivity, trackedAntLocation);
+    /**
+     * Moves a file to replace another file, atomically if possible
+     * @param source The file to move
+     * @param target The file to replace
+     * @throws IOException 
+     */
+    static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-                            interactionMarker.setType(type);
-                            interactionMarker.setMetAntId(Integer.parseInt(matcher.group("metAntId")));
+    /**
+     * Marks all frames and ants as unchanged
+     */
+    @Override
+    public void markClean() {
+        super.markClean();
+        dirtyAnts.clear();
+    }
 
-                            marker = interactionMarker;
-                        }
-                        else {
-                            // Not an interaction marker
-                            marker = new Marker(x, y, focusAntActivity, focusAntLocation);
-                        }
+    /**
+     *
+     * @return The level used to compress files with names that end with .gz
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
 
-                        marker.setAntId(antId);
-                        marker.setFrame(frame);
+    /**
+     * Sets the level used to compress files with names that end with .gz.
+     * Lower levels are faster, and higher levels make smaller files.
+     * @param compressionLevel The level, from {@link Deflater#NO_COMPRESSION}
+     * to {@link Deflater#BEST_COMPRESSION}, or
+     * {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        MarkerCompression.checkLevel(compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
 
-                        instance.getFrameData(frame).add(marker);
+    /**
+     * 
+     * @return A copy of the set of IDs of ants whose markers have changed since
+     * this store was last marked clean
+     */
+    public BitSet getDirtyAnts() {
+        return (BitSet) dirtyAnts.clone();
+    }
 
-                    }
-                    catch (IllegalArgumentException ex) {
-                        ParseException parseEx = new ParseException("Unrecognized marker or in line \"" + line + "\"", 0);
-                        parseEx.initCause(ex);
-                        throw parseEx;
-                    }
-                }
-                else {
-                    // No match. Try the old regex, which does not include the met ant ID
-                    final Pattern oldLinePattern = Pattern.compile("^(?<ant>\\d+),(?<frame>\\d+),(?<x>\\d+),(?<y>\\d+),(?<focusAntActivity>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<focusAntLocation>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<interactionType>[a-zA-Z_$][a-zA-Z\\d_$]*)*,(?<trackedAntActivity>[a-zA-Z_$][a-zA-Z\\d_$]*)*,(?<trackedAntLocation>[a-zA-Z_$][a-zA-Z\\d_$]*)*$");
+    /**
+     * Reads a data store from a file
+     * <p/>
+     * The format is detected from the start of the file. Version 2 and
+     * version 3 CSV files and binary files can be read, and any of them
+     * can be compressed. The file is opened once and read in one pass.
+     * <p/>
+     * @param file The file to read from
+     * @return an instance containing the data in the file
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static PersistentFrameDataStore<Marker> readFromFile(File file) throws IOException, ParseException {
 
-                    Matcher oldMatcher = oldLinePattern.matcher(line);
-                    if (oldMatcher.matches()) {
+        final MarkerTable table;
+        try (InputStream in = new FileInputStream(file)) {
+            table = readTable(new MarkerCSVParser(in));
+        }
 
-                        try {
+        return fromTable(table);
+    }
 
-                            int antId = Integer.valueOf(oldMatcher.group("ant"));
-                            int frame = Integer.valueOf(oldMatcher.group("frame"));
-                            int x = Integer.valueOf(oldMatcher.group("x"));
-                            int y = Integer.valueOf(oldMatcher.group("y"));
+    /**
+     * Reads a data store from a file, parsing the file on several threads.
+     * <p/>
+     * This is faster than {@link #readFromFile(java.io.File)} for large
+     * files on computers with several processors. Version 2 files, binary
+     * files, and compressed files are read on one thread.
+     * <p/>
+     * @param file The file to read from
+     * @return an instance containing the data in the file
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static PersistentFrameDataStore<Marker> readFromFileParallel(File file) throws IOException, ParseException {
+        return readFromFileParallel(file, ParallelMarkerLoader.DEFAULT_CHUNK_SIZE, false);
+    }
 
-                            AntActivity focusAntActivity = AntActivity.valueOf(oldMatcher.group("focusAntActivity"));
-                            AntLocation focusAntLocation = AntLocation.valueOf(oldMatcher.group("focusAntLocation"));
+    /**
+     * Reads a data store from a file by mapping the file into memory.
+     * <p/>
+     * The marker lines are parsed directly from the mapped bytes on several
+     * threads, so the file's contents are read through the operating
+     * system's page cache and are not copied into the Java heap. Version 2
+     * files, binary files, and compressed files are read on one thread
+     * without mapping.
+     * <p/>
+     * On some platforms, a file cannot be replaced while it is mapped. The
+     * mapping is released when it is garbage collected.
+     * <p/>
+     * @param file The file to read from
+     * @return an instance containing the data in the file
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static PersistentFrameDataStore<Marker> readFromFileMapped(File file) throws IOException, ParseException {
+        return readFromFileParallel(file, ParallelMarkerLoader.MAPPED_CHUNK_SIZE, true);
+    }
 
-                            Marker marker;
-                            // Check for tracked ant activity and location
-                            String trackedAntActivityString = oldMatcher.group("trackedAntActivity");
-                            if (trackedAntActivityString != null && !trackedAntActivityString.isEmpty()) {
-                                // Marker is an interaction marker
-                                AntActivity trackedAntActivity = AntActivity.valueOf(trackedAntActivityString);
-                                AntLocation trackedAntLocation = AntLocation.valueOf(oldMatcher.group("trackedAntLocation"));
-                                InteractionMarker.InteractionType type = InteractionMarker.InteractionType.valueOf(oldMatcher.group("interactionType"));
+    /**
+     * Reads a data store from a file, parsing version 3 files on several
+     * threads
+     * @param file The file to read from
+     * @param chunkSize The number of bytes that each thread parses at a time
+     * @param map true to map the file into memory, false to read it
+     * @return an instance containing the data in the file
+     * @throws IOException
+     * @throws ParseException
+     */
+    private static PersistentFrameDataStore<Marker> readFromFileParallel(File file, int chunkSize, boolean map) throws IOException, ParseException {
 
-                                InteractionMarker interactionMarker = new InteractionMarker(x, y, focusAntActivity, focusAntLocation, trackedAntActivity, trackedAntLocation);
+        MarkerTable table = new MarkerTable();
+        try (FileInputStream in = new FileInputStream(file)) {
+            final MarkerCSVParser parser = new MarkerCSVParser(in);
 
-                                interactionMarker.setType(type);
+            if (parser.startsWith(MarkerCompression.GZIP_MAGIC)) {
+                // A compressed file cannot be split, so it is read on one thread
+                return fromTable(readTable(parser));
+            }
+            switch (readHeader(parser)) {
+                case 2:
+                    parser.readVersion2Markers(table);
+                    break;
+                case 3:
+                    final FileChannel channel = in.getChannel();
+                    table = ParallelMarkerLoader.load(channel, parser.getOffset(), channel.size(), chunkSize, map);
+                    break;
+                default:
+                    table = readBinary(parser);
+                    break;
+            }
+        }
 
-                                marker = interactionMarker;
-                            }
-                            else {
-                                // Not an interaction marker
-                                marker = new Marker(x, y, focusAntActivity, focusAntLocation);
-                            }
+        return fromTable(table);
+    }
 
-                            marker.setAntId(antId);
-                            marker.setFrame(frame);
+    /**
+     * Reads a data store from a file in the binary format, which may be
+     * compressed
+     * <p/>
+     * @param file The file to read from
+     * @return an instance containing the data in the file
+     * @throws IOException if the file could not be read or is damaged
+     * @throws ParseException if the file is not a binary marker file
+     */
+    public static PersistentFrameDataStore<Marker> readFromBinaryFile(File file) throws IOException, ParseException {
+        final MarkerTable table;
+        try (InputStream in = new FileInputStream(file)) {
+            final MarkerCSVParser parser = new MarkerCSVParser(in);
+            if (parser.startsWith(MarkerCompression.GZIP_MAGIC)) {
+                try (InputStream decompressed = MarkerCompression.decompress(parser.remainingInput())) {
+                    table = BinaryMarkerFormat.read(new BufferedInputStream(decompressed, 65536));
+                }
+            }
+            else {
+                table = readBinary(parser);
+            }
+        }
+        return fromTable(table);
+    }
 
-                            instance.getFrameData(frame).add(marker);
+    /**
+     * Reads the markers in a range of frames from a file.
+     * <p/>
+     * If the file has a current {@link MarkerFileIndex}, only the parts of
+     * the file that contain markers in the range are read. Otherwise, or if
+     * the index cannot be read, the whole file is read.
+     * <p/>
+     * The returned store contains only some of the markers in the file,
+     * so it should not be saved over the file.
+     * <p/>
+     * @param file The file to read from
+     * @param firstFrame The first frame to read
+     * @param lastFrame The last frame to read, inclusive
+     * @return an instance containing the markers in the range of frames
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static PersistentFrameDataStore<Marker> readFramesFromFile(File file, int firstFrame, int lastFrame) throws IOException, ParseException {
+        MarkerFileIndex index;
+        try {
+            index = MarkerFileIndex.open(file);
+        }
+        catch (IOException ex) {
+            // The index only makes reading faster
+            Logger.getLogger(PersistentFrameDataStore.class.getName()).log(Level.WARNING, "Could not read the index of " + file, ex);
+            index = null;
+        }
+        if (index != null) {
+            return fromTable(index.read(firstFrame, lastFrame));
+        }
 
-                        }
-                        catch (IllegalArgumentException ex) {
-                            ParseException parseEx = new ParseException("Unrecognized marker or in line \"" + line + "\"", 0);
-                            parseEx.initCause(ex);
-                            throw parseEx;
-                        }
+        final MarkerTable all;
+        try (InputStream in = new FileInputStream(file)) {
+            all = readTable(new MarkerCSVParser(in));
+        }
+        final MarkerTable table = new MarkerTable();
+        for (int row = 0; row < all.size(); row++) {
+            if (all.getFrame(row) >= firstFrame && all.getFrame(row) <= lastFrame) {
+                table.add(all, row);
+            }
+        }
+        return fromTable(table);
+    }
 
-                    }
-                    else {
-                        throw new ParseException("Unrecognized line \"" + line + "\"", 0);
-                    }
-                }
+    /**
+     * Reads all the markers from a file in any supported format
+     * @param parser A parser that has not read any bytes
+     * @return The markers
+     * @throws IOException
+     * @throws ParseException
+     */
+    private static MarkerTable readTable(MarkerCSVParser parser) throws IOException, ParseException {
+        if (parser.startsWith(MarkerCompression.GZIP_MAGIC)) {
+            try (InputStream decompressed = MarkerCompression.decompress(parser.remainingInput())) {
+                return readTable(new MarkerCSVParser(decompressed));
             }
+        }
+        MarkerTable table = new MarkerTable();
+        switch (readHeader(parser)) {
+            case 2:
+                parser.readVersion2Markers(table);
+                break;
+            case 3:
+                parser.readMarkers(table);
+                break;
+            default:
+                table = readBinary(parser);
+                break;
+        }
+        return table;
+    }
+
+    /**
+     * Detects the format of a file from its first bytes. For a CSV file,
+     * reads the version line, if any, and the header line.
+     * @param parser The parser to read from
+     * @return 2 for a version 2 CSV file, which has no version line,
+     * 3 for a version 3 CSV file, or {@link BinaryMarkerFormat#VERSION} for
+     * a binary file
+     * @throws IOException
+     * @throws ParseException if the file has an unsupported version
+     */
+    static int readHeader(MarkerCSVParser parser) throws IOException, ParseException {
+        if (parser.startsWith(BinaryMarkerFormat.MAGIC)) {
+            return BinaryMarkerFormat.VERSION;
+        }
+        final String firstLine = parser.readLine();
+        if (firstLine == null) {
+            // An empty file has no markers in any version
+            return 2;
+        }
+        //Read and interpret version line
+        final int version;
+        try {
+            version = getVersion(firstLine);
+        }
+        catch (IllegalArgumentException ex) {
+            // That wasn't a version line, it was a version 2 header line
+            return 2;
+        }
 
+        // Check version
+        if (version != 3) {
+            throw new ParseException("Invalid version number " + version, 0);
         }
 
+        // Read and ignore header
+        parser.readLine();
+        return 3;
+    }
+
+    /**
+     * Reads a binary file from a parser that has not consumed any bytes
+     */
+    private static MarkerTable readBinary(MarkerCSVParser parser) throws IOException, ParseException {
+        return BinaryMarkerFormat.read(new BufferedInputStream(parser.remainingInput(), 65536));
+    }
+
+    /**
+     * Creates a data store containing the markers in a table. The markers
+     * are added in one batch, so listeners are notified once.
+     * @param table The markers read from a file
+     * @return A data store with no changes
+     */
+    private static PersistentFrameDataStore<Marker> fromTable(MarkerTable table) {
+        final PersistentFrameDataStore<Marker> instance = new PersistentFrameDataStore<>();
+        table.addTo(instance);
+        // The loaded data matches the file
+        instance.markClean();
         return instance;
     }
 
@@ -252,7 +774,8 @@ public class PersistentFrameDataStore<T extends Marker> extends FrameDataStore<T
     }
 
     public PersistentFrameDataStore() {
-
+        trajectories = new AntTrajectoryIndex<>(this);
+        addFrameDataListener(new DirtyAntTracker());
     }
 
     /**
@@ -262,6 +785,58 @@ public class PersistentFrameDataStore<T extends Marker> extends FrameDataStore<T
      */
     public PersistentFrameDataStore(PersistentFrameDataStore2to3<T> other) {
         super(other);
+        trajectories = new AntTrajectoryIndex<>(this);
+        addFrameDataListener(new DirtyAntTracker());
+    }
+
+    /**
+     * 
+     * @return A new query that selects markers from this store
+     */
+    public MarkerQuery<T> query() {
+        return new MarkerQuery<>(this);
+    }
+
+    /**
+     * 
+     * @return An index of the markers in this store by ant ID and frame
+     */
+    public AntTrajectoryIndex<T> getTrajectoryIndex() {
+        return trajectories;
     }
 
+    /**
+     * Records the IDs of ants whose markers are added or removed
+     */
+    private class DirtyAntTracker implements FrameDataListener<T> {
+
+        @Override
+        public void valuesAdded(int frame, int index, List<? extends T> values) {
+            markDirty(values);
+        }
+
+        @Override
+        public void valuesRemoved(int frame, int index, List<? extends T> values) {
+            markDirty(values);
+        }
+
+        @Override
+        public void framesChanged(BitSet frames) {
+
+        }
+
+        private void markDirty(List<? extends T> markers) {
+            for (T marker : markers) {
+                if (marker.getAntId() >= 0) {
+                    dirtyAnts.set(marker.getAntId());
+                }
+                else {
+                    // Ant IDs are not expected to be negative. Disable reuse
+                    // of the old file.
+                    savedLayout = null;
+                    untrackedChanges++;
+                }
+            }
+        }
+    }
 }
@@ -22,6 +22,16 @@ import org.samcrow.frameviewer.io2.MarkerType;
  */
 public class PersistentFrameDataStore2to3 <T extends Marker> extends FrameDataStore<T> {
 
+    /**
+     * A pattern for a line with an ant ID, ant type, and marker type
+     */
+    private static final Pattern LINE_PATTERN = Pattern.compile("(?<ant>\\d+),(?<antType>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<markerType>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<x>\\d+),(?<y>\\d+),(?<frame>\\d+)");
+
+    /**
+     * A pattern for the old line format, with no type specified
+     */
+    private static final Pattern OLD_LINE_PATTERN = Pattern.compile("(?<frame>\\d+),(?<x>\\d+),(?<y>\\d+)");
+
     /**
      * Throws an exception. This implementation does not support this method.
      * @param file The file to write to
@@ -43,82 +53,95 @@ public class PersistentFrameDataStore2to3 <T extends Marker> extends FrameDataSt
 
         PersistentFrameDataStore2to3<Marker> instance = new PersistentFrameDataStore2to3<>();
 
+        instance.beginBatch();
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
 
             //Read and ignore header
             reader.readLine();
 
-            final Pattern linePattern = Pattern.compile("(?<ant>\\d+),(?<antType>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<markerType>[a-zA-Z_$][a-zA-Z\\d_$]*),(?<x>\\d+),(?<y>\\d+),(?<frame>\\d+)");
-
-            //A pattern for the old line format, with no type specified
-            final Pattern oldLinePattern = Pattern.compile("(?<frame>\\d+),(?<x>\\d+),(?<y>\\d+)");
-
             while (true) {
                 String line = reader.readLine();
                 if (line == null) {
                     break;
                 }
 
-                Matcher matcher = linePattern.matcher(line);
-                if (matcher.find()) {
-
-                    try {
-
-                        int frame = Integer.valueOf(matcher.group("frame"));
-                        int x = Integer.valueOf(matcher.group("x"));
-                        int y = Integer.valueOf(matcher.group("y"));
-
-                        int antId = Integer.valueOf(matcher.group("ant"));
-                        AntId.Type antType = AntId.Type.valueOfWithLegacySupport(matcher.group("antType"));
-                        String typeName = matcher.group("markerType");
-
-                        MarkerType type = MarkerType.valueOf(typeName);
-
-
-                        Marker marker = markerFromV2Type(x, y, type);
-                        marker.setAntId(antId);
-                        marker.setFrame(frame);
-                        //Find the existing list of markers for this frame
-                        instance.getFrameData(frame).add(marker);
-
-                    }
-                    catch (IllegalArgumentException ex) {
-                        ParseException parseEx = new ParseException("Unrecognized marker or ant type in line \"" + line + "\"", 0);
-                        parseEx.initCause(ex);
-                        throw parseEx;
-                    }
+                try {
+                    Marker marker = parseLine(line);
+                    //Find the existing list of markers for this frame
+                    instance.getFrameData(marker.getFrame()).add(marker);
                 }
-                else {
-                    //Try to parse the old line format
-                    Matcher oldFormatMatcher = oldLinePattern.matcher(line);
-                    if (oldFormatMatcher.find()) {
-                        int frame = Integer.valueOf(oldFormatMatcher.group("frame"));
-                        int x = Integer.valueOf(oldFormatMatcher.group("x"));
-                        int y = Integer.valueOf(oldFormatMatcher.group("y"));
-
-                        //Use the default marker type
-                        MarkerType type = MarkerType.getDefaultType();
-
-                        Marker marker = markerFromV2Type(x, y, type);
-                        marker.setAntId(0);
-                        marker.setFrame(frame);
-                        //Find the existing list of markers for this frame
-                        instance.getFrameData(frame).add(marker);
-                    }
-                    else {
-                        Logger.getLogger(PersistentFrameDataStore2to3.class.getName()).log(Level.WARNING, "Line \"{0}\" from file \"{1}\" could not be parsed", new Object[]{line, file.getAbsolutePath()});
-                        throw new ParseException("Failed to parse line \"" + line + "\"", 0);
-                    }
+                catch (ParseException ex) {
+                    Logger.getLogger(PersistentFrameDataStore2to3.class.getName()).log(Level.WARNING, "Line \"{0}\" from file \"{1}\" could not be parsed", new Object[]{line, file.getAbsolutePath()});
+                    throw ex;
                 }
             }
 
         }
+        finally {
+            // Notify listeners once for the whole file
+            instance.endBatch();
+        }
 
         return instance;
     }
 
-    
-    private static Marker markerFromV2Type(int x, int y, MarkerType type) {
+    /**
+     * Parses a line of a version 2 file, in either the current line format
+     * or the old format with only a frame and position
+     * <p/>
+     * @param line The line to parse
+     * @return The marker, with its ant ID and frame set
+     * @throws ParseException if the line could not be parsed
+     */
+    static Marker parseLine(String line) throws ParseException {
+        Matcher matcher = LINE_PATTERN.matcher(line);
+        if (matcher.find()) {
+            try {
+                int frame = Integer.valueOf(matcher.group("frame"));
+                int x = Integer.valueOf(matcher.group("x"));
+                int y = Integer.valueOf(matcher.group("y"));
+
+                int antId = Integer.valueOf(matcher.group("ant"));
+                // Checked for validity, but not stored in version 3
+                AntId.Type.valueOfWithLegacySupport(matcher.group("antType"));
+                MarkerType type = MarkerType.valueOf(matcher.group("markerType"));
+
+                Marker marker = markerFromV2Type(x, y, type);
+                marker.setAntId(antId);
+                marker.setFrame(frame);
+                return marker;
+            }
+            catch (IllegalArgumentException ex) {
+                ParseException parseEx = new ParseException("Unrecognized marker or ant type in line \"" + line + "\"", 0);
+                parseEx.initCause(ex);
+                throw parseEx;
+            }
+        }
+        //Try to parse the old line format
+        Matcher oldFormatMatcher = OLD_LINE_PATTERN.matcher(line);
+        if (oldFormatMatcher.find()) {
+            int frame = Integer.valueOf(oldFormatMatcher.group("frame"));
+            int x = Integer.valueOf(oldFormatMatcher.group("x"));
+            int y = Integer.valueOf(oldFormatMatcher.group("y"));
+
+            //Use the default marker type
+            Marker marker = markerFromV2Type(x, y, MarkerType.getDefaultType());
+            marker.setAntId(0);
+            marker.setFrame(frame);
+            return marker;
+        }
+        throw new ParseException("Failed to parse line \"" + line + "\"", 0);
+    }
+
+    /**
+     * Converts a version 2 marker type into a version 3 marker
+     * <p/>
+     * @param x The X coordinate of the marker
+     * @param y The Y coordinate of the marker
+     * @param type The version 2 type
+     * @return A marker or interaction marker
+     */
+    static Marker markerFromV2Type(int x, int y, MarkerType type) {
         switch(type) {
                 // Interaction types
             case Returning:
@@ -0,0 +1,105 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records where each ant's markers were written in a saved CSV file.
+ * <p>
+ * Files are sorted by ant ID, so the markers for each ant form one
+ * contiguous block of lines. When the file is saved again, the blocks
+ * for ants whose markers have not changed can be copied from the old file
+ * instead of being formatted again.
+ * <p>
+ * @author Sam Crow
+ */
+class SavedFileLayout {
+
+    /**
+     * The file that was written
+     */
+    private final File file;
+
+    /**
+     * The length of the file when it was written
+     */
+    private long length;
+
+    /**
+     * The modification time of the file when it was written
+     */
+    private long lastModified;
+
+    /**
+     * Maps ant IDs to {offset, length} pairs, in bytes, of their blocks
+     */
+    private final Map<Integer, long[]> blocks = new HashMap<>();
+
+    /**
+     * The index that was written with the file
+     */
+    private MarkerFileIndex index;
+
+    SavedFileLayout(File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * Records the position of the block of lines for an ant
+     * @param antId The ant ID
+     * @param offset The offset, in bytes, of the first line from the start of
+     * the file
+     * @param length The length of the block in bytes
+     */
+    void addBlock(int antId, long offset, long length) {
+        blocks.put(antId, new long[]{ offset, length });
+    }
+
+    /**
+     * 
+     * @param antId The ant ID
+     * @return The {offset, length} of the block for the ant, or null if
+     * this file does not have a block for the ant
+     */
+    long[] getBlock(int antId) {
+        return blocks.get(antId);
+    }
+
+    /**
+     *
+     * @return The index that was written with the file, or null
+     */
+    MarkerFileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Records the index that was written with the file
+     * @param index The index
+     */
+    void setIndex(MarkerFileIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Records the length and modification time of the file.
+     * This should be called after the file has been completely written.
+     */
+    void fileWritten() {
+        length = file.length();
+        lastModified = file.lastModified();
+    }
+
+    /**
+     * 
+     * @param other A file
+     * @return true if the provided file is the file that this layout
+     * describes, and it has not been changed since it was written
+     */
+    boolean isCurrent(File other) {
+        return file.equals(other.getAbsoluteFile())
+                && file.length() == length
+                && file.lastModified() == lastModified;
+    }
+}
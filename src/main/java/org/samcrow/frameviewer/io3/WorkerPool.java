@@ -0,0 +1,21 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the fork/join pool that runs the parallel tasks of this package.
+ * <p/>
+ * Loading, spatial searches, and queries all use this pool, so a process
+ * has only one set of worker threads. The workers are daemon threads.
+ * @author Sam Crow
+ */
+final class WorkerPool {
+
+    /**
+     * The shared pool, with one thread for each processor
+     */
+    static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private WorkerPool() {
+    }
+}
@@ -2,7 +2,6 @@ package org.samcrow.frameviewer.ui;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import javafx.beans.InvalidationListener;
 import javafx.beans.Observable;
 import javafx.beans.property.ObjectProperty;
@@ -19,6 +18,7 @@ import org.samcrow.frameviewer.PaintableCanvas;
 import org.samcrow.frameviewer.io3.AntActivity;
 import org.samcrow.frameviewer.io3.AntLocation;
 import org.samcrow.frameviewer.io3.InteractionMarker;
+import org.samcrow.frameviewer.io3.MarkerSpatialIndex;
 
 /**
  * Displays a video frame and allows it to be clicked on
@@ -61,6 +61,29 @@ public class FrameCanvas extends PaintableCanvas {
 
     private MouseEvent lastMouseMove;
 
+    /**
+     * The maximum distance, in frame coordinates, between a click and a
+     * marker for the marker to be selected
+     */
+    private static final int CLICK_RADIUS = 6;
+
+    /**
+     * The value of {@link #markerFrame} when the frame of the markers is
+     * not known
+     */
+    private static final int NO_FRAME = Integer.MIN_VALUE;
+
+    /**
+     * An index used to find markers that are clicked on, or null
+     */
+    private MarkerSpatialIndex<Marker> markerIndex;
+
+    /**
+     * The frame that the displayed markers belong to in the marker index,
+     * or {@link #NO_FRAME}
+     */
+    private int markerFrame = NO_FRAME;
+
     public FrameCanvas() {
 
         setFocusTraversable(true);
@@ -74,42 +97,43 @@ public class FrameCanvas extends PaintableCanvas {
                     Point2D markerPoint = getFrameLocation(event);
 
                     // Part 1: See if an existing marker should be edited
-                    for (ListIterator<Marker> iterator = getMarkers().listIterator(); iterator.hasNext();) {
-                        Marker marker = iterator.next();
-                        if (markerClicked(marker, markerPoint)) {
-                            // Edit this marker
-                            MarkerEditDialog dialog = new MarkerEditDialog(getScene().getWindow(), marker);
-                            //Move the dialog to the position of the cursor
-                            dialog.setX(event.getScreenX());
-                            dialog.setY(event.getScreenY());
-
-                            dialog.showAndWait();
-
-                            if (dialog.success()) {
-
-                                if (dialog.deleted()) {
-                                    // Delete this marker
-                                    iterator.remove();
-
-                                }
-                                else {
-                                    // Put the newly created (changed) marker in the list,
-                                    // and replace the original
-                                    Marker newMarker = dialog.createMarker();
-                                    // Move the new marker to the same place as the old one
-                                    newMarker.setX(marker.getX());
-                                    newMarker.setY(marker.getY());
-                                    // Modify the list to replace the current marker in this position
-                                    // with the new one.
-                                    iterator.set(newMarker);
-                                }
-
-                                event.consume();
-                                repaint();
+                    final Marker clickedMarker = findClickedMarker(markerPoint);
+                    if (clickedMarker != null) {
+                        final List<Marker> markers = getMarkers();
+                        // Edit this marker
+                        MarkerEditDialog dialog = new MarkerEditDialog(getScene().getWindow(), clickedMarker);
+                        //Move the dialog to the position of the cursor
+                        dialog.setX(event.getScreenX());
+                        dialog.setY(event.getScreenY());
+
+                        dialog.showAndWait();
+
+                        // The marker may have been removed while the dialog was open
+                        final int index = markers.indexOf(clickedMarker);
+                        if (dialog.success() && index != -1) {
+
+                            if (dialog.deleted()) {
+                                // Delete this marker
+                                markers.remove(index);
+
+                            }
+                            else {
+                                // Put the newly created (changed) marker in the list,
+                                // and replace the original
+                                Marker newMarker = dialog.createMarker();
+                                // Move the new marker to the same place as the old one
+                                newMarker.setX(clickedMarker.getX());
+                                newMarker.setY(clickedMarker.getY());
+                                // Modify the list to replace the current marker in this position
+                                // with the new one.
+                                markers.set(index, newMarker);
                             }
 
-                            return;
+                            event.consume();
+                            repaint();
                         }
+
+                        return;
                     }
                     // Existing marker not found
                     // Create a new marker
@@ -326,11 +350,29 @@ public class FrameCanvas extends PaintableCanvas {
     }
 
     private boolean markerClicked(Marker marker, Point2D frameLocation) {
-        final int radius = 6;
-        return radius >= frameLocation.distance(marker.getX(), marker.getY());
+        return CLICK_RADIUS >= frameLocation.distance(marker.getX(), marker.getY());
 
     }
 
+    /**
+     * Finds the marker that was clicked on.
+     * If a marker index has been set, it is used to find the marker.
+     * Otherwise, each marker is checked.
+     * @param frameLocation The location, in frame coordinates, of the click
+     * @return The clicked marker, or null if no marker was clicked
+     */
+    private Marker findClickedMarker(Point2D frameLocation) {
+        if (markerIndex != null && markerFrame != NO_FRAME) {
+            return markerIndex.findNearest(markerFrame, frameLocation.getX(), frameLocation.getY(), CLICK_RADIUS);
+        }
+        for (Marker marker : getMarkers()) {
+            if (markerClicked(marker, frameLocation)) {
+                return marker;
+            }
+        }
+        return null;
+    }
+
     /**
      * Thrown when a mouse event is not inside the frame
      */
@@ -359,6 +401,30 @@ public class FrameCanvas extends PaintableCanvas {
         }
 
         markers = newMarkers;
+        markerFrame = NO_FRAME;
+    }
+
+    /**
+     * Sets the markers, and the frame that they belong to in the marker
+     * index.
+     * The provided list must be the list of markers for the frame in the
+     * data store that the marker index indexes.
+     * <p>
+     * @param newMarkers
+     * @param frame
+     * @see #setMarkerIndex(org.samcrow.frameviewer.io3.MarkerSpatialIndex) 
+     */
+    public final void setMarkers(List<Marker> newMarkers, int frame) {
+        setMarkers(newMarkers);
+        markerFrame = frame;
+    }
+
+    /**
+     * Sets the index used to find markers that are clicked on
+     * @param index The index, or null to check every marker
+     */
+    public final void setMarkerIndex(MarkerSpatialIndex<Marker> index) {
+        markerIndex = index;
     }
 
     public final List<Marker> getMarkers() {
@@ -0,0 +1,140 @@
+package org.samcrow.frameviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class ConcurrentFrameDataStoreTest extends TestCase {
+
+    /**
+     * An executor that holds tasks until they are run by the test
+     */
+    private static class QueueExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        synchronized int runAll() {
+            final List<Runnable> toRun = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : toRun) {
+                task.run();
+            }
+            return toRun.size();
+        }
+    }
+
+    /**
+     * A listener that counts the values added and removed
+     */
+    private static class CountingListener implements FrameDataListener<FrameObject> {
+
+        int added;
+        int removed;
+        int framesChangedCalls;
+        final BitSet frames = new BitSet();
+
+        @Override
+        public void valuesAdded(int frame, int index, List<? extends FrameObject> values) {
+            added += values.size();
+        }
+
+        @Override
+        public void valuesRemoved(int frame, int index, List<? extends FrameObject> values) {
+            removed += values.size();
+        }
+
+        @Override
+        public void framesChanged(BitSet frames) {
+            framesChangedCalls++;
+            this.frames.or(frames);
+        }
+    }
+
+    public ConcurrentFrameDataStoreTest(String testName) {
+        super(testName);
+    }
+
+    public void testNotificationsAreBatched() {
+        QueueExecutor executor = new QueueExecutor();
+        ConcurrentFrameDataStore<FrameObject> store = new ConcurrentFrameDataStore<>(executor);
+        CountingListener listener = new CountingListener();
+        store.addFrameDataListener(listener);
+
+        FrameObject object = new FrameObject();
+        store.add(3, object);
+        store.add(7, new FrameObject());
+        assertTrue(store.remove(3, object));
+        assertEquals(3, object.getFrame());
+        // Nothing is delivered until the executor runs
+        assertEquals(0, listener.added);
+
+        assertEquals(1, executor.runAll());
+        assertEquals(2, listener.added);
+        assertEquals(1, listener.removed);
+        assertEquals(1, listener.framesChangedCalls);
+        assertTrue(listener.frames.get(3));
+        assertTrue(listener.frames.get(7));
+        assertEquals(0, executor.runAll());
+    }
+
+    public void testConcurrentAdds() throws InterruptedException {
+        QueueExecutor executor = new QueueExecutor();
+        final ConcurrentFrameDataStore<FrameObject> store = new ConcurrentFrameDataStore<>(executor);
+        CountingListener listener = new CountingListener();
+        store.addFrameDataListener(listener);
+
+        final int threadCount = 4;
+        final int perThread = 2000;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        store.add(i % 50, new FrameObject());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        executor.runAll();
+
+        int total = 0;
+        for (List<FrameObject> list : store) {
+            total += list.size();
+        }
+        assertEquals(threadCount * perThread, total);
+        assertEquals(threadCount * perThread, listener.added);
+        assertEquals(threadCount * perThread, store.getModificationCount());
+        assertEquals(perThread * threadCount / 50, store.getFrameData(10).size());
+    }
+
+    public void testToFrameDataStore() {
+        ConcurrentFrameDataStore<FrameObject> store = new ConcurrentFrameDataStore<>(new QueueExecutor());
+        FrameObject first = new FrameObject();
+        FrameObject second = new FrameObject();
+        store.setFrameData(2, Arrays.asList(first, second));
+        store.add(9, new FrameObject());
+
+        FrameDataStore<FrameObject> copy = store.toFrameDataStore();
+        assertEquals(2, copy.getFrameData(2).size());
+        assertSame(second, copy.getFrameData(2).get(1));
+        assertEquals(1, copy.getFrameData(9).size());
+        assertTrue(copy.getFrameData(4).isEmpty());
+    }
+}
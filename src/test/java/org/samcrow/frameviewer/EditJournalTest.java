@@ -0,0 +1,86 @@
+package org.samcrow.frameviewer;
+
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class EditJournalTest extends TestCase {
+
+    public EditJournalTest(String testName) {
+        super(testName);
+    }
+
+    public void testUndoRedoAdd() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        EditJournal<FrameObject> journal = new EditJournal<>(store);
+
+        FrameObject object = new FrameObject();
+        store.getFrameData(10).add(object);
+        assertTrue(journal.canUndo());
+
+        assertEquals(10, journal.undo());
+        assertTrue(store.getFrameData(10).isEmpty());
+        assertFalse(journal.canUndo());
+
+        assertEquals(10, journal.redo());
+        assertSame(object, store.getFrameData(10).get(0));
+        assertFalse(journal.canRedo());
+    }
+
+    public void testUndoReplaceAndDelete() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        FrameObject first = new FrameObject();
+        FrameObject second = new FrameObject();
+        store.getFrameData(3).add(first);
+        store.getFrameData(3).add(second);
+
+        EditJournal<FrameObject> journal = new EditJournal<>(store);
+        FrameObject replacement = new FrameObject();
+        store.getFrameData(3).set(0, replacement);
+        store.getFrameData(3).remove(second);
+
+        journal.undo();
+        List<FrameObject> data = store.getFrameData(3);
+        assertEquals(2, data.size());
+        assertSame(replacement, data.get(0));
+        assertSame(second, data.get(1));
+
+        journal.undo();
+        assertSame(first, data.get(0));
+        assertSame(second, data.get(1));
+    }
+
+    public void testBatchIsOneCommand() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        FrameObject object = new FrameObject();
+        store.getFrameData(1).add(object);
+        EditJournal<FrameObject> journal = new EditJournal<>(store);
+
+        // Move the object to another frame
+        store.beginBatch();
+        store.getFrameData(1).remove(object);
+        store.getFrameData(2).add(object);
+        store.endBatch();
+
+        journal.undo();
+        assertSame(object, store.getFrameData(1).get(0));
+        assertEquals(1, object.getFrame());
+        assertTrue(store.getFrameData(2).isEmpty());
+        assertFalse(journal.canUndo());
+    }
+
+    public void testBounds() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        EditJournal<FrameObject> journal = new EditJournal<>(store, 2, 100);
+        for (int i = 0; i < 5; i++) {
+            store.getFrameData(i).add(new FrameObject());
+        }
+        journal.undo();
+        journal.undo();
+        assertFalse(journal.canUndo());
+        assertEquals(3, store.getFrameData(2).size() + store.getFrameData(1).size() + store.getFrameData(0).size());
+    }
+}
@@ -0,0 +1,59 @@
+package org.samcrow.frameviewer;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the time taken to access frames in random order in a
+ * {@link FrameDataStore}.
+ * <p/>
+ * This is not a unit test. Run it with its main method.
+ * @author Sam Crow
+ */
+public class FrameDataStoreBenchmark {
+
+    /**
+     * The number of random frame accesses to time for each video length
+     */
+    private static final int ACCESSES = 100000;
+
+    private static final int[] FRAME_COUNTS = { 10000, 100000, 1000000 };
+
+    public static void main(String[] args) {
+        // Warm up
+        run(FRAME_COUNTS[0]);
+
+        for (int frames : FRAME_COUNTS) {
+            long nanoseconds = run(frames);
+            System.out.printf("%8d frames: %8.1f ns per access%n", frames, nanoseconds / (double) ACCESSES);
+        }
+    }
+
+    /**
+     * Creates a store with one marker on every 10th frame, then accesses
+     * frames in random order
+     * @param frames The number of frames in the simulated video
+     * @return The time, in nanoseconds, taken to perform all the accesses
+     */
+    private static long run(int frames) {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        for (int frame = 0; frame < frames; frame += 10) {
+            store.getFrameData(frame).add(new FrameObject());
+        }
+
+        Random random = new Random(frames);
+        int total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ACCESSES; i++) {
+            List<FrameObject> data = store.getFrameData(random.nextInt(frames));
+            total += data.size();
+        }
+        long end = System.nanoTime();
+
+        // Use the result so that the loop cannot be optimized away
+        if (total < 0) {
+            System.out.println(total);
+        }
+        return end - start;
+    }
+}
@@ -0,0 +1,200 @@
+package org.samcrow.frameviewer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class FrameDataStoreTest extends TestCase {
+
+    public FrameDataStoreTest(String testName) {
+        super(testName);
+    }
+
+    public void testGetFrameDataReturnsSameList() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        store.getFrameData(1000).add(new FrameObject());
+        List<FrameObject> list = store.getFrameData(1000);
+        assertNotNull(list);
+        assertEquals(1, list.size());
+        assertSame(list, store.getFrameData(1000));
+    }
+
+    public void testViewingEmptyFrameDoesNotAllocate() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        List<FrameObject> list = store.getFrameData(1000);
+        assertTrue(list.isEmpty());
+        assertSame(list, store.getFrameData(1000));
+        assertFalse(store.iterator().hasNext());
+        // Setting a frame's data to its own view does nothing
+        store.setFrameData(1000, list);
+        assertFalse(store.iterator().hasNext());
+        assertFalse(store.hasChanges());
+    }
+
+    public void testWriteThroughEmptyFrameView() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        List<FrameObject> first = store.getFrameData(5);
+        List<FrameObject> second = store.getFrameData(5);
+        FrameObject object = new FrameObject();
+        first.add(object);
+        assertEquals(5, object.getFrame());
+        assertEquals(1, second.size());
+        assertSame(object, store.getFrameData(5).get(0));
+        assertTrue(store.getDirtyFrames().get(5));
+
+        second.remove(object);
+        assertTrue(first.isEmpty());
+        assertTrue(store.getFrameData(5).isEmpty());
+    }
+
+    public void testAddFiresInvalidation() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        final int[] count = { 0 };
+        store.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                count[0]++;
+                // Revalidate so that the next change fires again
+                ((FrameDataStore<?>) o).getValue();
+            }
+        });
+
+        store.getFrameData(5).add(new FrameObject());
+        assertEquals(1, count[0]);
+    }
+
+    public void testSetFrameData() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        List<FrameObject> value = new LinkedList<>();
+        FrameObject object = new FrameObject();
+        value.add(object);
+
+        store.setFrameData(20, value);
+        assertEquals(1, store.getFrameData(20).size());
+        assertSame(object, store.getFrameData(20).get(0));
+
+        // Null clears the frame
+        store.setFrameData(20, null);
+        assertTrue(store.getFrameData(20).isEmpty());
+        store.setFrameData(21, null);
+        assertTrue(store.getFrameData(21).isEmpty());
+    }
+
+    public void testIteratorSkipsUnusedFrames() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        store.getFrameData(3).add(new FrameObject());
+        store.getFrameData(70).add(new FrameObject());
+
+        int lists = 0;
+        for (Iterator<List<FrameObject>> iterator = store.iterator(); iterator.hasNext();) {
+            List<FrameObject> list = iterator.next();
+            assertEquals(1, list.size());
+            lists++;
+        }
+        assertEquals(2, lists);
+    }
+
+    public void testIteratorRemove() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        store.getFrameData(3).add(new FrameObject());
+        store.getFrameData(180000).add(new FrameObject());
+
+        Iterator<List<FrameObject>> iterator = store.iterator();
+        iterator.next();
+        iterator.remove();
+
+        int lists = 0;
+        for (List<FrameObject> list : store) {
+            lists++;
+        }
+        assertEquals(1, lists);
+        assertTrue(store.getFrameData(3).isEmpty());
+        assertEquals(1, store.getFrameData(180000).size());
+    }
+
+    public void testBatchFiresOnce() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        final int[] invalidations = { 0 };
+        final BitSet changed = new BitSet();
+        store.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                invalidations[0]++;
+            }
+        });
+        store.addFrameDataListener(new FrameDataListener<FrameObject>() {
+            @Override
+            public void valuesAdded(int frame, int index, List<? extends FrameObject> values) {
+            }
+
+            @Override
+            public void valuesRemoved(int frame, int index, List<? extends FrameObject> values) {
+            }
+
+            @Override
+            public void framesChanged(BitSet frames) {
+                changed.or(frames);
+            }
+        });
+
+        store.beginBatch();
+        store.getFrameData(1).add(new FrameObject());
+        store.getFrameData(1).add(new FrameObject());
+        store.getFrameData(9).add(new FrameObject());
+        assertEquals(0, invalidations[0]);
+        store.endBatch();
+
+        assertEquals(1, invalidations[0]);
+        assertEquals(2, changed.cardinality());
+        assertTrue(changed.get(1));
+        assertTrue(changed.get(9));
+    }
+
+    public void testAddAllUsesFrames() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        FrameObject first = new FrameObject();
+        first.setFrame(4);
+        FrameObject second = new FrameObject();
+        second.setFrame(8);
+
+        store.addAll(Arrays.asList(first, second));
+        assertSame(first, store.getFrameData(4).get(0));
+        assertSame(second, store.getFrameData(8).get(0));
+    }
+
+    public void testSnapshotIsUnaffectedByChanges() {
+        FrameDataStore<FrameObject> store = new FrameDataStore<>();
+        FrameObject first = new FrameObject();
+        store.getFrameData(2).add(first);
+        store.getFrameData(7).add(new FrameObject());
+        store.getFrameData(50);
+
+        FrameDataSnapshot<FrameObject> snapshot = store.snapshot();
+        assertEquals(store.getModificationCount(), snapshot.getModificationCount());
+
+        store.getFrameData(2).add(new FrameObject());
+        store.getFrameData(2).remove(first);
+        store.getFrameData(7).clear();
+        store.getFrameData(9).add(new FrameObject());
+
+        assertEquals(2, snapshot.getFrameCount());
+        assertEquals(2, snapshot.size());
+        assertEquals(1, snapshot.getFrameData(2).size());
+        assertSame(first, snapshot.getFrameData(2).get(0));
+        assertEquals(1, snapshot.getFrameData(7).size());
+        assertTrue(snapshot.getFrameData(9).isEmpty());
+        assertTrue(store.getModificationCount() > snapshot.getModificationCount());
+
+        assertEquals(1, store.getFrameData(2).size());
+        assertNotSame(first, store.getFrameData(2).get(0));
+    }
+}
@@ -0,0 +1,52 @@
+package org.samcrow.frameviewer;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class SparseFrameMapTest extends TestCase {
+
+    public SparseFrameMapTest(String testName) {
+        super(testName);
+    }
+
+    public void testPutOutOfOrder() {
+        SparseFrameMap<String> map = new SparseFrameMap<>(2);
+        map.put(180000, "c");
+        map.put(5, "a");
+        map.put(700, "b");
+
+        assertEquals(3, map.size());
+        assertEquals(5, map.keyAt(0));
+        assertEquals(700, map.keyAt(1));
+        assertEquals(180000, map.keyAt(2));
+        assertEquals("b", map.get(700));
+        assertNull(map.get(6));
+    }
+
+    public void testReplaceAndRemove() {
+        SparseFrameMap<String> map = new SparseFrameMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        assertEquals("a", map.put(1, "z"));
+        assertEquals("z", map.get(1));
+
+        assertEquals("z", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        assertEquals(2, map.keyAt(0));
+    }
+
+    public void testCeilingIndex() {
+        SparseFrameMap<String> map = new SparseFrameMap<>();
+        map.put(10, "a");
+        map.put(20, "b");
+
+        assertEquals(0, map.ceilingIndex(0));
+        assertEquals(0, map.ceilingIndex(10));
+        assertEquals(1, map.ceilingIndex(11));
+        assertEquals(2, map.ceilingIndex(21));
+    }
+}
@@ -0,0 +1,63 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class AntTrajectoryIndexTest extends TestCase {
+
+    public AntTrajectoryIndexTest(String testName) {
+        super(testName);
+    }
+
+    public void testTrajectory() {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(30).add(marker(2, 1));
+        store.getFrameData(10).add(marker(2, 1));
+        store.getFrameData(20).add(marker(2, 1));
+        store.getFrameData(20).add(marker(1, 1));
+
+        AntTrajectoryIndex<Marker> index = store.getTrajectoryIndex();
+        assertEquals(4, index.size());
+
+        List<Marker> trajectory = index.getTrajectory(2, 15, 30);
+        assertEquals(2, trajectory.size());
+        assertEquals(20, trajectory.get(0).getFrame());
+        assertEquals(30, trajectory.get(1).getFrame());
+        assertTrue(index.getTrajectory(3).isEmpty());
+    }
+
+    public void testIterationOrder() {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(5).add(marker(9, 1));
+        store.getFrameData(4).add(marker(9, 1));
+        store.getFrameData(7).add(marker(1, 1));
+
+        List<String> order = new ArrayList<>();
+        for (Marker marker : store.getTrajectoryIndex()) {
+            order.add(marker.getAntId() + "@" + marker.getFrame());
+        }
+        assertEquals("[1@7, 9@4, 9@5]", order.toString());
+    }
+
+    public void testRemoveAndReplace() {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        Marker first = marker(1, 1);
+        store.getFrameData(10).add(first);
+        store.getFrameData(10).add(marker(1, 1));
+
+        store.getFrameData(10).remove(first);
+        assertEquals(1, store.getTrajectoryIndex().size());
+
+        store.getFrameData(10).set(0, marker(6, 1));
+        assertEquals(1, store.getTrajectoryIndex().size());
+        assertTrue(store.getTrajectoryIndex().getTrajectory(1).isEmpty());
+        assertEquals(1, store.getTrajectoryIndex().getTrajectory(6).size());
+    }
+}
@@ -0,0 +1,105 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.List;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.variedMarker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class BinaryMarkerFormatTest extends TestCase {
+
+    public BinaryMarkerFormatTest(String testName) {
+        super(testName);
+    }
+
+    private static byte[] write(int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryMarkerFormat.Writer writer = new BinaryMarkerFormat.Writer(bytes)) {
+            for (int i = 0; i < count; i++) {
+                writer.add(variedMarker(i));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public void testRoundTripAcrossBlocks() throws Exception {
+        final int count = BinaryMarkerFormat.BLOCK_ROWS * 2 + 17;
+        byte[] bytes = write(count);
+        assertTrue(BinaryMarkerFormat.hasMagic(bytes, bytes.length));
+
+        MarkerTable table = BinaryMarkerFormat.read(new ByteArrayInputStream(bytes));
+        assertEquals(count, table.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(variedMarker(i).toCSVLine(), table.toMarker(i).toCSVLine());
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        byte[] bytes = write(0);
+        assertEquals(0, BinaryMarkerFormat.read(new ByteArrayInputStream(bytes)).size());
+    }
+
+    public void testChecksumDetectsDamage() throws Exception {
+        byte[] bytes = write(100);
+        // Change a byte in the middle of the first block
+        bytes[bytes.length / 2] ^= 0x10;
+        try {
+            BinaryMarkerFormat.read(new ByteArrayInputStream(bytes));
+            fail("Damaged file was read");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Checksum"));
+        }
+    }
+
+    public void testRejectsCSV() throws Exception {
+        try {
+            BinaryMarkerFormat.read(new ByteArrayInputStream("File version,3\n".getBytes("US-ASCII")));
+            fail("CSV file was read");
+        }
+        catch (ParseException ex) {
+            // Expected
+        }
+    }
+
+    public void testFileIsSmallerThanCSV() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 2000; i++) {
+            Marker marker = variedMarker(i);
+            store.getFrameData(marker.getFrame()).add(marker);
+        }
+        File csv = File.createTempFile("markers", ".csv");
+        File binary = File.createTempFile("markers", ".fvm");
+        try {
+            store.writeTo(csv);
+            store.writeBinaryTo(binary);
+            assertTrue(binary.length() * 5 < csv.length());
+
+            PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromBinaryFile(binary);
+            assertFalse(read.hasChanges());
+            Iterator<List<Marker>> expected = store.iterator();
+            for (List<Marker> frame : read) {
+                List<Marker> expectedFrame = expected.next();
+                assertEquals(expectedFrame.size(), frame.size());
+                for (int i = 0; i < frame.size(); i++) {
+                    assertEquals(expectedFrame.get(i).toCSVLine(), frame.get(i).toCSVLine());
+                }
+            }
+            assertFalse(expected.hasNext());
+        }
+        finally {
+            MarkerFileIndex.indexFileFor(csv).delete();
+            csv.delete();
+            binary.delete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerCSVParserTest extends TestCase {
+
+    public MarkerCSVParserTest(String testName) {
+        super(testName);
+    }
+
+    private static MarkerCSVParser parser(String text) {
+        return new MarkerCSVParser(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void testReadsMarkersAndInteractions() throws Exception {
+        InteractionMarker interaction = new InteractionMarker(5, 6, AntActivity.Walking, AntLocation.EntranceChamber, AntActivity.StandingStill, AntLocation.Edge);
+        interaction.setAntId(3);
+        interaction.setFrame(900);
+        interaction.setType(InteractionMarker.InteractionType.TwoWay);
+        interaction.setMetAntId(44);
+        Marker marker = new Marker(100, 200, AntActivity.CarryingFood, AntLocation.AtTunnel);
+        marker.setAntId(12);
+        marker.setFrame(400);
+
+        MarkerCSVParser parser = parser("File version,3\r\nheader\r\n" + marker.toCSVLine() + "\r\n" + interaction.toCSVLine());
+        assertEquals("File version,3", parser.readLine());
+        assertEquals("header", parser.readLine());
+
+        MarkerTable table = new MarkerTable();
+        parser.readMarkers(table);
+        assertEquals(2, table.size());
+        assertEquals(marker.toCSVLine(), table.toMarker(0).toCSVLine());
+        assertEquals(interaction.toCSVLine(), table.toMarker(1).toCSVLine());
+        assertNull(parser.readLine());
+    }
+
+    public void testReadsLinesWithoutMetAntId() throws Exception {
+        MarkerTable table = new MarkerTable();
+        parser("1,2,3,4,Walking,Edge,Performed,Unknown,Outside\n").readMarkers(table);
+        assertEquals(1, table.size());
+        assertTrue(table.isInteraction(0));
+        InteractionMarker marker = (InteractionMarker) table.toMarker(0);
+        assertEquals(InteractionMarker.InteractionType.Performed, marker.getType());
+        assertEquals(AntLocation.Outside, marker.getMetAntLocation());
+        assertEquals(0, marker.getMetAntId());
+    }
+
+    public void testReadsLinesLongerThanBuffer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        final int count = 20000;
+        for (int i = 0; i < count; i++) {
+            text.append(i).append(',').append(i * 2).append(",1,2,Walking,Edge,,,,\n");
+        }
+        MarkerTable table = new MarkerTable();
+        parser(text.toString()).readMarkers(table);
+        assertEquals(count, table.size());
+        assertEquals(count - 1, table.getAntId(count - 1));
+        assertEquals((count - 1) * 2, table.getFrame(count - 1));
+    }
+
+    public void testInvalidLines() throws Exception {
+        String[] lines = {
+            "1,2,3,4,Walking,Edge,,",
+            "1,2,3,4,Flying,Edge,,,,",
+            "1,-2,3,4,Walking,Edge,,,,",
+            "1,2,3,4,Walking,Edge,Performed,Walking,Edge,x",
+            "99999999999,2,3,4,Walking,Edge,,,,",
+            "",
+        };
+        for (String line : lines) {
+            try {
+                parser("1,2,3,4,Walking,Edge,,,,\n" + line + "\n").readMarkers(new MarkerTable());
+                fail("Line \"" + line + "\" was accepted");
+            }
+            catch (ParseException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("line 2"));
+            }
+        }
+    }
+}
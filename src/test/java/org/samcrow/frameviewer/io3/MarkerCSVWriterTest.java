@@ -0,0 +1,68 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerCSVWriterTest extends TestCase {
+
+    public MarkerCSVWriterTest(String testName) {
+        super(testName);
+    }
+
+    public void testMatchesToCSVLine() throws Exception {
+        Marker marker = new Marker(-15, 0, AntActivity.CarryingUnkown, AntLocation.LeavingNest);
+        marker.setAntId(Integer.MAX_VALUE);
+        marker.setFrame(Integer.MIN_VALUE);
+        InteractionMarker interaction = new InteractionMarker(1234567, 89, AntActivity.Walking, AntLocation.Edge, AntActivity.Unknown, AntLocation.Ascending);
+        interaction.setType(InteractionMarker.InteractionType.TwoWay);
+        interaction.setMetAntId(-7);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarkerCSVWriter writer = new MarkerCSVWriter(Channels.newChannel(bytes));
+        writer.writeLine("header");
+        writer.write(marker);
+        MarkerTable table = new MarkerTable();
+        table.add(interaction);
+        writer.write(table, 0);
+        writer.flush();
+
+        String separator = System.getProperty("line.separator");
+        String expected = "header" + separator + marker.toCSVLine() + separator + interaction.toCSVLine() + separator;
+        assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+        assertEquals(expected.length(), writer.getCount());
+    }
+
+    public void testSnapshotMatchesWriteTo() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 500; i++) {
+            Marker marker = new Marker(i, i * 2, AntActivity.Walking, AntLocation.Outside);
+            marker.setAntId((i * 7) % 13);
+            store.getFrameData(i % 40).add(marker);
+        }
+        FrameDataSnapshot<Marker> snapshot = store.snapshot();
+
+        File expected = File.createTempFile("markers", ".csv");
+        File actual = File.createTempFile("markers", ".csv");
+        try {
+            store.writeTo(expected);
+            PersistentFrameDataStore.writeSnapshotTo(snapshot, actual);
+            assertTrue(Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())));
+        }
+        finally {
+            MarkerFileIndex.indexFileFor(expected).delete();
+            MarkerFileIndex.indexFileFor(actual).delete();
+            expected.delete();
+            actual.delete();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerCompressionTest extends TestCase {
+
+    public MarkerCompressionTest(String testName) {
+        super(testName);
+    }
+
+    private static byte[] compress(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = MarkerCompression.compress(bytes, level);
+        out.write(data);
+        out.finish();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void testPipelinedRoundTrip() throws Exception {
+        // Several chunks of data that compress somewhat
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        Random random = new Random(4);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(16);
+        }
+        byte[] fast = compress(data, Deflater.BEST_SPEED);
+        byte[] small = compress(data, Deflater.BEST_COMPRESSION);
+        assertTrue(small.length <= fast.length);
+        assertEquals(MarkerCompression.GZIP_MAGIC[0], fast[0]);
+        assertEquals(MarkerCompression.GZIP_MAGIC[1], fast[1]);
+
+        try (InputStream in = MarkerCompression.decompress(new ByteArrayInputStream(small))) {
+            assertTrue(Arrays.equals(data, readAll(in)));
+        }
+    }
+
+    public void testDamagedDataFails() throws Exception {
+        byte[] compressed = compress(new byte[100000], Deflater.DEFAULT_COMPRESSION);
+        compressed = Arrays.copyOf(compressed, compressed.length / 2);
+        try (InputStream in = MarkerCompression.decompress(new ByteArrayInputStream(compressed))) {
+            readAll(in);
+            fail("Truncated data was read");
+        }
+        catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    public void testCompressedFiles() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 5000; i++) {
+            Marker marker = new Marker(i, i * 2, AntActivity.Walking, AntLocation.Edge);
+            marker.setAntId(i % 13);
+            store.getFrameData(i).add(marker);
+        }
+        store.setCompressionLevel(Deflater.BEST_SPEED);
+        File csv = File.createTempFile("markers", ".csv.gz");
+        File binary = File.createTempFile("markers", ".fvm.gz");
+        try {
+            store.writeTo(csv);
+            assertFalse(store.hasChanges());
+            assertEquals(5000, PersistentFrameDataStore.readFromFile(csv).getTrajectoryIndex().size());
+            assertEquals(5000, PersistentFrameDataStore.readFromFileParallel(csv).getTrajectoryIndex().size());
+
+            store.writeBinaryTo(binary);
+            PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromBinaryFile(binary);
+            assertEquals(8, read.getFrameData(4).get(0).getY());
+            assertEquals(5000, PersistentFrameDataStore.readFromFile(binary).getTrajectoryIndex().size());
+        }
+        finally {
+            csv.delete();
+            binary.delete();
+        }
+    }
+
+    public void testSnapshotCompressionLevel() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 5000; i++) {
+            Marker marker = new Marker(i, i, AntActivity.Walking, AntLocation.Edge);
+            marker.setAntId(i % 13);
+            store.getFrameData(i).add(marker);
+        }
+        File stored = File.createTempFile("markers", ".csv.gz");
+        File small = File.createTempFile("markers", ".csv.gz");
+        try {
+            PersistentFrameDataStore.writeSnapshotTo(store.snapshot(), stored, null, Deflater.NO_COMPRESSION);
+            PersistentFrameDataStore.writeSnapshotTo(store.snapshot(), small, null, Deflater.BEST_COMPRESSION);
+            assertTrue(small.length() < stored.length() / 2);
+            assertEquals(5000, PersistentFrameDataStore.readFromFile(stored).getTrajectoryIndex().size());
+        }
+        finally {
+            stored.delete();
+            small.delete();
+        }
+    }
+}
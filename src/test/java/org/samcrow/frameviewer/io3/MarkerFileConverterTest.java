@@ -0,0 +1,114 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerFileConverterTest extends TestCase {
+
+    private Path input;
+    private Path output;
+
+    public MarkerFileConverterTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        input = Files.createTempDirectory("v2");
+        output = Files.createTempDirectory("v3");
+        write(input.resolve("a.csv"), "Ant,Type,Marker,X,Y,Frame", "4,Out,Tracking,10,20,7", "3,Down,Carrying,11,21,2", "100,200,9");
+        Files.createDirectory(input.resolve("day2"));
+        write(input.resolve("day2").resolve("b.csv"), "Ant,Type,Marker,X,Y,Frame", "1,Out,Tunnel,1,2,3");
+        write(input.resolve("day2").resolve("bad.csv"), "Ant,Type,Marker,X,Y,Frame", "1,Out,Tunnel,1,2,3", "not a marker");
+        write(input.resolve("new.csv"), "File version,3", Marker.fileHeader());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(input);
+        delete(output);
+        super.tearDown();
+    }
+
+    private static void write(Path path, String... lines) throws IOException {
+        Files.write(path, Arrays.asList(lines), StandardCharsets.US_ASCII);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public void testConvertToCSV() throws Exception {
+        MarkerFileConverter.Summary summary = new MarkerFileConverter(2, MarkerFileConverter.OutputFormat.CSV).convert(input, output);
+        assertEquals(2, summary.getConvertedCount());
+        assertEquals(1, summary.getSkippedCount());
+        assertEquals(4, summary.getMarkerCount());
+        assertEquals(1, summary.getErrors().size());
+        assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("bad.csv"));
+        assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("Line 3"));
+
+        File converted = output.resolve("a.csv").toFile();
+        PersistentFrameDataStore<Marker> store = PersistentFrameDataStore.readFromFile(converted);
+        assertEquals(3, store.getTrajectoryIndex().size());
+        List<Marker> frame7 = store.getFrameData(7);
+        assertEquals(1, frame7.size());
+        assertEquals(4, frame7.get(0).getAntId());
+        assertEquals(10, frame7.get(0).getX());
+        assertTrue(store.getFrameData(2).get(0) instanceof InteractionMarker);
+        // Old format line
+        assertEquals(0, store.getFrameData(100).get(0).getAntId());
+
+        assertTrue(Files.exists(output.resolve("day2").resolve("b.csv")));
+        assertFalse(Files.exists(output.resolve("new.csv")));
+    }
+
+    public void testConvertToBinary() throws Exception {
+        MarkerFileConverter.Summary summary = new MarkerFileConverter(1, MarkerFileConverter.OutputFormat.BINARY).convert(input, output);
+        assertEquals(2, summary.getConvertedCount());
+
+        PersistentFrameDataStore<Marker> store = PersistentFrameDataStore.readFromBinaryFile(output.resolve("a.fvm").toFile());
+        assertEquals(3, store.getTrajectoryIndex().size());
+        assertEquals(21, store.getFrameData(2).get(0).getY());
+    }
+
+    public void testConvertEmptyFile() throws Exception {
+        delete(input);
+        input = Files.createTempDirectory("v2");
+        Files.createFile(input.resolve("empty.csv"));
+
+        MarkerFileConverter.Summary summary = new MarkerFileConverter(1, MarkerFileConverter.OutputFormat.CSV).convert(input, output);
+        assertEquals(1, summary.getConvertedCount());
+        assertEquals(0, summary.getSkippedCount());
+        assertEquals(0, summary.getMarkerCount());
+        assertTrue(summary.getErrors().isEmpty());
+
+        PersistentFrameDataStore<Marker> store = PersistentFrameDataStore.readFromFile(output.resolve("empty.csv").toFile());
+        assertEquals(0, store.getTrajectoryIndex().size());
+    }
+}
@@ -0,0 +1,161 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerFileIndexTest extends TestCase {
+
+    private File file;
+
+    public MarkerFileIndexTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("markers", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MarkerFileIndex.indexFileFor(file).delete();
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Creates a store with more markers for each ant than fit in one entry
+     */
+    private static PersistentFrameDataStore<Marker> createStore() {
+        final PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int frame = 0; frame < 1000; frame++) {
+            for (int antId = 1; antId <= 3; antId++) {
+                if (frame % antId == 0) {
+                    store.getFrameData(frame).add(marker(antId, frame));
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Returns the CSV lines of the markers in a range of frames, sorted by
+     * ant and frame
+     */
+    private static List<String> expectedLines(PersistentFrameDataStore<Marker> store, int antId, int firstFrame, int lastFrame) {
+        final List<String> lines = new ArrayList<>();
+        final MarkerTable table = MarkerTable.fromStore(store);
+        for (int row : table.antFrameOrder()) {
+            final int frame = table.getFrame(row);
+            if ((antId == 0 || table.getAntId(row) == antId) && frame >= firstFrame && frame <= lastFrame) {
+                lines.add(table.toMarker(row).toCSVLine());
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> lines(MarkerTable table) {
+        final List<String> lines = new ArrayList<>();
+        for (int row = 0; row < table.size(); row++) {
+            lines.add(table.toMarker(row).toCSVLine());
+        }
+        return lines;
+    }
+
+    public void testIndexWrittenWithFile() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+
+        final MarkerFileIndex index = MarkerFileIndex.open(file);
+        assertNotNull(index);
+        assertEquals(expectedLines(store, 0, 400, 420), lines(index.read(400, 420)));
+        assertEquals(expectedLines(store, 2, 990, 2000), lines(index.readAnt(2, 990, 2000)));
+        assertEquals(0, index.readAnt(7, 0, 1000).size());
+        assertEquals(0, index.read(5000, 6000).size());
+    }
+
+    public void testIndexAfterPartialSave() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+        // Ant 2 changes, so the lines for ants 1 and 3 are copied
+        store.getFrameData(501).add(marker(2, 501));
+        store.getFrameData(2).remove(0);
+        store.writeTo(file);
+
+        final MarkerFileIndex index = MarkerFileIndex.open(file);
+        assertNotNull(index);
+        assertEquals(expectedLines(store, 0, 0, 1000), lines(index.read(0, 1000)));
+        assertEquals(expectedLines(store, 3, 450, 550), lines(index.readAnt(3, 450, 550)));
+    }
+
+    public void testSnapshotSaveWritesIndex() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        final FrameDataSnapshot<Marker> snapshot = store.snapshot();
+        PersistentFrameDataStore.writeSnapshotTo(snapshot, file, null);
+
+        final MarkerFileIndex index = MarkerFileIndex.open(file);
+        assertNotNull(index);
+        assertEquals(expectedLines(store, 1, 10, 300), lines(index.readAnt(1, 10, 300)));
+    }
+
+    public void testStaleIndexIgnored() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+        // The file is replaced by something that does not update the index
+        Files.write(file.toPath(), Arrays.asList("File version,3", Marker.fileHeader(), marker(1, 7).toCSVLine()), StandardCharsets.US_ASCII);
+
+        assertNull(MarkerFileIndex.open(file));
+    }
+
+    public void testCreateForExistingFile() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+        assertTrue(MarkerFileIndex.indexFileFor(file).delete());
+        assertNull(MarkerFileIndex.open(file));
+
+        MarkerFileIndex.create(file);
+        final MarkerFileIndex index = MarkerFileIndex.open(file);
+        assertNotNull(index);
+        assertEquals(expectedLines(store, 0, 100, 199), lines(index.read(100, 199)));
+    }
+
+    public void testReadFramesFromFile() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+        final PersistentFrameDataStore<Marker> indexed = PersistentFrameDataStore.readFramesFromFile(file, 10, 12);
+        assertEquals(3, indexed.getFrameData(12).size());
+        assertEquals(0, indexed.getFrameData(13).size());
+        assertEquals(1, indexed.getFrameData(11).size());
+
+        assertTrue(MarkerFileIndex.indexFileFor(file).delete());
+        final PersistentFrameDataStore<Marker> unindexed = PersistentFrameDataStore.readFramesFromFile(file, 10, 12);
+        assertEquals(3, unindexed.getFrameData(12).size());
+        assertEquals(0, unindexed.getFrameData(13).size());
+    }
+
+    public void testReadFramesWithDamagedIndex() throws Exception {
+        final PersistentFrameDataStore<Marker> store = createStore();
+        store.writeTo(file);
+        final File indexFile = MarkerFileIndex.indexFileFor(file);
+        Files.write(indexFile.toPath(), Arrays.copyOf(Files.readAllBytes(indexFile.toPath()), 6));
+        final PersistentFrameDataStore<Marker> truncated = PersistentFrameDataStore.readFramesFromFile(file, 10, 12);
+        assertEquals(3, truncated.getFrameData(12).size());
+
+        Files.write(indexFile.toPath(), "not an index".getBytes(StandardCharsets.US_ASCII));
+        final PersistentFrameDataStore<Marker> foreign = PersistentFrameDataStore.readFramesFromFile(file, 10, 12);
+        assertEquals(3, foreign.getFrameData(12).size());
+    }
+}
@@ -0,0 +1,97 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerFileMergerTest extends TestCase {
+
+    private final List<File> files = new ArrayList<>();
+
+    public MarkerFileMergerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : files) {
+            MarkerFileIndex.indexFileFor(file).delete();
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    private File tempFile(String suffix) throws IOException {
+        final File file = File.createTempFile("markers", suffix);
+        files.add(file);
+        return file;
+    }
+
+    private File write(String suffix, Marker... markers) throws IOException {
+        final PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (Marker marker : markers) {
+            store.getFrameData(marker.getFrame()).add(marker);
+        }
+        final File file = tempFile(suffix);
+        store.writeTo(file);
+        return file;
+    }
+
+    private static List<String> lines(File file) throws Exception {
+        final List<String> lines = new ArrayList<>();
+        for (List<Marker> frame : PersistentFrameDataStore.readFromFile(file)) {
+            for (Marker marker : frame) {
+                lines.add(marker.toCSVLine());
+            }
+        }
+        return lines;
+    }
+
+    public void testMerge() throws Exception {
+        final File a = write(".csv", marker(1, 5, 10), marker(3, 2, 30), marker(3, 8, 31));
+        final File b = write(".csv.gz", marker(2, 1, 20), marker(3, 2, 30), marker(4, 6, 40));
+        final File c = write(".csv", marker(1, 5, 11), marker(5, 9, 50));
+        final File output = tempFile(".csv");
+
+        final MarkerFileMerger.Result result = MarkerFileMerger.merge(Arrays.asList(a, b, c), output);
+        assertEquals(8, result.getReadCount());
+        assertEquals(6, result.getWrittenCount());
+        // Ant 3 in frame 2 is the same in a and b. Ant 1 in frame 5 differs.
+        assertEquals(1, result.getConflicts().size());
+        final MarkerFileMerger.Conflict conflict = result.getConflicts().get(0);
+        assertEquals(1, conflict.getAntId());
+        assertEquals(5, conflict.getFrame());
+        assertEquals(Arrays.asList(a, c), new ArrayList<>(conflict.getVersions().keySet()));
+        assertEquals(Arrays.asList(marker(1, 5, 11).toCSVLine()), conflict.getVersions().get(c));
+
+        final List<String> expected = lines(write(".csv", marker(1, 5, 10), marker(2, 1, 20), marker(3, 2, 30),
+                marker(3, 8, 31), marker(4, 6, 40), marker(5, 9, 50)));
+        assertEquals(expected, lines(output));
+    }
+
+    public void testRejectsUnsortedInput() throws Exception {
+        final File sorted = write(".csv", marker(1, 1, 1));
+        final File unsorted = tempFile(".csv");
+        Files.write(unsorted.toPath(), Arrays.asList("File version,3", Marker.fileHeader(),
+                marker(2, 1, 1).toCSVLine(), marker(1, 1, 1).toCSVLine()), StandardCharsets.US_ASCII);
+        try {
+            MarkerFileMerger.merge(Arrays.asList(sorted, unsorted), tempFile(".csv"));
+            fail("Unsorted input was merged");
+        }
+        catch (ParseException ex) {
+            // Expected
+        }
+    }
+}
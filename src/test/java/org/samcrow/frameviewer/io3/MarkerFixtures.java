@@ -0,0 +1,114 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import junit.framework.Assert;
+import org.samcrow.frameviewer.FrameDataStore;
+
+/**
+ * Markers and assertions shared by the tests in this package
+ * @author Sam Crow
+ */
+final class MarkerFixtures {
+
+    private MarkerFixtures() {
+    }
+
+    /**
+     * Creates a marker
+     * @param antId The ant ID
+     * @param x The X and Y position
+     * @return A marker with no frame
+     */
+    static Marker marker(int antId, int x) {
+        Marker marker = new Marker(x, x, AntActivity.Walking, AntLocation.Edge);
+        marker.setAntId(antId);
+        return marker;
+    }
+
+    /**
+     * Creates a marker in a frame
+     * @param antId The ant ID
+     * @param frame The frame
+     * @param x The X and Y position
+     * @return A marker
+     */
+    static Marker marker(int antId, int frame, int x) {
+        Marker marker = marker(antId, x);
+        marker.setFrame(frame);
+        return marker;
+    }
+
+    /**
+     * Creates a marker with no ant ID or frame
+     * @param x The X position
+     * @param y The Y position
+     * @return A marker
+     */
+    static Marker markerAt(int x, int y) {
+        return new Marker(x, y, AntActivity.Unknown, AntLocation.Unknown);
+    }
+
+    /**
+     * Creates one of a sequence of markers that uses most of the marker
+     * fields. Every fourth marker is an interaction, and there are two
+     * markers in each frame.
+     * @param i The position in the sequence
+     * @return A marker in frame i / 2
+     */
+    static Marker variedMarker(int i) {
+        Marker marker;
+        if (i % 4 == 0) {
+            InteractionMarker interaction = new InteractionMarker(i * 3, -i, AntActivity.CarryingUnkown, AntLocation.EntranceChamber, AntActivity.Unknown, AntLocation.Descending);
+            interaction.setType(InteractionMarker.InteractionType.TwoWay);
+            interaction.setMetAntId(i + 1000);
+            marker = interaction;
+        }
+        else {
+            marker = new Marker(i * 3, i * 5, AntActivity.CarryingFood, AntLocation.ReturningToNest);
+        }
+        marker.setAntId(i % 23);
+        marker.setFrame(i / 2);
+        return marker;
+    }
+
+    /**
+     * Checks that two stores have the same markers in the same order in
+     * each frame
+     */
+    static void assertSameMarkers(FrameDataStore<Marker> expectedStore, FrameDataStore<Marker> store) {
+        Iterator<List<Marker>> expected = expectedStore.iterator();
+        for (List<Marker> frame : store) {
+            Assert.assertTrue(expected.hasNext());
+            Assert.assertEquals(lines(expected.next()), lines(frame));
+        }
+        Assert.assertFalse(expected.hasNext());
+    }
+
+    /**
+     * Checks that two stores have the same markers in each frame, in any
+     * order within each frame
+     */
+    static void assertSameMarkersInAnyOrder(FrameDataStore<Marker> expectedStore, FrameDataStore<Marker> store) {
+        Iterator<List<Marker>> expected = expectedStore.iterator();
+        for (List<Marker> frame : store) {
+            Assert.assertTrue(expected.hasNext());
+            final List<String> expectedLines = lines(expected.next());
+            final List<String> actualLines = lines(frame);
+            Collections.sort(expectedLines);
+            Collections.sort(actualLines);
+            Assert.assertEquals(expectedLines, actualLines);
+        }
+        Assert.assertFalse(expected.hasNext());
+    }
+
+    private static List<String> lines(List<Marker> markers) {
+        final List<String> lines = new ArrayList<>(markers.size());
+        for (Marker marker : markers) {
+            lines.add(marker.toCSVLine());
+        }
+        return lines;
+    }
+}
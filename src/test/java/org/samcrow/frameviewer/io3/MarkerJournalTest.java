@@ -0,0 +1,254 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.assertSameMarkers;
+import static org.samcrow.frameviewer.io3.MarkerFixtures.assertSameMarkersInAnyOrder;
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerJournalTest extends TestCase {
+
+    private File file;
+
+    public MarkerJournalTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("markers", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MarkerJournal.journalFileFor(file).delete();
+        MarkerFileIndex.indexFileFor(file).delete();
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes some changes and closes the journal without saving the store
+     */
+    private PersistentFrameDataStore<Marker> editWithoutSaving() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(1).add(marker(1, 10));
+        store.getFrameData(2).add(marker(2, 20));
+        store.writeTo(file);
+
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        assertEquals(0, journal.getRecoveredCount());
+        store.getFrameData(1).add(marker(3, 30));
+        store.getFrameData(2).set(0, marker(2, 25));
+        store.getFrameData(9).add(marker(4, 90));
+        store.getFrameData(1).remove(0);
+        journal.close();
+        return store;
+    }
+
+    public void testRecoversUnsavedChanges() throws Exception {
+        PersistentFrameDataStore<Marker> edited = editWithoutSaving();
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        MarkerJournal journal = MarkerJournal.open(file, recovered);
+        try {
+            assertEquals(5, journal.getRecoveredCount());
+            assertTrue(recovered.hasChanges());
+            assertSameMarkers(edited, recovered);
+
+            // New changes are appended after the recovered ones
+            recovered.getFrameData(12).add(marker(5, 120));
+        }
+        finally {
+            journal.close();
+        }
+
+        PersistentFrameDataStore<Marker> again = PersistentFrameDataStore.readFromFile(file);
+        MarkerJournal.open(file, again).close();
+        assertSameMarkers(recovered, again);
+    }
+
+    public void testIgnoresPartialRecord() throws Exception {
+        PersistentFrameDataStore<Marker> edited = editWithoutSaving();
+        File journalFile = MarkerJournal.journalFileFor(file);
+        long length = journalFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.seek(length);
+            // The start of a record that was never finished
+            raf.writeInt(100);
+            raf.writeByte(1);
+        }
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        MarkerJournal journal = MarkerJournal.open(file, recovered);
+        journal.close();
+        assertEquals(5, journal.getRecoveredCount());
+        assertSameMarkers(edited, recovered);
+        assertEquals(length, journalFile.length());
+    }
+
+    public void testResetAfterSave() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.writeTo(file);
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        store.getFrameData(3).add(marker(1, 1));
+        store.writeTo(file);
+        journal.reset();
+        store.getFrameData(4).add(marker(1, 2));
+        journal.close();
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        journal = MarkerJournal.open(file, recovered);
+        journal.close();
+        // Only the change after the save is replayed
+        assertEquals(1, journal.getRecoveredCount());
+        assertSameMarkers(store, recovered);
+    }
+
+    public void testIgnoresJournalForOtherVersion() throws Exception {
+        editWithoutSaving();
+        // The data set is replaced without resetting the journal
+        PersistentFrameDataStore<Marker> other = new PersistentFrameDataStore<>();
+        other.getFrameData(100).add(marker(8, 8));
+        other.writeTo(file);
+        file.setLastModified(file.lastModified() + 2000);
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+        MarkerJournal journal = MarkerJournal.open(file, read);
+        journal.close();
+        assertEquals(0, journal.getRecoveredCount());
+        assertSameMarkers(other, read);
+    }
+
+    public void testRecoversAfterSaveReordersFrame() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(1).add(marker(5, 50));
+        store.getFrameData(1).add(marker(3, 30));
+        store.getFrameData(1).add(marker(5, 51));
+        store.writeTo(file);
+        // The saved file lists ant 3 first
+        MarkerJournal journal = MarkerJournal.create(file, store);
+        store.getFrameData(1).remove(0);
+        store.getFrameData(1).add(0, marker(7, 70));
+        journal.close();
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        assertEquals(3, recovered.getFrameData(1).get(0).getAntId());
+        journal = MarkerJournal.open(file, recovered);
+        journal.close();
+        assertEquals(2, journal.getRecoveredCount());
+        assertSameMarkersInAnyOrder(store, recovered);
+    }
+
+    public void testStopsAtRemovalOfMissingMarker() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(1).add(marker(5, 50));
+        store.writeTo(file);
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        store.getFrameData(1).add(marker(3, 30));
+        store.getFrameData(1).remove(0);
+        journal.close();
+
+        // A store that does not have ant 5
+        PersistentFrameDataStore<Marker> other = new PersistentFrameDataStore<>();
+        journal = MarkerJournal.open(file, other);
+        journal.close();
+        // The removal is not applied to a different marker
+        assertEquals(1, journal.getRecoveredCount());
+        assertEquals(1, other.getFrameData(1).size());
+        assertEquals(3, other.getFrameData(1).get(0).getAntId());
+    }
+
+    public void testDiscard() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.writeTo(file);
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        store.getFrameData(3).add(marker(1, 1));
+        journal.discard();
+        assertFalse(MarkerJournal.journalFileFor(file).exists());
+    }
+
+    public void testRebaseKeepsChangesAfterMark() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.writeTo(file);
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        store.getFrameData(3).add(marker(1, 1));
+        long mark = journal.mark();
+        PersistentFrameDataStore<Marker> saved = PersistentFrameDataStore.readFromFile(file);
+        saved.getFrameData(3).add(marker(1, 1));
+        // A change made while the save is in progress
+        store.getFrameData(4).add(marker(1, 2));
+        saved.writeTo(file);
+        assertSame(journal, journal.rebase(file, mark));
+        journal.close();
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        journal = MarkerJournal.open(file, recovered);
+        journal.close();
+        assertEquals(1, journal.getRecoveredCount());
+        assertSameMarkers(store, recovered);
+    }
+
+    public void testRecoversAfterSnapshotSaveAndRebase() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.writeTo(file);
+        MarkerJournal journal = MarkerJournal.open(file, store);
+        store.getFrameData(1).add(marker(5, 50));
+        store.getFrameData(1).add(marker(3, 30));
+
+        // Save the way the application does
+        long mark = journal.mark();
+        PersistentFrameDataStore.SnapshotSave save = store.prepareSnapshotSave(file);
+        save.write(null);
+        assertTrue(store.markSnapshotSaved(save));
+        journal = journal.rebase(file, mark);
+
+        // Ant 5 is first in the store, but ant 3 is first in the saved file
+        store.getFrameData(1).remove(0);
+        journal.close();
+
+        PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(file);
+        journal = MarkerJournal.open(file, recovered);
+        journal.close();
+        assertEquals(1, journal.getRecoveredCount());
+        assertEquals(1, recovered.getFrameData(1).size());
+        assertEquals(3, recovered.getFrameData(1).get(0).getAntId());
+    }
+
+    public void testRebaseToOtherFile() throws Exception {
+        File other = File.createTempFile("markers", ".csv");
+        try {
+            PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+            store.writeTo(file);
+            MarkerJournal journal = MarkerJournal.open(file, store);
+            store.getFrameData(3).add(marker(1, 1));
+            long mark = journal.mark();
+            store.writeTo(other);
+            store.getFrameData(4).add(marker(1, 2));
+            MarkerJournal rebased = journal.rebase(other, mark);
+            assertEquals(other, rebased.getDataSet());
+            assertFalse(MarkerJournal.journalFileFor(file).exists());
+            // The new journal records later changes
+            store.getFrameData(5).add(marker(1, 3));
+            rebased.close();
+
+            PersistentFrameDataStore<Marker> recovered = PersistentFrameDataStore.readFromFile(other);
+            journal = MarkerJournal.open(other, recovered);
+            journal.close();
+            assertEquals(2, journal.getRecoveredCount());
+            assertSameMarkers(store, recovered);
+        }
+        finally {
+            MarkerJournal.journalFileFor(other).delete();
+            MarkerFileIndex.indexFileFor(other).delete();
+            other.delete();
+        }
+    }
+}
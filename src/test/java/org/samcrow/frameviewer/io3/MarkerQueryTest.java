@@ -0,0 +1,67 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerQueryTest extends TestCase {
+
+    private PersistentFrameDataStore<Marker> store;
+
+    public MarkerQueryTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new PersistentFrameDataStore<>();
+        for (int frame = 0; frame < 3000; frame++) {
+            Marker marker = new Marker(frame, frame, AntActivity.Walking, frame % 2 == 0 ? AntLocation.EntranceChamber : AntLocation.Edge);
+            marker.setAntId(frame % 10);
+            store.getFrameData(frame).add(marker);
+
+            if (frame % 100 == 0) {
+                InteractionMarker interaction = new InteractionMarker(0, 0, AntActivity.Walking, AntLocation.EntranceChamber, AntActivity.Walking, AntLocation.EntranceChamber);
+                interaction.setAntId(1);
+                interaction.setMetAntId(frame / 100);
+                interaction.setType(InteractionMarker.InteractionType.TwoWay);
+                store.getFrameData(frame).add(interaction);
+            }
+        }
+    }
+
+    public void testFrameRangeAndLocation() {
+        List<Marker> result = store.query().frames(100, 199).location(AntLocation.Edge).list();
+        assertEquals(50, result.size());
+        for (Marker marker : result) {
+            assertEquals(AntLocation.Edge, marker.getFocusAntLocation());
+            assertTrue(marker.getFrame() >= 100 && marker.getFrame() <= 199);
+        }
+    }
+
+    public void testAnt() {
+        assertEquals(300, store.query().ant(3).count());
+        List<Marker> result = store.query().ant(3).frames(0, 99).list();
+        assertEquals(10, result.size());
+        assertEquals(3, result.get(0).getFrame());
+        assertEquals(93, result.get(9).getFrame());
+    }
+
+    public void testInteractions() {
+        assertEquals(30, store.query().interactionType(InteractionMarker.InteractionType.TwoWay).count());
+        List<Marker> met = store.query().metAnt(7).list();
+        assertEquals(1, met.size());
+        assertEquals(700, met.get(0).getFrame());
+        assertEquals(0, store.query().interactionType(InteractionMarker.InteractionType.Received).count());
+    }
+
+    public void testParallelMatchesSequential() {
+        MarkerQuery<Marker> query = store.query().frames(10, 2500).location(AntLocation.EntranceChamber);
+        assertEquals(query.list(), query.listParallel());
+        assertEquals(store.query().list(), store.query().listParallel());
+    }
+}
@@ -0,0 +1,56 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.List;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.FrameDataStore;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.markerAt;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerSpatialIndexTest extends TestCase {
+
+    public MarkerSpatialIndexTest(String testName) {
+        super(testName);
+    }
+
+    public void testFindNearest() {
+        FrameDataStore<Marker> store = new FrameDataStore<>();
+        Marker near = markerAt(100, 100);
+        Marker far = markerAt(108, 100);
+        store.getFrameData(1).add(far);
+        store.getFrameData(1).add(near);
+        MarkerSpatialIndex<Marker> index = new MarkerSpatialIndex<>(store);
+
+        assertSame(near, index.findNearest(1, 101, 100, 6));
+        assertSame(far, index.findNearest(1, 107, 100, 6));
+        assertNull(index.findNearest(1, 200, 200, 6));
+        assertNull(index.findNearest(2, 100, 100, 6));
+
+        // Markers across a cell boundary
+        Marker edge = markerAt(64, 64);
+        store.getFrameData(1).add(edge);
+        assertSame(edge, index.findNearest(1, 62, 62, 6));
+
+        store.getFrameData(1).remove(near);
+        assertSame(far, index.findNearest(1, 103, 100, 6));
+    }
+
+    public void testQuery() {
+        FrameDataStore<Marker> store = new FrameDataStore<>();
+        MarkerSpatialIndex<Marker> index = new MarkerSpatialIndex<>(store);
+        for (int frame = 0; frame < 2000; frame++) {
+            store.getFrameData(frame).add(markerAt(frame % 100, 50));
+            store.getFrameData(frame).add(markerAt(500, 500));
+        }
+
+        List<Marker> sequential = index.query(100, 1099, 0, 0, 9, 100);
+        List<Marker> parallel = index.queryParallel(100, 1099, 0, 0, 9, 100);
+        assertEquals(100, sequential.size());
+        assertEquals(sequential, parallel);
+
+        assertEquals(4000, index.queryParallel(0, Integer.MAX_VALUE, 0, 0, 1000, 1000).size());
+    }
+}
@@ -0,0 +1,70 @@
+package org.samcrow.frameviewer.io3;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class MarkerTableTest extends TestCase {
+
+    public MarkerTableTest(String testName) {
+        super(testName);
+    }
+
+    public void testRoundTrip() {
+        Marker marker = new Marker(10, 20, AntActivity.Walking, AntLocation.Edge);
+        marker.setAntId(3);
+        marker.setFrame(1500);
+
+        InteractionMarker interaction = new InteractionMarker(30, 40, AntActivity.CarryingFood, AntLocation.EntranceChamber, AntActivity.StandingStill, AntLocation.AtTunnel);
+        interaction.setAntId(4);
+        interaction.setFrame(1501);
+        interaction.setType(InteractionMarker.InteractionType.TwoWay);
+        interaction.setMetAntId(9);
+
+        MarkerTable table = new MarkerTable(1);
+        table.add(marker);
+        table.add(interaction);
+        assertEquals(2, table.size());
+
+        assertFalse(table.isInteraction(0));
+        assertNull(table.getInteractionType(0));
+        assertEquals(marker.toCSVLine(), table.toMarker(0).toCSVLine());
+
+        MarkerTable.Row row = table.row(1);
+        assertTrue(row.isInteraction());
+        assertEquals(4, row.getAntId());
+        assertEquals(1501, row.getFrame());
+        assertEquals(AntLocation.AtTunnel, row.getMetAntLocation());
+        assertEquals(interaction.toCSVLine(), row.toMarker().toCSVLine());
+    }
+
+    public void testAddAll() {
+        MarkerTable first = new MarkerTable();
+        first.add(1, 1, 1, 1, (byte) 0, (byte) 0, MarkerTable.NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+        MarkerTable second = new MarkerTable();
+        second.add(2, 2, 2, 2, (byte) 1, (byte) 1, MarkerTable.NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+        second.add(3, 3, 3, 3, (byte) 1, (byte) 1, (byte) 0, (byte) 1, (byte) 1, 8);
+
+        first.addAll(second);
+        assertEquals(3, first.size());
+        assertEquals(3, first.getAntId(2));
+        assertEquals(8, first.getMetAntId(2));
+        assertEquals(AntActivity.Walking, first.getFocusAntActivity(1));
+    }
+
+    public void testAntFrameOrder() {
+        MarkerTable table = new MarkerTable();
+        int[][] rows = { { 5, 100 }, { 2, 70000 }, { 5, 3 }, { 2, 70000 }, { -1, 8 }, { 2, -4 }, { 100000, 0 } };
+        for (int[] row : rows) {
+            table.add(row[0], row[1], 0, 0, (byte) 0, (byte) 0, MarkerTable.NOT_INTERACTION, (byte) 0, (byte) 0, 0);
+        }
+        int[] order = table.antFrameOrder();
+        int[] expected = { 4, 5, 1, 3, 2, 0, 6 };
+        assertEquals(expected.length, order.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], order[i]);
+        }
+    }
+}
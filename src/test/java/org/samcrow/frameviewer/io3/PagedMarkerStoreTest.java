@@ -0,0 +1,146 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.util.List;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class PagedMarkerStoreTest extends TestCase {
+
+    private static final int FRAMES = 50000;
+
+    private File file;
+
+    public PagedMarkerStoreTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("markers", ".fvm");
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            store.getFrameData(frame).add(marker(frame % 10, frame));
+        }
+        store.writeBinaryTo(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static int count(Iterable<List<Marker>> frames) {
+        int count = 0;
+        for (List<Marker> frame : frames) {
+            count += frame.size();
+        }
+        return count;
+    }
+
+    public void testLoadsOnDemandWithinLimit() throws Exception {
+        try (PagedMarkerStore store = PagedMarkerStore.open(file)) {
+            store.setWindow(100);
+            store.setMaxLoadedMarkers(10000);
+            assertEquals(0, store.getLoadedMarkerCount());
+
+            assertEquals(30000, store.getFrameData(30000).get(0).getX());
+            assertTrue(store.getLoadedMarkerCount() > 0);
+            for (int frame = 0; frame < FRAMES; frame += 997) {
+                assertEquals(frame, store.getFrameData(frame).get(0).getX());
+                assertTrue(store.getLoadedMarkerCount() <= 10000 + BinaryMarkerFormat.BLOCK_ROWS);
+            }
+            assertEquals(count(store.loadedFrames()), store.getLoadedMarkerCount());
+
+            // Iterating loads everything
+            assertEquals(FRAMES, count(store));
+        }
+    }
+
+    public void testSnapshotStaysWithinLimit() throws Exception {
+        try (PagedMarkerStore store = PagedMarkerStore.open(file)) {
+            store.setWindow(100);
+            store.setMaxLoadedMarkers(10000);
+            assertEquals(FRAMES, count(store.snapshot()));
+            assertTrue(store.getLoadedMarkerCount() <= 10000 + BinaryMarkerFormat.BLOCK_ROWS);
+            assertEquals(count(store.loadedFrames()), store.getLoadedMarkerCount());
+        }
+    }
+
+    public void testCanOpen() throws Exception {
+        assertTrue(PagedMarkerStore.canOpen(file));
+        final File csv = File.createTempFile("markers", ".csv");
+        try {
+            new PersistentFrameDataStore<Marker>().writeTo(csv);
+            assertFalse(PagedMarkerStore.canOpen(csv));
+        }
+        finally {
+            MarkerFileIndex.indexFileFor(csv).delete();
+            csv.delete();
+        }
+    }
+
+    public void testKeepsUnsavedChanges() throws Exception {
+        try (PagedMarkerStore store = PagedMarkerStore.open(file)) {
+            store.setWindow(0);
+            store.setMaxLoadedMarkers(0);
+            store.getFrameData(10).add(marker(7, -1));
+            store.getFrameData(FRAMES + 5).add(marker(8, -2));
+            for (int frame = 0; frame < FRAMES; frame += 2000) {
+                store.getFrameData(frame);
+            }
+            assertEquals(2, store.getFrameData(10).size());
+
+            store.writeBinaryTo(file);
+            assertFalse(store.hasChanges());
+            // Saved pages can be unloaded
+            store.getFrameData(FRAMES - 1);
+            assertTrue(store.getLoadedMarkerCount() < FRAMES);
+        }
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromBinaryFile(file);
+        assertEquals(FRAMES + 2, read.getTrajectoryIndex().size());
+        assertEquals(2, read.getFrameData(10).size());
+        assertEquals(-1, read.getFrameData(10).get(1).getX());
+        assertEquals(-2, read.getFrameData(FRAMES + 5).get(0).getX());
+        assertEquals(1234, read.getFrameData(1234).get(0).getX());
+    }
+
+    public void testChangesDuringSaveStayUnsaved() throws Exception {
+        final File target = File.createTempFile("markers", ".fvm");
+        try (PagedMarkerStore store = PagedMarkerStore.open(file)) {
+            store.setWindow(0);
+            store.setMaxLoadedMarkers(0);
+            store.getFrameData(10).add(marker(7, -1));
+            final PagedMarkerStore.BinarySave save = store.prepareBinarySave(target);
+            // Made after the snapshot, so not written
+            store.getFrameData(20).add(marker(7, -2));
+            save.write(null);
+
+            assertFalse(store.finishBinarySave(save));
+            assertEquals(target, store.getFile());
+            assertTrue(store.hasChanges());
+            assertEquals(2, store.getFrameData(20).size());
+
+            final PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromBinaryFile(target);
+            assertEquals(FRAMES + 1, read.getTrajectoryIndex().size());
+            assertEquals(2, read.getFrameData(10).size());
+            assertEquals(1, read.getFrameData(20).size());
+
+            // The unsaved change is written by the next save
+            store.writeBinaryTo(target);
+            assertFalse(store.hasChanges());
+            assertEquals(2, PersistentFrameDataStore.readFromBinaryFile(target).getFrameData(20).size());
+        }
+        finally {
+            target.delete();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.assertSameMarkers;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class ParallelMarkerLoaderTest extends TestCase {
+
+    private File file;
+
+    public ParallelMarkerLoaderTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("markers", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MarkerFileIndex.indexFileFor(file).delete();
+        file.delete();
+        super.tearDown();
+    }
+
+    private void write(String text) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public void testSmallChunksMatchSequentialParse() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            Marker marker;
+            if (i % 3 == 0) {
+                InteractionMarker interaction = new InteractionMarker(i, i + 1, AntActivity.Walking, AntLocation.Edge, AntActivity.CarryingDirt, AntLocation.AtExit);
+                interaction.setType(InteractionMarker.InteractionType.Received);
+                interaction.setMetAntId(i * 7);
+                marker = interaction;
+            }
+            else {
+                marker = new Marker(i, i + 1, AntActivity.StandingStill, AntLocation.Outside);
+            }
+            marker.setAntId(i % 17);
+            marker.setFrame(i);
+            text.append(marker.toCSVLine()).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        write(text.toString());
+
+        MarkerTable expected = new MarkerTable();
+        MarkerCSVParser.parseLines(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)), 0, text.length(), expected, 0);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            // Chunks of about 100 bytes split the file into many tasks
+            MarkerTable table = ParallelMarkerLoader.load(channel, 0, channel.size(), 100, false);
+            MarkerTable mapped = ParallelMarkerLoader.load(channel, 0, channel.size(), 100, true);
+            assertEquals(1000, table.size());
+            assertEquals(1000, mapped.size());
+            for (int row = 0; row < table.size(); row++) {
+                assertEquals(expected.toMarker(row).toCSVLine(), table.toMarker(row).toCSVLine());
+                assertEquals(expected.toMarker(row).toCSVLine(), mapped.toMarker(row).toCSVLine());
+            }
+        }
+    }
+
+    public void testErrorReportsOffset() throws Exception {
+        final String good = "1,2,3,4,Walking,Edge,,,,\n";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append(good);
+        }
+        text.append("1,2,3,4,Flying,Edge,,,,\n");
+        write(text.toString());
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            ParallelMarkerLoader.load(channel, 0, channel.size(), 64, false);
+            fail("Invalid line was accepted");
+        }
+        catch (ParseException ex) {
+            assertEquals(50 * good.length(), ex.getErrorOffset());
+        }
+    }
+
+    public void testReadFromFileParallel() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 300; i++) {
+            Marker marker = new Marker(i, i, AntActivity.Walking, AntLocation.Edge);
+            marker.setAntId(i % 5);
+            store.getFrameData(i * 3).add(marker);
+        }
+        store.writeTo(file);
+
+        PersistentFrameDataStore<Marker> sequential = PersistentFrameDataStore.readFromFile(file);
+        PersistentFrameDataStore<Marker> parallel = PersistentFrameDataStore.readFromFileParallel(file);
+        PersistentFrameDataStore<Marker> mapped = PersistentFrameDataStore.readFromFileMapped(file);
+        assertFalse(parallel.hasChanges());
+        assertSameMarkers(sequential, parallel);
+        assertSameMarkers(sequential, mapped);
+    }
+}
@@ -0,0 +1,208 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.List;
+import org.samcrow.frameviewer.FrameDataSnapshot;
+import junit.framework.TestCase;
+
+import static org.samcrow.frameviewer.io3.MarkerFixtures.marker;
+
+/**
+ *
+ * @author Sam Crow
+ */
+public class PersistentFrameDataStoreTest extends TestCase {
+
+    private File file;
+
+    public PersistentFrameDataStoreTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("markers", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MarkerFileIndex.indexFileFor(file).delete();
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testWriteAndRead() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+
+        Marker marker = new Marker(100, 200, AntActivity.CarryingFood, AntLocation.AtTunnel);
+        marker.setAntId(12);
+        store.getFrameData(400).add(marker);
+
+        InteractionMarker interaction = new InteractionMarker(5, 6, AntActivity.Walking, AntLocation.EntranceChamber, AntActivity.StandingStill, AntLocation.Edge);
+        interaction.setAntId(3);
+        interaction.setType(InteractionMarker.InteractionType.Received);
+        interaction.setMetAntId(44);
+        store.getFrameData(90000).add(interaction);
+
+        store.writeTo(file);
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+
+        List<Marker> frame400 = read.getFrameData(400);
+        assertEquals(1, frame400.size());
+        assertEquals(marker.toCSVLine(), frame400.get(0).toCSVLine());
+
+        List<Marker> frame90000 = read.getFrameData(90000);
+        assertEquals(1, frame90000.size());
+        assertTrue(frame90000.get(0) instanceof InteractionMarker);
+        assertEquals(interaction.toCSVLine(), frame90000.get(0).toCSVLine());
+
+        assertEquals(2, read.getTrajectoryIndex().size());
+    }
+
+    public void testIncrementalSave() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(1).add(marker(1, 10));
+        store.getFrameData(2).add(marker(2, 20));
+        store.getFrameData(3).add(marker(3, 30));
+        assertTrue(store.hasChanges());
+
+        store.writeTo(file);
+        assertFalse(store.hasChanges());
+        assertTrue(store.getDirtyAnts().isEmpty());
+
+        // Change ant 2 only
+        store.getFrameData(2).set(0, marker(2, 25));
+        store.getFrameData(4).add(marker(2, 40));
+        assertTrue(store.getDirtyFrames().get(2));
+        assertTrue(store.getDirtyFrames().get(4));
+        assertFalse(store.getDirtyFrames().get(1));
+        assertEquals(1, store.getDirtyAnts().cardinality());
+        assertTrue(store.getDirtyAnts().get(2));
+
+        store.writeTo(file);
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+        assertEquals(4, read.getTrajectoryIndex().size());
+        assertEquals(10, read.getFrameData(1).get(0).getX());
+        assertEquals(25, read.getFrameData(2).get(0).getX());
+        assertEquals(30, read.getFrameData(3).get(0).getX());
+        assertEquals(40, read.getFrameData(4).get(0).getX());
+    }
+
+    public void testSnapshotSaveWithLaterChanges() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        for (int i = 0; i < 10000; i++) {
+            store.getFrameData(i).add(marker(i % 7, i));
+        }
+        FrameDataSnapshot<Marker> snapshot = store.snapshot();
+        // A change made while the snapshot is being saved
+        store.getFrameData(20000).add(marker(1, 1));
+
+        final long[] last = { -1, -1 };
+        PersistentFrameDataStore.writeSnapshotTo(snapshot, file, new PersistentFrameDataStore.ProgressListener() {
+            @Override
+            public void progressChanged(long done, long total) {
+                assertTrue(done >= last[0]);
+                last[0] = done;
+                last[1] = total;
+            }
+        });
+        assertEquals(10000, last[0]);
+        assertEquals(10000, last[1]);
+
+        assertFalse(store.markSnapshotSaved(snapshot));
+        assertTrue(store.hasChanges());
+        assertEquals(10000, PersistentFrameDataStore.readFromFile(file).getTrajectoryIndex().size());
+
+        snapshot = store.snapshot();
+        PersistentFrameDataStore.writeSnapshotTo(snapshot, file);
+        assertTrue(store.markSnapshotSaved(snapshot));
+        assertFalse(store.hasChanges());
+    }
+
+    public void testIncrementalSnapshotSave() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(1).add(marker(1, 10));
+        store.getFrameData(2).add(marker(2, 20));
+        store.getFrameData(3).add(marker(3, 30));
+        PersistentFrameDataStore.SnapshotSave save = store.prepareSnapshotSave(file);
+        save.write(null);
+        assertTrue(store.markSnapshotSaved(save));
+
+        // Change the line for ant 1 without changing the length or the
+        // modification time of the file, to show whether it is copied
+        final long modified = file.lastModified();
+        final String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+        Files.write(file.toPath(), text.replace(",10,10,", ",11,11,").getBytes(StandardCharsets.US_ASCII));
+        assertTrue(file.setLastModified(modified));
+
+        store.getFrameData(2).set(0, marker(2, 25));
+        save = store.prepareSnapshotSave(file);
+        // A change made while the snapshot is being saved
+        store.getFrameData(5).add(marker(3, 50));
+        save.write(null);
+        assertFalse(store.markSnapshotSaved(save));
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+        assertEquals(3, read.getTrajectoryIndex().size());
+        assertEquals(11, read.getFrameData(1).get(0).getX());
+        assertEquals(25, read.getFrameData(2).get(0).getX());
+
+        // Ant 3 changed after the snapshot, so it is written again
+        save = store.prepareSnapshotSave(file);
+        save.write(null);
+        assertTrue(store.markSnapshotSaved(save));
+        read = PersistentFrameDataStore.readFromFile(file);
+        assertEquals(4, read.getTrajectoryIndex().size());
+        assertEquals(11, read.getFrameData(1).get(0).getX());
+        assertEquals(50, read.getFrameData(5).get(0).getX());
+        assertEquals(4, MarkerFileIndex.open(file).read(0, 10).size());
+    }
+
+    public void testReadDetectsVersion2() throws Exception {
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println("Ant,Type,Marker,X,Y,Frame");
+            out.println("4,Out,Tracking,10,20,7");
+            out.println("3,Down,Carrying,11,21,7");
+            // Old line format
+            out.println("100,5,6");
+        }
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+        assertFalse(read.hasChanges());
+        assertEquals(3, read.getTrajectoryIndex().size());
+        assertEquals(2, read.getFrameData(7).size());
+        assertTrue(read.getFrameData(7).get(1) instanceof InteractionMarker);
+        assertEquals(6, read.getFrameData(100).get(0).getY());
+
+        assertEquals(3, PersistentFrameDataStore.readFromFileParallel(file).getTrajectoryIndex().size());
+    }
+
+    public void testReadDetectsBinary() throws Exception {
+        PersistentFrameDataStore<Marker> store = new PersistentFrameDataStore<>();
+        store.getFrameData(5).add(marker(1, 50));
+        store.writeBinaryTo(file);
+
+        PersistentFrameDataStore<Marker> read = PersistentFrameDataStore.readFromFile(file);
+        assertEquals(50, read.getFrameData(5).get(0).getX());
+        assertEquals(1, PersistentFrameDataStore.readFromFileMapped(file).getTrajectoryIndex().size());
+    }
+
+    public void testReadRejectsUnknownVersion() throws Exception {
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println("File version,9");
+        }
+        try {
+            PersistentFrameDataStore.readFromFile(file);
+            fail("Version 9 file was read");
+        }
+        catch (ParseException ex) {
+            // Expected
+        }
+    }
+}